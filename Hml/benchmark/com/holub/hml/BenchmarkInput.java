@@ -0,0 +1,38 @@
+package com.holub.hml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+import com.holub.text.Text;
+
+/** Support for the benchmarks: the input document and a place to send output.
+ *  The input is doc/hmldoc.hml (relative to the directory that the benchmarks
+ *  are run from) unless the hml.benchmark.input system property says otherwise.
+ *
+ * @author allen
+ */
+
+final class BenchmarkInput
+{
+	private BenchmarkInput(){}
+
+	static File file()
+	{	return new File( System.getProperty("hml.benchmark.input", "doc/hmldoc.hml") );
+	}
+
+	static String load() throws IOException
+	{	return new Text( file() ).toString();
+	}
+
+	/** A Writer that throws away everything written to it. Both output and
+	 *  error messages go here, so that the benchmarks measure processing,
+	 *  not I/O.
+	 */
+	static final class NullWriter extends Writer
+	{	@Override public void write( char[] buffer, int offset, int length ){}
+		@Override public void write( String s, int offset, int length ){}
+		@Override public void flush(){}
+		@Override public void close(){}
+	}
+}
@@ -0,0 +1,87 @@
+package com.holub.hml;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.holub.text.Text;
+
+/** Runs the benchmarks with JMH's GC profiler enabled, then prints a summary
+ *  in which everything is normalized to the size of the input document:
+ *  throughput in MB of input per second, and bytes allocated per MB of input.
+ *  <p>
+ *  The benchmarks live in their own source tree (benchmark/) because they
+ *  need JMH (jmh-core, and jmh-generator-annprocess as an annotation processor),
+ *  which the program itself doesn't. To build and run them, compile src/ and
+ *  benchmark/ together with the JMH jars on the class path, then run
+ *  this class from the Hml directory:
+ *  <pre>
+ *  java -DCONFIG=src -cp ... com.holub.hml.BenchmarkMain [regex]
+ *  </pre>
+ *  The optional regex selects benchmarks by name (e.g. PassBenchmark). Use
+ *  -Dhml.benchmark.input=file to benchmark a document other than doc/hmldoc.hml.
+ *
+ * @author allen
+ */
+
+public class BenchmarkMain
+{
+	public static void main( String[] args ) throws Exception
+	{
+		Options options = new OptionsBuilder()
+								.include( args.length > 0 ? args[0] : "com\\.holub\\.hml\\..*Benchmark" )
+								.addProfiler( GCProfiler.class )
+								.jvmArgsAppend( "-DCONFIG="				+ System.getProperty("CONFIG", "src"),
+												"-Dhml.benchmark.input="	+ BenchmarkInput.file().getAbsolutePath() )
+								.build();
+
+		Collection<RunResult> results = new Runner(options).run();
+		new Text( "%s", summarize(results) ).write(System.out);
+	}
+
+	private static String summarize( Collection<RunResult> results )
+	{
+		double megabytes = BenchmarkInput.file().length() / (1024.0 * 1024.0);
+
+		Text summary = new Text();
+		summary.appendf( "\nInput: %s (%.2f MB)\n\n", BenchmarkInput.file(), megabytes );
+		summary.appendf( "%-60s %12s %12s %16s\n", "Benchmark", "ms/op", "MB/s", "bytes alloc/MB" );
+
+		for( RunResult result : results )
+		{
+			String name = result.getParams().getBenchmark();
+			name = name.substring( name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1 );
+
+			String pass = result.getParams().getParam("pass");
+			if( pass != null )
+				name += " [" + pass + "]";
+
+			double millisecondsPerOperation = result.getPrimaryResult().getScore();
+			double bytesPerOperation		= allocation( result.getSecondaryResults() );
+
+			summary.appendf( "%-60s %12.3f %12.2f %16.0f\n",
+								name,
+								millisecondsPerOperation,
+								megabytes / (millisecondsPerOperation / 1000.0),
+								bytesPerOperation / megabytes );
+		}
+		return summary.toString();
+	}
+
+	/** Return the bytes allocated per operation, as measured by the GC profiler,
+	 *  or NaN if it's not there. The name of the result has changed between JMH versions.
+	 */
+	private static double allocation( Map<String, Result> secondaryResults )
+	{
+		for( String key : new String[]{ "gc.alloc.rate.norm", "\u00b7gc.alloc.rate.norm" } )
+			if( secondaryResults.containsKey(key) )
+				return secondaryResults.get(key).getScore();
+		return Double.NaN;
+	}
+}
@@ -0,0 +1,101 @@
+package com.holub.hml;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks each of the passes run by {@link Hml#expand(com.holub.text.Text)}
+ *  (which is to say, each filter) in isolation.
+ *  <p>
+ *  Many filters depend on what the earlier passes did (the reference expanders
+ *  need the symbol tables built by the Listing and Titles passes, for example), and
+ *  they should all see the input that they see in real life, so the setup runs the
+ *  input through all the passes that precede the one being measured. The filters
+ *  also accumulate state as they work, so this setup is repeated for every
+ *  invocation. That's acceptable here because a pass over the whole document
+ *  takes milliseconds, which swamps the cost of JMH's per-invocation bookkeeping.
+ *  <p>
+ *  The pass parameter is the {@link Pass#toString()} name of the pass. The regexEngine
+ *  parameter is the {@link Configuration.RegexEngine} that the macros are matched
+ *  with, set with an &lt;HMLconfig&gt; element at the top of the input, so that the
+ *  macro passes (TextFilter, CodeFilter, and RefFilter) can be compared on both engines.
+ *
+ * @author allen
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PassBenchmark
+{
+	@Param({"Include",
+			"Configuration",
+			"CodeSnippets",
+			"TextFilter",
+			"Tags",
+			"Listing",
+			"CodeFilter",
+			"Titles",
+			"RefFilter",
+			"InternalListingReferences",
+			"FigureTableListingSectionNoteReference",
+			"TocFilter",
+			"EntityUnmapper"})
+	public String pass;
+
+	@Param({"linear", "backtracking"})
+	public String regexEngine;
+
+	private HmlEngine	engine;
+	private String		input;
+
+	private Pass		measured;
+	private Document	document;
+
+	@Setup(Level.Trial) public void loadInput() throws IOException
+	{	engine = new HmlEngine();
+		input  = "<HMLconfig>\nregexEngine=" + regexEngine + "\n</HMLconfig>\n" + BenchmarkInput.load();
+	}
+
+	/** Create a fresh set of passes, and run the input through the ones that precede the measured pass. */
+	@Setup(Level.Invocation) public void runPrecedingPasses()
+	{
+		Hml	   renderer = engine.newRenderer( new BenchmarkInput.NullWriter(), new BenchmarkInput.NullWriter() );
+		Pass[] passes	= renderer.createPasses();
+
+		document = new Document( input );
+		measured = null;
+		for( Pass p : passes )
+		{	if( p.toString().equals(pass) )
+			{	measured = p;
+				break;
+			}
+			p.process( document );
+		}
+
+		if( measured == null )
+			throw new IllegalArgumentException( "No pass named " + pass );
+
+		document.tokens();	// lex now, so that the benchmark doesn't include lexing what the previous pass changed.
+	}
+
+	@Benchmark public Document process()
+	{	measured.process( document );
+		return document;
+	}
+}
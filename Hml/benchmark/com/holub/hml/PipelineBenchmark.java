@@ -0,0 +1,68 @@
+package com.holub.hml;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.holub.text.ReportingStream;
+import com.holub.text.Text;
+
+/** Whole-document benchmarks: lexing by itself, a pass that has no filters
+ *  (lexing plus the token walk and output assembly), and the complete
+ *  {@link Hml#expand(Text)} pipeline.
+ *  <p>
+ *  The macros are loaded once, in an {@link HmlEngine}, so the
+ *  end-to-end numbers don't include reading the configuration files.
+ *
+ * @author allen
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark
+{
+	private String		input;
+	private HmlEngine	engine;
+	private Pass		emptyPass;
+
+	@Setup public void setup() throws IOException
+	{
+		input	= BenchmarkInput.load();
+		engine	= new HmlEngine();
+
+		emptyPass = new Pass( new Configuration(new ReportingStream(new BenchmarkInput.NullWriter())) );
+	}
+
+	/** Lexing the whole document, with no filtering. */
+	@Benchmark public int lex()
+	{	return new Document(input).tokens().size();
+	}
+
+	/** A pass with no filters: lexing, walking the tokens, and building the output. */
+	@Benchmark public Document passWithoutFilters()
+	{	Document document = new Document(input);
+		emptyPass.process( document );
+		return document;
+	}
+
+	/** All thirteen passes, including the per-document setup (a new {@link Hml} object). */
+	@Benchmark public Text expand()
+	{	Text text = new Text(input);
+		engine.newRenderer( new BenchmarkInput.NullWriter(), new BenchmarkInput.NullWriter() ).expand( text );
+		return text;
+	}
+}
@@ -0,0 +1,692 @@
+package com.holub.hml;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Looks for regular expressions that can take much more than linear time to fail,
+ *  which is how a macro hangs the renderer. A definition is analyzed in two steps:
+ *  <ol>
+ *  <li>A static check of the expression's source, which flags the shapes that
+ *  	cause runaway backtracking:
+ *  	<ul>
+ *  	<li>nested quantifiers: a repeated group that contains a repeated
+ *  		element, like <code>(([ \t]+.*\n)*)</code>, where the matcher
+ *  		can divide the same text among the iterations in many ways.</li>
+ *  	<li>overlapping quantifiers: adjacent repeated elements that can match the
+ *  		same characters, like <code>\s*(.*?)\s*</code>, where the matcher tries
+ *  		every way of splitting the text between them.</li>
+ *  	<li>unbounded DOTALL spans: a <code>.*?</code> (or <code>.*</code>) that can cross
+ *  		line boundaries, like <code>\[\*.*?\*\]</code>, which scans to the end of the
+ *  		input from every place that the expression could start if the terminator is missing.</li>
+ *  	</ul></li>
+ *  <li>A probe, which runs the expression over inputs that are built to make it fail
+ *  	slowly (repetitions of the literals and characters that the expression
+ *  	looks for, with nothing to terminate the match) at two sizes, and compares the
+ *  	amount of work done. The work is measured by counting the characters that the
+ *  	matcher reads, not with a clock, so the result is the same on every run and
+ *  	doesn't depend on how warmed up the JIT is. The matcher is stopped once it
+ *  	has read {@link #BUDGET} characters, which bounds the probe's cost even for an
+ *  	exponential expression.</li>
+ *  </ol>
+ *  The static check is fast but pessimistic (many expressions that have the right shape are
+ *  fine in practice because something else anchors them), so a definition is reported as
+ *  risky only if the probe finds that the work grows faster than the input.
+ *  <p>
+ *  The results are cached by expression, so a definition that's loaded repeatedly
+ *  (e.g. a &lt;macro&gt; that's in every document) is only analyzed once.
+ *
+ * @author allen
+ */
+
+final class BacktrackingAnalyzer
+{
+	/** The probe stops the matcher once it has read this many characters. */
+	static final int BUDGET = 200000;
+
+	/** Work that grows at least this fast (as a power of the input size) is reported. */
+	private static final double RISKY_GROWTH = 1.5;
+
+	/** The probe's input sizes, in repetitions of the pumped string. */
+	private static final int SMALL = 32;
+	private static final int LARGE = 128;
+
+	/** Stop probing an expression after this many probes have run out of budget. */
+	private static final int MAX_BUDGETS  = 2;
+
+	private static final int MAX_PUMPS	  = 12;
+	private static final int MAX_PREFIXES = 3;
+	private static final int MAX_CACHED	  = 1024;
+
+	/** The characters used to work out which characters a character class (or ., \s, etc.) matches. */
+	private static final String alphabet;
+	static
+	{	StringBuilder b = new StringBuilder();
+		for( char c = 0; c < 128; ++c )
+			b.append( c );
+		alphabet = b.append( '\u00A0' ).append( '\u00E9' ).append( '\u4E2D' ).toString();
+	}
+
+	private static final Map<String,Risk>	cache	 = new ConcurrentHashMap<String,Risk>();
+	private static final Map<String,BitSet>	charSets = new ConcurrentHashMap<String,BitSet>();
+
+	//======================================================================
+	/** What the analyzer found out about an expression. Immutable. */
+	static final class Risk
+	{
+		private final List<String>	findings;
+		private final double		growth;
+		private final String		sample;
+
+		Risk( List<String> findings, double growth, String sample )
+		{	this.findings = Collections.unmodifiableList( findings );
+			this.growth	  = growth;
+			this.sample	  = sample;
+		}
+
+		/** The problems that the static check found (empty if none). */
+		List<String> findings()
+		{	return findings;
+		}
+
+		/** How fast the work grows with the size of the worst input that the probe tried:
+		 *  1 is linear, 2 is quadratic, and so forth. If the probe ran out of budget on the
+		 *  larger input, this is a lower bound. Infinity if it ran out of budget on the smaller one.
+		 */
+		double growth()
+		{	return growth;
+		}
+
+		/** True if the work grows fast enough that the definition could hang the renderer. */
+		boolean isRisky()
+		{	return growth >= RISKY_GROWTH;
+		}
+
+		@Override public String toString()
+		{
+			StringBuilder b = new StringBuilder();
+			if( isRisky() )
+			{	if( Double.isInfinite(growth) )
+					b.append( String.format("matching gave up after reading %d characters", BUDGET) );
+				else
+					b.append( String.format("matching time grows as n^%.1f", growth) );
+				b.append( " on input like \"" ).append( sample ).append( '"' );
+			}
+			else
+				b.append( "no super-linear input found" );
+
+			if( !findings.isEmpty() )
+				b.append( " (" ).append( join(findings) ).append( ')' );
+			return b.toString();
+		}
+
+		private static String join( List<String> strings )
+		{	StringBuilder b = new StringBuilder();
+			for( String s : strings )
+				b.append( b.length() > 0 ? "; " : "" ).append( s );
+			return b.toString();
+		}
+	}
+
+	//----------------------------------------------------------------------
+	/** Analyze the pattern (or return the cached result of an earlier analysis). */
+	static Risk analyze( Pattern pattern )
+	{
+		String key = pattern.flags() + "/" + pattern.pattern();
+		Risk risk = cache.get( key );
+		if( risk == null )
+		{
+			BacktrackingAnalyzer analyzer = new BacktrackingAnalyzer( pattern );
+			risk = analyzer.probe( analyzer.check() );
+
+			if( cache.size() >= MAX_CACHED )
+				cache.clear();
+			cache.put( key, risk );
+		}
+		return risk;
+	}
+
+	//======================================================================
+	// The static check. The expression is parsed into a tree of Nodes.
+	//
+	// alternation	: sequence ( '|' sequence )*
+	// sequence		: ( atom quantifier? )*
+	//======================================================================
+
+	private static class Node
+	{
+		final int	start;
+		int			end;
+
+		/** The characters matched by a single-character atom; null for groups and zero-width atoms. */
+		BitSet		chars;
+
+		/** The alternatives of a group; null for atoms. */
+		List<List<Node>> alternatives;
+
+		boolean		zeroWidth	= false;
+		boolean		dot			= false;	// "." in DOTALL mode.
+		boolean		atomic		= false;	// (?>...), or possessive.
+		boolean		unbounded	= false;	// *, +, or {n,}
+		boolean		repeated	= false;	// any quantifier that allows more than one.
+
+		Node( int start ){ this.start = start; }
+	}
+
+	private final Pattern		pattern;
+	private final String		source;
+	private int					position = 0;
+	private int					flags;
+
+	private final List<String>	findings = new ArrayList<String>();
+
+	/** One example of each kind of character that a repeated atom matches, used to build probe input. */
+	private final Set<String>	repeatedChars = new LinkedHashSet<String>();
+
+	private BacktrackingAnalyzer( Pattern pattern )
+	{	this.pattern = pattern;
+		this.source	 = pattern.pattern();
+		this.flags	 = pattern.flags();
+	}
+
+	/** Run the static check, returning the findings. */
+	private List<String> check()
+	{
+		if( (flags & (Pattern.LITERAL | Pattern.COMMENTS)) != 0 )
+			return findings;
+
+		try
+		{	List<List<Node>> expression = alternation();
+			if( position == source.length() )
+				inspect( expression, false );
+		}
+		catch( RuntimeException e )		// Something we don't understand. The expression compiled, so
+		{								// it's legal, and the probe still applies.
+		}
+		return findings;
+	}
+
+	private List<List<Node>> alternation()
+	{
+		List<List<Node>> alternatives = new ArrayList<List<Node>>();
+		alternatives.add( sequence() );
+		while( position < source.length() && source.charAt(position) == '|' )
+		{	++position;
+			alternatives.add( sequence() );
+		}
+		return alternatives;
+	}
+
+	private List<Node> sequence()
+	{
+		List<Node> nodes = new ArrayList<Node>();
+		while( position < source.length() && source.charAt(position) != '|' && source.charAt(position) != ')' )
+		{	Node node = atom();
+			if( node != null )
+				nodes.add( quantified(node) );
+		}
+		return nodes;
+	}
+
+	private Node quantified( Node node )
+	{
+		if( position < source.length() )
+		{
+			switch( source.charAt(position) )
+			{
+			case '?':	++position;								break;
+			case '*':
+			case '+':	++position; node.unbounded = node.repeated = true;	break;
+			case '{':	repetition( node );						break;
+			default:	node.end = position;
+						return node;
+			}
+
+			if( position < source.length() && source.charAt(position) == '?' )
+				++position;
+			else if( position < source.length() && source.charAt(position) == '+' )
+			{	++position;
+				node.atomic = true;
+			}
+		}
+		node.end = position;
+		return node;
+	}
+
+	private void repetition( Node node )
+	{
+		int close = source.indexOf( '}', position );
+		String body = source.substring( position + 1, close );
+		position = close + 1;
+
+		int comma = body.indexOf( ',' );
+		if( comma < 0 )
+			node.repeated = Integer.parseInt( body.trim() ) > 1;
+		else if( body.substring(comma + 1).trim().length() == 0 )
+			node.unbounded = node.repeated = true;
+		else
+			node.repeated = Integer.parseInt( body.substring(comma + 1).trim() ) > 1;
+	}
+
+	/** Return the next atom, or null for an inline flag setting like (?s). */
+	private Node atom()
+	{
+		int	 start = position;
+		char c	   = source.charAt( position++ );
+		switch( c )
+		{
+		case '(':	return group( start );
+		case '^':
+		case '$':	return zeroWidth( start );
+		case '[':	skipClass();
+					return character( start );
+		case '\\':	return escape( start );
+		default:	return character( start );
+		}
+	}
+
+	private Node group( int start )
+	{
+		boolean lookaround	= false;
+		boolean atomic		= false;
+		int		outerFlags	= flags;
+
+		if( source.startsWith("?", position) )
+		{
+			if( source.startsWith("?:", position) )
+				position += 2;
+			else if( source.startsWith("?>", position) )
+			{	position += 2;
+				atomic = true;
+			}
+			else if( source.startsWith("?=", position) || source.startsWith("?!", position) )
+			{	position += 2;
+				lookaround = true;
+			}
+			else if( source.startsWith("?<=", position) || source.startsWith("?<!", position) )
+			{	position += 3;
+				lookaround = true;
+			}
+			else if( source.startsWith("?<", position) )			// named group
+				position = source.indexOf( '>', position ) + 1;
+			else
+			{	++position;											// inline flags: (?s) or (?s:...)
+				int newFlags = inlineFlags();
+				if( source.charAt(position++) == ')' )
+				{	flags = newFlags;								// applies to the rest of the enclosing group
+					return null;
+				}
+				flags = newFlags;
+			}
+		}
+
+		Node node = new Node( start );
+		node.alternatives = alternation();
+		node.atomic		  = atomic;
+		node.zeroWidth	  = lookaround;
+		flags = outerFlags;
+
+		if( source.charAt(position) != ')' )
+			throw new IllegalStateException( "unbalanced parentheses" );
+		++position;
+		return node;
+	}
+
+	/** Parse the letters of an inline flag setting (e.g. the s- in (?s-i)), returning the new flags. */
+	private int inlineFlags()
+	{
+		int		result	= flags;
+		boolean on		= true;
+		for( char c; (c = source.charAt(position)) != ')' && c != ':'; ++position )
+		{
+			int flag = 0;
+			switch( c )
+			{
+			case '-':	on = false;					continue;
+			case 's':	flag = Pattern.DOTALL;		break;
+			case 'i':	flag = Pattern.CASE_INSENSITIVE;break;
+			case 'm':	flag = Pattern.MULTILINE;	break;
+			case 'u':	flag = Pattern.UNICODE_CASE;break;
+			case 'd':	flag = Pattern.UNIX_LINES;	break;
+			case 'x':	flag = Pattern.COMMENTS;	break;
+			default:	break;
+			}
+			result = on ? (result | flag) : (result & ~flag);
+		}
+		return result;
+	}
+
+	private Node escape( int start )
+	{
+		char c = source.charAt( position++ );
+		switch( c )
+		{
+		case 'b': case 'B': case 'A': case 'z': case 'Z': case 'G':
+			return zeroWidth( start );
+
+		case 'p': case 'P':
+			if( source.startsWith("{", position) )
+				position = source.indexOf( '}', position ) + 1;
+			else
+				++position;
+			return character( start );
+
+		case 'Q':
+		{	int end = source.indexOf( "\\E", position );	// treat the quoted text as one (unrepeatable) atom
+			position = (end < 0) ? source.length() : end + 2;
+			return zeroWidth( start );
+		}
+		case 'x':	position += 2;	return character( start );
+		case 'u':	position += 4;	return character( start );
+		case 'c':	position += 1;	return character( start );
+		case '0':
+			while( position < source.length() && source.charAt(position) >= '0' && source.charAt(position) <= '7' )
+				++position;
+			return character( start );
+
+		default:
+			if( c >= '1' && c <= '9' )		// a back reference could match anything.
+			{	Node node = new Node( start );
+				node.chars = new BitSet();
+				node.chars.set( 0, alphabet.length() );
+				return node;
+			}
+			return character( start );
+		}
+	}
+
+	/** Skip past a character class, which might contain nested classes. */
+	private void skipClass()
+	{
+		if( source.charAt(position) == '^' )
+			++position;
+		if( source.charAt(position) == ']' )
+			++position;
+		for( int depth = 1; depth > 0; ++position )
+		{
+			char c = source.charAt( position );
+			if( c == '\\' )
+				++position;
+			else if( c == '[' )
+				++depth;
+			else if( c == ']' )
+				--depth;
+		}
+	}
+
+	private Node zeroWidth( int start )
+	{	Node node = new Node( start );
+		node.zeroWidth = true;
+		return node;
+	}
+
+	/** An atom that matches a single character: work out which ones by trying them. */
+	private Node character( int start )
+	{
+		Node node = new Node( start );
+		String atom = source.substring( start, position );
+		node.dot = atom.equals(".") && (flags & Pattern.DOTALL) != 0;
+
+		String key	 = flags + "/" + atom;
+		BitSet chars = charSets.get( key );
+		if( chars == null )
+		{	chars = new BitSet();
+			Matcher m = Pattern.compile( atom, flags ).matcher( "" );
+			for( int i = 0; i < alphabet.length(); ++i )
+				if( m.reset(alphabet.substring(i, i + 1)).matches() )
+					chars.set( i );
+			charSets.put( key, chars );
+		}
+		node.chars = chars;
+		return node;
+	}
+
+	//----------------------------------------------------------------------
+	/** Walk the tree looking for trouble.
+	 * @param insideRepeat true if the nodes are inside a group that can repeat without limit.
+	 */
+	private void inspect( List<List<Node>> alternatives, boolean insideRepeat )
+	{
+		for( List<Node> sequence : alternatives )
+		{
+			Node previous = null;
+			for( Node node : sequence )
+			{
+				if( node.zeroWidth && node.alternatives == null )
+					continue;							// anchors don't separate adjacent repeats
+
+				if( node.zeroWidth )					// the contents of lookaround are checked, but
+				{	inspect( node.alternatives, false );// don't take part in the sequence.
+					continue;
+				}
+
+				boolean repeats = node.unbounded && !node.atomic;
+
+				if( repeats && node.chars != null )
+					repeatedChars.add( representative(node.chars) );
+
+				if( node.dot && repeats )
+					report( "unbounded DOTALL span %s", node );
+
+				if( node.alternatives != null )
+				{
+					if( repeats && containsRepeat(node.alternatives) )
+						report( "nested quantifiers in %s", node );
+					inspect( node.alternatives, insideRepeat || repeats );
+				}
+
+				if( previous != null )
+				{	BitSet tail = tail( previous );
+					BitSet head = head( node );
+					if( tail != null && head != null && tail.intersects(head) )
+						findings.add( "overlapping quantifiers " + source.substring(previous.start, node.end) );
+				}
+				previous = node;
+			}
+		}
+	}
+
+	private void report( String format, Node node )
+	{	findings.add( String.format(format, source.substring(node.start, node.end)) );
+	}
+
+	/** True if something in the alternatives (outside of lookaround) can repeat without limit. */
+	private static boolean containsRepeat( List<List<Node>> alternatives )
+	{
+		for( List<Node> sequence : alternatives )
+			for( Node node : sequence )
+			{	if( node.zeroWidth || node.atomic )
+					continue;
+				if( node.unbounded )
+					return true;
+				if( node.alternatives != null && containsRepeat(node.alternatives) )
+					return true;
+			}
+		return false;
+	}
+
+	/** The characters that an unbounded repeat at the end of the node could consume, or null if there's no such repeat. */
+	private static BitSet tail( Node node )
+	{	return edge( node, false );
+	}
+
+	/** The characters that an unbounded repeat at the start of the node could consume, or null if there's no such repeat. */
+	private static BitSet head( Node node )
+	{	return edge( node, true );
+	}
+
+	private static BitSet edge( Node node, boolean first )
+	{
+		if( node.atomic || node.zeroWidth )
+			return null;
+
+		if( node.unbounded )
+			return node.chars != null ? node.chars : allChars( node.alternatives );
+
+		if( node.alternatives == null || node.repeated )
+			return null;
+
+		BitSet result = null;
+		for( List<Node> sequence : node.alternatives )
+		{
+			if( sequence.isEmpty() )
+				continue;
+			BitSet edge = edge( sequence.get(first ? 0 : sequence.size() - 1), first );
+			if( edge != null )
+			{	if( result == null )
+					result = new BitSet();
+				result.or( edge );
+			}
+		}
+		return result;
+	}
+
+	/** Every character that any atom in the alternatives matches. */
+	private static BitSet allChars( List<List<Node>> alternatives )
+	{
+		BitSet result = new BitSet();
+		for( List<Node> sequence : alternatives )
+			for( Node node : sequence )
+			{	if( node.chars != null )
+					result.or( node.chars );
+				else if( node.alternatives != null && !node.zeroWidth )
+					result.or( allChars(node.alternatives) );
+			}
+		return result;
+	}
+
+	/** Pick a typical member of the set: a space, a letter, or a newline if possible. */
+	private static String representative( BitSet chars )
+	{
+		for( char c : new char[]{ ' ', 'a', '\n', '0', '-' } )
+			if( chars.get(c) )
+				return String.valueOf( c );
+
+		int first = chars.nextSetBit( 0 );
+		return first < 0 ? "" : alphabet.substring( first, first + 1 );
+	}
+
+	//======================================================================
+	// The probe.
+	//======================================================================
+
+	/** A CharSequence that counts the characters read from it, and stops the
+	 *  matcher by throwing Exhausted once the count passes the budget.
+	 */
+	private static final class CountingSequence implements CharSequence
+	{
+		private final String text;
+		long				 reads = 0;
+
+		CountingSequence( String text ){ this.text = text; }
+
+		@Override public char charAt( int index )
+		{	if( ++reads > BUDGET )
+				throw new Exhausted();
+			return text.charAt( index );
+		}
+		@Override public int			length()						{ return text.length();	}
+		@Override public CharSequence	subSequence( int start, int end ){ return text.subSequence(start, end); }
+		@Override public String			toString()						{ return text; }
+	}
+
+	private static final class Exhausted extends RuntimeException
+	{	private static final long serialVersionUID = 1L;
+	}
+
+	/** Probe the expression, returning the findings together with the worst growth rate found
+	 *  (or the growth found before the probe used up its budget).
+	 */
+	private Risk probe( List<String> findings )
+	{
+		Set<String> prefixes = new LinkedHashSet<String>();
+		Set<String> pumps	 = new LinkedHashSet<String>();
+		prefixes.add( "" );
+
+		String[] literals = RequiredLiterals.of( pattern );
+		if( literals != null )
+			for( String literal : literals )
+			{	if( prefixes.size() < MAX_PREFIXES )
+					prefixes.add( literal );
+				pumps.add( literal );
+			}
+
+		pumps.addAll( repeatedChars );
+		pumps.add( " " );
+		pumps.add( "a" );
+		pumps.add( "\n" );
+		for( String c : repeatedChars )
+			pumps.add( c + "\n" );
+
+		double worst  = 0;
+		String sample = "";
+		int	   tried  = 0;
+		int	   spent  = 0;		// the number of probes that ran out of budget
+
+		search:
+		for( String pump : pumps )
+		{
+			if( pump.length() == 0 )
+				continue;
+			if( ++tried > MAX_PUMPS )
+				break;
+
+			for( String prefix : prefixes )
+			{
+				long   small  = work( prefix, pump, SMALL );
+				long   large  = (small > BUDGET) ? small : work( prefix, pump, LARGE );
+				double growth = (small > BUDGET) ? Double.POSITIVE_INFINITY
+												 : Math.log( (double)Math.min(large, BUDGET) / Math.max(small, 1) )
+												   / Math.log( (double)LARGE / SMALL );
+				if( growth > worst )
+				{	worst  = growth;
+					sample = abbreviate( prefix, pump );
+				}
+				if( large > BUDGET )
+					++spent;
+				if( Double.isInfinite(worst) || spent > MAX_BUDGETS )
+					break search;
+			}
+		}
+		return new Risk( new ArrayList<String>(findings), worst, sample );
+	}
+
+	/** Return the number of characters read while finding every match in prefix + pump repeated count times,
+	 *  or more than {@link #BUDGET} if the matcher ran out of budget.
+	 */
+	private long work( String prefix, String pump, int count )
+	{
+		StringBuilder text = new StringBuilder( prefix );
+		for( int i = 0; i < count; ++i )
+			text.append( pump );
+
+		CountingSequence input = new CountingSequence( text.toString() );
+		try
+		{	Matcher m = pattern.matcher( input );
+			while( m.find() )
+				;
+		}
+		catch( Exhausted e )
+		{	return BUDGET + 1L;
+		}
+		catch( StackOverflowError e )	// deeply nested repeats can overflow instead of backtracking.
+		{	return BUDGET + 1L;
+		}
+		return input.reads;
+	}
+
+	private static String abbreviate( String prefix, String pump )
+	{
+		StringBuilder b = new StringBuilder( prefix );
+		while( b.length() < prefix.length() + 12 )
+			b.append( pump );
+		return b.append( "..." ).toString().replace( "\n", "\\n" ).replace( "\t", "\\t" );
+	}
+}
@@ -0,0 +1,284 @@
+package com.holub.hml;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.holub.text.Text;
+import com.holub.util.ExtendedLogger;
+
+/** Processes a whole set of documents, concurrently. The documents
+ *  come either from a directory tree (every .hml file in the tree is
+ *  processed, and the output for x.hml goes to x.html) or from a
+ *  manifest file that lists the input files, one per line:
+ *  <pre>
+ *  # comments and blank lines are ignored
+ *  chapter1.hml
+ *  chapter2.hml  out/chapter2.html
+ *  </pre>
+ *  If there's no output-file name, the .hml extension is replaced with .html
+ *  (or .html is appended if the input file doesn't have an .hml extension).
+ *  Relative paths are relative to the directory that holds the manifest.
+ *  <p>
+ *  The macros, head, and tail are loaded once (by an {@link HmlEngine}) and shared
+ *  by all the documents, but every document gets its own {@link Hml} object, so user-defined macros
+ *  and configuration changes in one document don't affect the others.
+ *  Each document is processed on its own thread. Virtual threads are used if the
+ *  JVM supports them, otherwise a pool with one thread per processor is used.
+ *  <p>
+ *  Timing and error information for every document, along with a summary,
+ *  is printed on the report writer.
+ *
+ * @author allen
+ */
+
+public class Batch
+{
+	private static final ExtendedLogger log = ExtendedLogger.getLogger(Batch.class);
+
+	private final Writer	report;
+	private final HmlEngine	engine;
+
+	/** Errors found when loading the shared resources */
+	private final int		setupErrors;
+
+	/** Create a batch processor that prints its report to the indicated writer. */
+	public Batch( Writer report ) throws IOException
+	{	this( report, null );
+	}
+	
+	/** Create a batch processor that also records timing information in stats (unless it's null). */
+	public Batch( Writer report, Stats stats ) throws IOException
+	{
+		this.report = report;
+		engine		= new HmlEngine( stats );
+		setupErrors	= engine.setupErrorCount();
+
+		if( setupErrors > 0 )
+			report.write( engine.setupErrors() );
+	}
+
+	/** Use the indicated cache for the text macros in every document (see
+	 *  {@link HmlEngine#useSegmentCache(SegmentCache)}). Pass null to stop caching.
+	 */
+	public void useSegmentCache( SegmentCache cache )
+	{	engine.useSegmentCache( cache );
+	}
+
+	//----------------------------------------------------------------------
+	/** Process every .hml file in the indicated directory, and in all of its subdirectories.
+	 *  @return the total number of errors found in all documents.
+	 */
+	public int processDirectory( File directory ) throws IOException
+	{
+		if( !directory.isDirectory() )
+		{	report.write( String.format("ERROR: %s is not a directory\n", directory) );
+			return setupErrors + 1;
+		}
+
+		List<Job> jobs = new ArrayList<Job>();
+		findHmlFiles( directory, jobs );
+		return process( jobs );
+	}
+
+	private void findHmlFiles( File directory, List<Job> jobs )
+	{
+		File[] contents = directory.listFiles();
+		if( contents == null )
+			return;
+
+		for( File file : contents )
+		{	if( file.isDirectory() )
+				findHmlFiles( file, jobs );
+			else if( file.getName().endsWith(".hml") )
+				jobs.add( new Job(file, outputFileFor(file)) );
+		}
+	}
+
+	/** Process the files listed in the manifest.
+	 *  @return the total number of errors found in all documents.
+	 */
+	public int processManifest( File manifest ) throws IOException
+	{
+		File base = manifest.getAbsoluteFile().getParentFile();
+		List<Job> jobs = new ArrayList<Job>();
+
+		BufferedReader in = new BufferedReader( new FileReader(manifest) );
+		try
+		{
+			String line;
+			while( (line = in.readLine()) != null )
+			{
+				line = line.trim();
+				if( line.length() == 0 || line.startsWith("#") )
+					continue;
+
+				String[] names  = line.split("\\s+");
+				File     input  = resolve( base, names[0] );
+				File     output = names.length > 1 ? resolve(base, names[1]) : outputFileFor(input);
+				jobs.add( new Job(input, output) );
+			}
+		}
+		finally
+		{	in.close();
+		}
+
+		return process( jobs );
+	}
+
+	private static File resolve( File base, String name )
+	{	File file = new File(name);
+		return file.isAbsolute() ? file : new File(base, name);
+	}
+
+	private static File outputFileFor( File input )
+	{	String name = input.getPath();
+		if( name.endsWith(".hml") )
+			name = name.substring( 0, name.length() - ".hml".length() );
+		return new File( name + ".html" );
+	}
+
+	//----------------------------------------------------------------------
+	/** Run all the jobs, wait for them to finish, and print the report.
+	 *  @return the total error count.
+	 */
+	private int process( List<Job> jobs ) throws IOException
+	{
+		long			start	 = System.nanoTime();
+		ExecutorService	executor = newExecutor();
+		List<Future<Result>> results = new ArrayList<Future<Result>>();
+		try
+		{
+			for( Job job : jobs )
+				results.add( executor.submit(job) );
+
+			int errorCount = setupErrors;
+			for( int i = 0; i < results.size(); ++i )
+			{
+				Result result;
+				try
+				{	result = results.get(i).get();
+				}
+				catch( InterruptedException e )
+				{	Thread.currentThread().interrupt();
+					throw new IOException( "Interrupted while waiting for batch to complete", e );
+				}
+				catch( ExecutionException e )
+				{	log.error( "Unexpected exception processing " + jobs.get(i).input, e.getCause() );
+					result = new Result( jobs.get(i).input, 1, 0, String.valueOf(e.getCause()) );
+				}
+
+				errorCount += result.errorCount;
+				report.write( result.toString() );
+			}
+
+			report.write( String.format("%d files, %d errors, %.1f ms\n",
+										jobs.size(), errorCount, (System.nanoTime() - start) / 1e6) );
+			report.flush();
+			return errorCount;
+		}
+		finally
+		{	executor.shutdown();
+		}
+	}
+
+	/** Return an executor that runs each task on its own virtual thread if the JVM
+	 *  supports that (Java 21 and later), otherwise one with a thread per processor.
+	 *  Reflection is used so that we can still compile and run on older JVMs.
+	 */
+	private static ExecutorService newExecutor()
+	{
+		try
+		{	return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch( Exception e )
+		{	return Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		}
+	}
+
+	//======================================================================
+	private class Job implements Callable<Result>
+	{
+		final File input;
+		final File output;
+
+		Job( File input, File output )
+		{	this.input  = input;
+			this.output = output;
+		}
+
+		@Override public Result call() throws IOException
+		{
+			long		start  = System.nanoTime();
+			StringWriter errors = new StringWriter();
+
+			if( !input.canRead() )
+				return new Result( input, 1, 0, "ERROR: Can't read " + input );
+
+			Text   text;
+			Reader in = new FileReader(input);
+			try
+			{	text = new Text(in);
+			}
+			finally
+			{	in.close();
+			}
+
+			Hml		processor;
+			boolean	finished = false;
+			Writer	out		 = new FileWriter(output);
+			try
+			{	processor = engine.newRenderer( out, errors );
+				try
+				{	processor.expandAndPrint( text );
+					processor.closeCurrentOutputStream();
+					finished = true;
+				}
+				finally
+				{	processor.discardSpilledOutput();	// if processing stopped before the output was closed
+				}
+			}
+			finally
+			{	out.close();					// the renderer has already closed it unless something went wrong
+				if( !finished && !output.delete() )
+					log.error( "Couldn't delete partial output file %s", output.getPath() );
+			}
+
+			return new Result( input, processor.getErrorCount(), System.nanoTime() - start, errors.toString() );
+		}
+	}
+
+	//======================================================================
+	private static class Result
+	{
+		final File		input;
+		final int		errorCount;
+		final long		elapsed;	// nanoseconds
+		final String	errors;
+
+		Result( File input, int errorCount, long elapsed, String errors )
+		{	this.input		= input;
+			this.errorCount	= errorCount;
+			this.elapsed	= elapsed;
+			this.errors		= errors;
+		}
+
+		@Override public String toString()
+		{
+			String summary = String.format( "%s: %d errors, %.1f ms\n", input.getPath(), errorCount, elapsed / 1e6 );
+			return (errorCount == 0 || errors.length() == 0) ? summary : summary + errors.trim() + "\n";
+		}
+	}
+}
@@ -19,17 +19,24 @@ import com.holub.text.*;
  *  processor could convert the harmless characters (everything except 
  *  	< ` {
  *  ) back to the single character if it wanted to, but it doesn't.
+ *  <p>
+ *  Each snippet is processed independently of the others, so this
+ *  is a {@link Filter.Stateless} filter.
  *  
  * @author allen
  */
 
-public class CodeSnippets implements Filter
+public class CodeSnippets implements Filter.Stateless, Filter.Selective
 {
 	private static final Pattern escapedBackquote = Pattern.compile("\\\\`");
 	@Override public boolean isSnippetFilter() 	 { return true;  }
 	@Override public boolean isCodeBlockFilter() { return false; }
 	@Override public boolean isTextFilter() 	 { return false; }
 	
+	@Override public boolean isNeededFor( CharSequence document )
+	{	return document.toString().indexOf('`') >= 0;
+	}
+	
 	public CodeSnippets( Configuration config )
 	{	// for now, ignore the configuration.
 	}
@@ -18,8 +18,22 @@ import com.holub.text.Text;
  *  
  * @author allen
  */
-public class Configuration implements Filter
+public class Configuration implements Filter.Selective
 {
+	/** The regular-expression engines that macros can be matched with, chosen
+	 *  by the regexEngine key (e.g. <code>regexEngine=backtracking</code>).
+	 *  <ul>
+	 *  <li>LINEAR (the default) matches every macro that it can with the linear-time
+	 *  	engine ({@link LinearPattern}), which can't be made to hang, and the
+	 *  	others (the ones that use back references, for example) with {@link java.util.regex.Pattern}.</li>
+	 *  <li>BACKTRACKING matches every macro with {@link java.util.regex.Pattern}.</li>
+	 *  </ul>
+	 *  Both engines find the same matches, so the choice only affects how long matching takes.
+	 */
+	public enum RegexEngine { LINEAR, BACKTRACKING }
+	
+	private static final String REGEX_ENGINE = "regexEngine";
+	
 	private final ReportingStream	error;
 	private final Properties		values = new Properties();
 	
@@ -47,6 +61,12 @@ public class Configuration implements Filter
 								"Malformed configuration. Must use key=value pairs, one per line." );
 						}
 						
+						String engine = value( REGEX_ENGINE );
+						if( engine != null && parseRegexEngine(engine) == null )
+						{	error.report(start, context,
+								"Unknown %s (%s). Must be linear or backtracking.", REGEX_ENGINE, engine );
+						}
+						
 						return Text.EMPTY;	// remove <configuration> element from the document
 					}
 				}
@@ -77,8 +97,31 @@ public class Configuration implements Filter
 		if( !values.containsKey(key) )
 			values.setProperty(key, value);
 	}
+	
+	/** The engine that macros should be matched with: the one specified by
+	 *  the regexEngine key, or {@link RegexEngine#LINEAR} if there isn't one
+	 *  (or if it's not recognized).
+	 */
+	public RegexEngine regexEngine()
+	{	String		value  = value( REGEX_ENGINE );
+		RegexEngine engine = (value == null) ? null : parseRegexEngine( value );
+		return engine == null ? RegexEngine.LINEAR : engine;
+	}
+	
+	private static RegexEngine parseRegexEngine( String value )
+	{	try
+		{	return RegexEngine.valueOf( value.trim().toUpperCase() );
+		}
+		catch( IllegalArgumentException e )
+		{	return null;
+		}
+	}
 
 	@Override public boolean isCodeBlockFilter(){ return false; } 
 	@Override public boolean isSnippetFilter() 	{ return false; }
 	@Override public boolean isTextFilter() 	{ return true;  }
+	
+	@Override public boolean isNeededFor( CharSequence document )
+	{	return document.toString().contains("HMLconfig");
+	}
 }
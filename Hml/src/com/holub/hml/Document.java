@@ -0,0 +1,354 @@
+package com.holub.hml;
+
+import java.util.*;
+
+import com.holub.hml.Pass.Type;
+import com.holub.text.Text;
+import com.holub.util.ExtendedLogger;
+import org.apache.log4j.Level;
+
+/** A document that's being run through a series of {@link Pass} objects, along with
+ *  the segment structure (text, code blocks, snippets, comments) found by the lexer.
+ *  <p>
+ *  The document is lexed once, when it's created. After that, each pass reports
+ *  the changes that its filters made (see {@link Editor}), and only the regions of
+ *  the document that a filter actually changed are re-lexed before the next
+ *  pass runs. Tokens in unchanged regions are just shifted to their new positions.
+ *  The token stream produced this way is identical to the one you'd get by lexing
+ *  the whole document from scratch.
+ *  <p>
+ *  A re-lexed region (a "window") is the changed region expanded outwards until
+ *  no token could possibly cross its boundary:
+ *  <ul>
+ *  <li>to full lines (the SNIPPET and PRE_SHORTHAND recognizers look at line boundaries,
+ *  	and the SNIPPET and COMMENT recognizers look one character to either side);</li>
+ *  <li>to include an unterminated &lt; on either side, because the &lt;pre...&gt;
+ *  	and &lt;listing...&gt; recognizers scan forward to the first &gt;;</li>
+ *  <li>to include any surviving token that crosses the boundary, and any PRE_SHORTHAND
+ *  	block that touches it (those blocks can grow to swallow adjacent comma lines).</li>
+ *  </ul>
+ *  This process is repeated until the window stops growing.
+ *
+ * @author allen
+ */
+
+public class Document
+{
+	private static final ExtendedLogger log = ExtendedLogger.getLogger(Document.class);
+
+	private String		text;
+
+	/** The non-TEXT tokens, in order. TEXT tokens are synthesized in {@link #tokens()}.
+	 *  Not valid if {@link #dirty} isn't empty. The spare list is used to build a new
+	 *  version of the tokens list, and then the two are swapped. The segments list
+	 *  is the one returned from {@link #tokens()}. Reusing the lists this way means
+	 *  that nothing is allocated once the lists are big enough.
+	 */
+	private TokenList	tokens	 = new TokenList();
+	private TokenList	spare	 = new TokenList();
+	private TokenList	segments = new TokenList();
+
+	/** Regions of {@link #text} (start/end pairs, in order) that have changed since
+	 *  the tokens were last brought up to date.
+	 */
+	private int[]		dirty	   = new int[0];
+	private int			dirtyCount = 0;
+
+	private long		charactersLexed = 0;
+
+	public Document( CharSequence input )
+	{	text = input.toString();
+		markDirty(0, text.length());
+	}
+
+	/** Return the current contents of the document */
+	@Override public String toString()
+	{	return text;
+	}
+
+	/** Return the current contents of the document as a new Text object. */
+	public Text toText()
+	{	return new Text(text);
+	}
+
+	public int length()
+	{	return text.length();
+	}
+
+	/** The total number of characters that have been run through the lexer
+	 *  since this document was created. Useful for verifying that passes
+	 *  that don't change much don't cause much re-lexing.
+	 */
+	public long charactersLexed()
+	{	return charactersLexed;
+	}
+
+	//----------------------------------------------------------------------
+	/** Return all the tokens in the document, in order, including TEXT tokens
+	 *  that represent everything that falls between the other tokens.
+	 *  The returned list belongs to the document, and is overwritten the next
+	 *  time this method is called. Don't modify it.
+	 */
+	TokenList tokens()
+	{
+		relexDirtyRegions();
+
+		segments.clear();
+		int current = 0;
+		for( int i = 0; i < tokens.size(); ++i )
+		{	if( current < tokens.start(i) )
+				segments.add( Type.TEXT, current, tokens.start(i) );
+			segments.add( tokens, i, 0 );
+			current = tokens.end(i);
+		}
+		if( current < text.length() )
+			segments.add( Type.TEXT, current, text.length() );
+
+		return segments;
+	}
+
+	//----------------------------------------------------------------------
+	/** Records the output of a pass. The output is assembled from a set of
+	 *  pieces, each of which replaces a region of the original input.
+	 *  Regions of the original input that aren't covered by some piece are
+	 *  removed from the output. Nothing happens to the document until you
+	 *  call {@link #commit()}.
+	 */
+	class Editor
+	{
+		private final StringBuilder output	 = new StringBuilder( text.length() );
+		private int[] 				changes	 = new int[16];	// inputStart, inputEnd, outputStart, outputEnd
+		private int 				changeCount = 0;
+		private int					consumed = 0;			// input position up to which we've produced output.
+
+		/** Replace the input between start and end with the indicated replacement text. */
+		void emit( int start, int end, CharSequence replacement )
+		{
+			assert start >= consumed : "Pieces must be emitted in order";
+
+			if( start > consumed )					// input was skipped, so it's effectively deleted.
+				recordChange( consumed, start, output.length(), output.length() );
+
+			int outputStart = output.length();
+			output.append( replacement );
+
+			if( !sameAsInput(start, end, replacement) )
+				recordChange( start, end, outputStart, output.length() );
+
+			consumed = end;
+		}
+
+		/** Copy the input between start and end to the output without modification.
+		 *  This is equivalent to {@code emit(start, end, text.subSequence(start,end))},
+		 *  but it doesn't need to create the subsequence or compare it to the input.
+		 */
+		void copy( int start, int end )
+		{
+			assert start >= consumed : "Pieces must be emitted in order";
+
+			if( start > consumed )
+				recordChange( consumed, start, output.length(), output.length() );
+
+			output.append( text, start, end );
+			consumed = end;
+		}
+
+		/** Replace the document's contents with the assembled output.
+		 */
+		void commit()
+		{
+			if( consumed < text.length() )
+				recordChange( consumed, text.length(), output.length(), output.length() );
+
+			if( changeCount == 0 )			// nothing changed, so the tokens are still good.
+				return;
+
+			shiftTokens( changes, changeCount );
+			text = output.toString();
+		}
+
+		private boolean sameAsInput( int start, int end, CharSequence replacement )
+		{
+			if( replacement.length() != end - start )
+				return false;
+
+			for( int i = replacement.length(); --i >= 0 ; )
+				if( replacement.charAt(i) != text.charAt(start + i) )
+					return false;
+			return true;
+		}
+
+		private void recordChange( int inputStart, int inputEnd, int outputStart, int outputEnd )
+		{
+			// Merge adjacent changes to keep the list short.
+			if( changeCount > 0 && changes[changeCount-3] == inputStart && changes[changeCount-1] == outputStart )
+			{	changes[changeCount-3] = inputEnd;
+				changes[changeCount-1] = outputEnd;
+				return;
+			}
+
+			if( changeCount + 4 > changes.length )
+				changes = Arrays.copyOf( changes, changes.length * 2 );
+
+			changes[changeCount++] = inputStart;
+			changes[changeCount++] = inputEnd;
+			changes[changeCount++] = outputStart;
+			changes[changeCount++] = outputEnd;
+		}
+	}
+
+	Editor edit()
+	{	return new Editor();
+	}
+
+	//----------------------------------------------------------------------
+	/** Move the tokens that weren't in a changed region to their new positions
+	 *  and discard the tokens that were. The changed regions (in the new text)
+	 *  are marked as dirty.
+	 */
+	private void shiftTokens( int[] changes, int changeCount )
+	{
+		relexDirtyRegions();	// make sure that the current tokens are valid before we move them around.
+
+		spare.clear();
+		int i	  = 0;
+		int delta = 0;
+
+		for( int c = 0; c < changeCount; c += 4 )
+		{
+			int inputStart	= changes[c];
+			int inputEnd	= changes[c+1];
+
+			for( ; i < tokens.size() && tokens.end(i) <= inputStart; ++i )
+				spare.add( tokens, i, delta );
+
+			for( ; i < tokens.size() && tokens.start(i) < inputEnd; ++i )
+				;	// discard tokens in changed region
+
+			markDirty( changes[c+2], changes[c+3] );
+			delta = changes[c+3] - inputEnd;
+		}
+
+		for( ; i < tokens.size(); ++i )
+			spare.add( tokens, i, delta );
+
+		swapTokenLists();
+	}
+
+	private void swapTokenLists()
+	{	TokenList tmp = tokens;
+		tokens = spare;
+		spare  = tmp;
+	}
+
+	private void markDirty( int start, int end )
+	{
+		if( dirtyCount + 2 > dirty.length )
+			dirty = Arrays.copyOf( dirty, Math.max(16, dirty.length * 2) );
+		dirty[dirtyCount++] = start;
+		dirty[dirtyCount++] = end;
+	}
+
+	//----------------------------------------------------------------------
+	/** Re-lex every region marked as dirty, replacing whatever tokens are in it.
+	 */
+	private void relexDirtyRegions()
+	{
+		if( dirtyCount == 0 )
+			return;
+
+		spare.clear();
+		int next = 0;	// index in tokens of the first token not yet transferred to relexed
+
+		for( int d = 0; d < dirtyCount; )
+		{
+			int windowStart = dirty[d];
+			int windowEnd	= dirty[d+1];
+			d += 2;
+
+			// Expand the window until it's stable, absorbing any subsequent dirty
+			// regions that the expanded window touches.
+			for( boolean changed = true; changed ; )
+			{
+				int start	= expandStart( windowStart );
+				int end		= expandEnd	 ( windowEnd );
+
+				int t = tokens.lastStartingBefore( start );
+				if( t >= 0 && (start < tokens.end(t) || (tokens.end(t) == start && tokens.match(t, Type.PRE_SHORTHAND))) )
+					start = tokens.start(t);
+
+				t = tokens.lastStartingBefore( end + 1 );
+				if( t >= 0 && (end < tokens.end(t) || (tokens.start(t) == end && tokens.match(t, Type.PRE_SHORTHAND))) )
+					end = tokens.end(t);
+
+				while( d < dirtyCount && expandStart(dirty[d]) <= end )
+				{	end = Math.max( end, dirty[d+1] );
+					d += 2;
+				}
+
+				changed = (start != windowStart || end != windowEnd);
+				windowStart = start;
+				windowEnd	= end;
+			}
+
+			while( next < tokens.size() && tokens.end(next) <= windowStart )
+				spare.add( tokens, next++, 0 );
+			while( next < tokens.size() && tokens.start(next) < windowEnd )
+				++next;
+
+			lex( windowStart, windowEnd, spare );
+		}
+
+		while( next < tokens.size() )
+			spare.add( tokens, next++, 0 );
+
+		swapTokenLists();
+		dirtyCount = 0;
+	}
+
+	/** Return the start of the window that must be re-lexed when the text at position
+	 *  start changes (not counting any tokens that cross the start position).
+	 *  Tokens of the same type don't overlap, and the only tokens that can be
+	 *  nested inside another token are found inside a &lt;...&gt; tag, which is
+	 *  taken care of here, so the only token that we need to check for crossing
+	 *  the position is the last one that starts before it.
+	 */
+	private int expandStart( int start )
+	{
+		int lastClose = text.lastIndexOf('>', start - 1);
+		int open	  = text.indexOf('<', lastClose + 1);
+		if( 0 <= open && open < start )
+			start = open;
+
+		return text.lastIndexOf('\n', start - 1) + 1;
+	}
+
+	/** Return the end of the window that must be re-lexed when the text at position
+	 *  end changes (not counting any tokens that cross the end position).
+	 */
+	private int expandEnd( int end )
+	{
+		if( text.lastIndexOf('<', end - 1) > text.lastIndexOf('>', end - 1) )
+		{	int close = text.indexOf('>', end);
+			end = (close < 0) ? text.length() : close + 1;
+		}
+
+		// Go to the end of the line that holds the character at end (not end-1),
+		// because if the change ends with a newline, it can turn the following
+		// line into a PRE_SHORTHAND line.
+		int newline = text.indexOf('\n', end);
+		return (newline < 0) ? text.length() : newline + 1;
+	}
+
+	/** Lex the region of the document between start and end, appending the
+	 *  non-TEXT tokens to the output list.
+	 */
+	private void lex( int start, int end, TokenList output )
+	{
+		charactersLexed += end - start;
+		Lexer.lex( text, start, end, output );
+
+		if( log.isEnabledFor(Level.TRACE) )
+			log.trace( "Lexed %d-%d (%d characters)", start, end, end - start );
+	}
+}
@@ -5,7 +5,7 @@ import java.util.regex.Pattern;
 
 import com.holub.text.Text;
 
-public class EntityUnmapper implements Filter
+public class EntityUnmapper implements Filter.Stateless, Filter.Selective
 {
 	private static final Pattern htmlEntity = Pattern.compile("&#(\\d+);");
 	
@@ -16,6 +16,10 @@ public class EntityUnmapper implements Filter
 	@Override public boolean isCodeBlockFilter(){ return false; }
 	@Override public boolean isSnippetFilter() 	{ return false; }
 	@Override public boolean isTextFilter() 	{ return true;	}
+	
+	@Override public boolean isNeededFor( CharSequence document )
+	{	return document.toString().contains("&#");
+	}
 
 	/**
 	 * Replace those HTML numeric (e.g. &#123;) entities that represent
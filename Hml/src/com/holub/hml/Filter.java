@@ -44,6 +44,41 @@ public interface Filter
 	 */
 	boolean isTextFilter();
 	
+	//----------------------------------------------------------------------
+	/** A marker interface for filters that are thread safe and that don't
+	 *  care about the order in which they see the segments of the document.
+	 *  That is, the filter's output for a given segment depends only on the
+	 *  segment itself, not on anything that the filter has seen before.
+	 *  The {@link Pass} that runs a Stateless filter is free to call
+	 *  {@link #filter(Text, Text, Text, BlockType)} from several threads at
+	 *  once, for any segment in any order, though the filtered segments are
+	 *  always reassembled in their original order.
+	 *  <p>
+	 *  Don't implement this interface if your filter keeps any state between
+	 *  calls (like a list of titles or a listing counter), or if it reports errors,
+	 *  since the errors could be reported out of order.
+	 */
+	public interface Stateless extends Filter
+	{}
+	
+	//----------------------------------------------------------------------
+	/** An interface for filters that can tell, just by looking at the whole
+	 *  document, that they won't change it (usually because the document
+	 *  doesn't contain the tag that they process). A {@link Pass} whose filters
+	 *  are all Selective filters that aren't needed for the current document
+	 *  may not run at all.
+	 */
+	public interface Selective extends Filter
+	{
+		/** Return false only if this filter is certain not to change any segment
+		 *  of the document, and not to report any errors. This method is called
+		 *  before the pass starts, and it should be much faster than the filter
+		 *  itself (a simple search for a keyword, for example). When in doubt,
+		 *  return true.
+		 */
+		boolean isNeededFor( CharSequence document );
+	}
+	
 	//----------------------------------------------------------------------
 	/** A default {@link Filter} that you can extend to simplify your
 	 *  implementation a bit. The default filter method outputs the concatenation
@@ -0,0 +1,211 @@
+package com.holub.hml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Level;
+
+import com.holub.hml.Macro.Definition;
+import com.holub.util.ExtendedLogger;
+
+/** A run of consecutive macros, each of which replaces literal text with literal text
+ *  (e.g. <code>[tm]</code> with <code>&amp;trade;</code>, or the accented-letter
+ *  family), applied together in a single left-to-right scan of the input instead of
+ *  one scan (and one copy) per macro.
+ *  <p>
+ *  A single scan gives the same result as applying the macros one after another only
+ *  if the macros don't interact, so {@link #canAdd(List, Definition)} only lets a
+ *  macro into a run if:
+ *  <ul>
+ *  <li>none of its patterns overlaps a pattern already in the run (or another one
+ *  	of its own): no pattern contains another, and no pattern ends with the beginning
+ *  	of another. Every occurrence of every pattern in the input is then separate from
+ *  	the others, so replacing one can't affect whether another is replaced.</li>
+ *  <li>none of its patterns overlaps the replacement text of an earlier macro in the
+ *  	run, so an earlier macro can't create input for it. (An empty replacement
+ *  	could join two strings together to create a match, so macros that delete
+ *  	text aren't fused.)</li>
+ *  </ul>
+ *  Instances are immutable, so they can be used by several threads at once.
+ *
+ * @author allen
+ */
+
+final class FusedLiteralMacros
+{
+	private static ExtendedLogger log = ExtendedLogger.getLogger(FusedLiteralMacros.class);
+	
+	private final List<Definition>	members;
+	private final String			label;
+
+	private final String[]	patterns;
+	private final String[]	replacements;	// replacements[i] replaces patterns[i]
+
+	/** The patterns that start with firstChars[i] are the ones whose indexes are in startingWith[i]. */
+	private final char[]	firstChars;
+	private final int[][]	startingWith;
+
+	/** For characters below 128, the index in firstChars + 1, or 0 if no pattern starts with the character. */
+	private final int[]		ascii = new int[128];
+
+	//----------------------------------------------------------------------
+	/** Return true if the definition replaces literal text with literal text. */
+	static boolean canFuse( Definition definition )
+	{	return definition.literalMatches() != null
+			&& definition.constantReplacement() != null
+			&& definition.constantReplacement().length() > 0;
+	}
+
+	/** Return true if the definition (which must satisfy {@link #canFuse(Definition)})
+	 *  can be added to the end of the run without changing the result.
+	 */
+	static boolean canAdd( List<Definition> run, Definition definition )
+	{
+		String[] candidates = definition.literalMatches();
+
+		for( int i = 0; i < candidates.length; ++i )
+			for( int j = i + 1; j < candidates.length; ++j )
+				if( overlap(candidates[i], candidates[j]) )
+					return false;
+
+		for( Definition member : run )
+		{	for( String candidate : candidates )
+			{	if( overlap(candidate, member.constantReplacement()) )
+					return false;
+				for( String pattern : member.literalMatches() )
+					if( overlap(candidate, pattern) )
+						return false;
+			}
+		}
+		return true;
+	}
+
+	/** True if one string contains the other, or if a suffix of either is a prefix of the other. */
+	private static boolean overlap( String a, String b )
+	{
+		if( a.contains(b) || b.contains(a) )
+			return true;
+
+		for( int length = Math.min(a.length(), b.length()) - 1; length > 0; --length )
+			if( a.endsWith(b.substring(0, length)) || b.endsWith(a.substring(0, length)) )
+				return true;
+		return false;
+	}
+
+	//----------------------------------------------------------------------
+	/** @param run definitions that were added one at a time with {@link #canAdd(List, Definition)}. */
+	FusedLiteralMacros( List<Definition> run )
+	{
+		members = new ArrayList<Definition>( run );
+		label	= String.format( "%d literal macros: %s ... %s", run.size(), run.get(0).label(), run.get(run.size() - 1).label() );
+
+		List<String> allPatterns	 = new ArrayList<String>();
+		List<String> allReplacements = new ArrayList<String>();
+		for( Definition member : run )
+			for( String pattern : member.literalMatches() )
+			{	allPatterns.add( pattern );
+				allReplacements.add( member.constantReplacement() );
+			}
+
+		patterns	 = allPatterns	  .toArray( new String[allPatterns.size()] );
+		replacements = allReplacements.toArray( new String[allReplacements.size()] );
+
+		StringBuilder firsts = new StringBuilder();
+		for( String pattern : patterns )
+			if( firsts.indexOf(pattern.substring(0, 1)) < 0 )
+				firsts.append( pattern.charAt(0) );
+
+		firstChars = firsts.toString().toCharArray();
+		Arrays.sort( firstChars );
+
+		startingWith = new int[firstChars.length][];
+		for( int i = 0; i < firstChars.length; ++i )
+		{
+			List<Integer> indexes = new ArrayList<Integer>();
+			for( int j = 0; j < patterns.length; ++j )
+				if( patterns[j].charAt(0) == firstChars[i] )
+					indexes.add( j );
+
+			startingWith[i] = new int[ indexes.size() ];
+			for( int j = 0; j < indexes.size(); ++j )
+				startingWith[i][j] = indexes.get(j);
+
+			if( firstChars[i] < ascii.length )
+				ascii[ firstChars[i] ] = i + 1;
+		}
+	}
+
+	/** The definitions in the run, in order. */
+	List<Definition> members()
+	{	return members;
+	}
+
+	/** Identifies the run in profiles. */
+	String label()
+	{	return label;
+	}
+
+	/** If any of the macros matches anything in the input, append the input, with all matches
+	 *  replaced, to output and return true. Otherwise, leave output alone and return false.
+	 *  This method has the same contract as {@link Definition}'s expand method.
+	 *  @param tally if not null, the matches are counted here.
+	 */
+	boolean expand( CharSequence input, StringBuilder output, Macro.Tally tally )
+	{
+		int		outputStart	= output.length();
+		int		copied		= 0;				// input up to here has been copied to output
+		boolean	matched		= false;
+
+		for( int i = 0, length = input.length(); i < length; )
+		{
+			int match = matchAt( input, i );
+			if( match < 0 )
+			{	++i;
+				continue;
+			}
+
+			output.append( input, copied, i );
+			output.append( replacements[match] );
+			if( tally != null )
+				tally.record( patterns[match].length(), replacements[match].length() );
+			i	   += patterns[match].length();
+			copied	= i;
+			matched	= true;
+		}
+
+		if( !matched )
+			return false;
+
+		output.append( input, copied, input.length() );
+
+		if( log.isEnabledFor(Level.DEBUG) )
+			log.debug( "MACROS applied: %s (%d characters in, %d out)", members, input.length(), output.length() - outputStart );
+		return true;
+	}
+
+	/** Return the index of the pattern that occurs at position i of the input, or -1 if
+	 *  none does. (The patterns don't overlap, so at most one of them can start at i.)
+	 */
+	private int matchAt( CharSequence input, int i )
+	{
+		char c = input.charAt(i);
+		int slot = (c < ascii.length) ? ascii[c] - 1 : Arrays.binarySearch( firstChars, c );
+		if( slot < 0 )
+			return -1;
+
+		for( int candidate : startingWith[slot] )
+		{
+			String pattern = patterns[candidate];
+			if( i + pattern.length() > input.length() )
+				continue;
+
+			int j = 1;
+			while( j < pattern.length() && input.charAt(i + j) == pattern.charAt(j) )
+				++j;
+			if( j == pattern.length() )
+				return candidate;
+		}
+		return -1;
+	}
+}
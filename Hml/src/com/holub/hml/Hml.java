@@ -5,9 +5,14 @@ import com.holub.text.Text;
 import com.holub.util.ExtendedLogger;
 import com.holub.util.Places;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.FileReader;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
@@ -22,11 +27,30 @@ public class Hml
 	private static final String USAGE =
 			new Text("\n",
 					"Usage: java [-DCONFIG=/path/to/config/directory] com.holub.hml.Hml [-o outputFile] [--out outputFile] [files...]",
+					"       java [-DCONFIG=/path/to/config/directory] com.holub.hml.Hml [--batch directory] [--manifest file]",
+					"Either form can also take --stats, --profile-macros, or --macro-cache directory",
+					"(before any file names).",
 					"",
 					"Process the listed files (or take input from standard input",
 					"if no files are listed). Send processed input to standard output or to the file",
 					"specified by most recent -o or --out.",
 					"",
+					"--batch processes every .hml file in the directory tree, putting the output for x.hml",
+					"in x.html. --manifest processes the files listed in the manifest, one per line, optionally",
+					"followed by an output-file name. Files are processed concurrently. Per-file timing and",
+					"errors, and a summary, are printed on standard error.",
+					"",
+					"--stats prints the time spent in each pass and filter on standard error",
+					"after all the files have been processed. --profile-macros does the same thing,",
+					"but also reports on every macro: how often it ran, how often it matched,",
+					"the time it took, and how much text it changed. Macros are identified by",
+					"the file and line where they're defined (e.g. hml.macros:203).",
+					"",
+					"--macro-cache keeps the result of running the text macros over each paragraph",
+					"in the indicated directory (which is created if necessary), and reuses it when",
+					"the same paragraph is processed with the same macros in a later run. The least",
+					"recently used results are discarded when the directory grows past 64MB.",
+					"",
 					"The -DCONFIG flag, if present, lets you specify a location for custom configuration files.",
 					"",
 					"This program (c)2013, Allen I Holub. Permission is granted to use this program",
@@ -50,6 +74,9 @@ public class Hml
 	private final Filter			unmapEntities;
 	private	final Titles    		title;
 	
+	/** Timing information is recorded here. Nothing is recorded if it's null. */
+	private Stats					stats = null;
+	
 	//----------------------------------------------------------------------
 	/** Create an Hml processor that writes to the indicated defaultOutput
 	 *  writer and writes errors on the specified error writer.
@@ -58,19 +85,52 @@ public class Hml
 	 * @param errors all error messages are sent here.
 	 */
 	public Hml( Writer defaultOutput, Writer errorWriter )
+	{	this( defaultOutput, errorWriter, null );
+	}
+	
+	/** Create an Hml processor that gets its macros, head, and tail from an
+	 *  {@link HmlEngine} rather than loading them from the configuration directory.
+	 *  If engine is null, everything is loaded from the configuration directory.
+	 *  Use {@link HmlEngine#render(CharSequence, Writer, Writer)} rather than calling
+	 *  this constructor directly.
+	 */
+	Hml( Writer defaultOutput, Writer errorWriter, HmlEngine engine )
 	{
-		this.outputPrinter	= new Printer(defaultOutput);
+		HmlEngine.Snapshot configuration = (engine == null) ? null : engine.snapshot();	// The engine might reload while we're working.
+		
+		this.outputPrinter	= (engine == null) ? new Printer(defaultOutput) : new Printer(defaultOutput, configuration.head(), configuration.tail());
 		this.error			= new ReportingStream(errorWriter);
 		
 		this.config 		= new Configuration ( error	 );
 		endNotes			= new NoteSet		( config );
-		macroManager		= new Macro			( config );
+		macroManager		= (engine == null) ? new Macro(config) : new Macro(config, configuration.macros());
 		include				= new Include		( config );
 		tags				= new Tags			( config, endNotes );
 		codeSnippets		= new CodeSnippets	( config );
 		listing				= new Listing		( config );
 		unmapEntities		= new EntityUnmapper( config );
 		title	  			= new Titles		( config );
+		
+		if( engine != null )
+		{	collectStatisticsIn( engine.stats() );
+			useSegmentCache( engine.segmentCache() );
+		}
+	}
+	
+	/** Record timing and throughput information for every pass and filter (and, if
+	 *  {@link Stats#isProfilingMacros()} is true, every macro) in the
+	 *  indicated Stats object. Pass null to stop recording.
+	 */
+	public void collectStatisticsIn( Stats stats )
+	{	this.stats = stats;
+		macroManager.collectStatisticsIn( stats );
+	}
+	
+	/** Reuse the results of expanding the text macros that are stored in the indicated
+	 *  cache, and store new ones there (see {@link SegmentCache}). Pass null to stop caching.
+	 */
+	public void useSegmentCache( SegmentCache cache )
+	{	macroManager.useSegmentCache( cache );
 	}
 	
 	//----------------------------------------------------------------------
@@ -106,13 +166,52 @@ public class Hml
 	{	
 		try
 		{
-			String fileName = null;
+			String  fileName 	= null;
+			boolean batchMode	= false;
+			Stats	stats		= null;
+			SegmentCache segmentCache = null;
+			int	    batchErrors	= 0;
 			
 			for( int i = 0; i < args.length; ++i )
 			{	
 				String argument = args[i].trim();
 				
-				if( argument.equals("-o") ||  argument.equals("--out") )
+				if( argument.equals("--batch") || argument.equals("--manifest") )
+				{
+					if( ++i >= args.length )
+					{	
+						processor.reportError( "Missing directory or file name for %s.\n%s", argument, USAGE );
+						return -2;
+					}
+					
+					batchMode	  = true;
+					Writer report = new OutputStreamWriter(System.err);
+					Batch  batch  = new Batch( report, stats );
+					batch.useSegmentCache( segmentCache );
+					batchErrors  += argument.equals("--batch") ? batch.processDirectory( new File(args[i]) )
+															   : batch.processManifest ( new File(args[i]) );
+					report.flush();
+				}
+				else if( argument.equals("--stats") || argument.equals("--profile-macros") )
+				{
+					if( stats == null )
+					{	stats = new Stats();
+						processor.collectStatisticsIn( stats );
+					}
+					if( argument.equals("--profile-macros") )
+						stats.setProfilingMacros( true );
+				}
+				else if( argument.equals("--macro-cache") )
+				{
+					if( ++i >= args.length )
+					{	
+						processor.reportError( "Missing directory name for --macro-cache.\n%s", USAGE );
+						return -2;
+					}
+					segmentCache = new SegmentCache( new File(args[i]), SegmentCache.DEFAULT_MAX_BYTES );
+					processor.useSegmentCache( segmentCache );
+				}
+				else if( argument.equals("-o") ||  argument.equals("--out") )
 				{
 					if( ++i >= args.length )
 					{	
@@ -138,6 +237,11 @@ public class Hml
 				}
 			}
 			
+			if( fileName == null && batchMode )	// Then only batch processing was requested.
+			{	printStatistics( stats );
+				return processor.getErrorCount() + batchErrors;
+			}
+			
 			if( fileName == null ) // Then no input file was specified in the argument list.  Use standard input.
 			{
 				fileName = "standard input";
@@ -146,7 +250,8 @@ public class Hml
 			}
 	
 			processor.closeCurrentOutputStream();
-			return processor.getErrorCount();
+			printStatistics( stats );
+			return processor.getErrorCount() + batchErrors;
 		}
 		catch( Exception e )
 		{
@@ -154,10 +259,20 @@ public class Hml
 			new Text( "%s\n", e.getMessage() ).write(System.err);
 			return 1;
 		}
+		finally
+		{	processor.discardSpilledOutput();	// if processing stopped before the output was closed
+		}
+	}
+	
+	private static void printStatistics( Stats stats )
+	{	if( stats != null )
+			new Text( "%s\n", stats ).write(System.err);
 	}
 	
 	//----------------------------------------------------------------------
 	/** This method is for use by non command-line based systems (servlets?).
+	 *  It loads the configuration files every time it's called. If you're going to process
+	 *  more than one document, use an {@link HmlEngine} instead.
 	 * @param input		The HML input
 	 * @param output	the .html output is sent to this writer
 	 * @param errors	error messages are sent to this writer.
@@ -190,10 +305,18 @@ public class Hml
 	 *  as necessary. 
 	 * @throws IOException
 	 */
-	private void closeCurrentOutputStream() throws IOException
+	void closeCurrentOutputStream() throws IOException
 	{	outputPrinter.close();
 	}
 	
+	/** Throw away any output that was spilled to a temporary file but not yet
+	 *  copied to the output stream. Call this if processing stops before
+	 *  {@link #closeCurrentOutputStream()} is called. It does nothing otherwise.
+	 */
+	void discardSpilledOutput()
+	{	outputPrinter.discardSpillFile();
+	}
+	
 	/** Open a new output stream. If any output has been written to the current
 	 *  output stream, you should call {@link #closeCurrentOutputStream()} before
 	 *  calling this method.
@@ -209,7 +332,7 @@ public class Hml
 	{	error.report( format, args );
 	}
 	
-	private int getErrorCount()
+	int getErrorCount()
 	{	return error.getErrorCount();
 	}
 	
@@ -220,7 +343,7 @@ public class Hml
 	 * @return
 	 * @throws IOException
 	 */
-	private int expandAndPrint( Text t ) throws IOException
+	int expandAndPrint( Text t ) throws IOException
 	{
 		int errorCount = expand(t);
 		outputPrinter.print(t);
@@ -239,41 +362,112 @@ public class Hml
 		// Need to process macros much later in the chain if we do that, but moving the macro processing
 		// introduces a bunch of test errors that I don't have time to deal with.
 		
-		if( new Pass(config, include 							 ).process(input))
-		if( new Pass(config, config 							 ).process(input))
-		if( new Pass(config, codeSnippets						 ).process(input))
-		if( new Pass(config, macroManager.getTextFilter()		 ).process(input))
-		if( new Pass(config, tags								 ).process(input))
-		if( new Pass(config, listing							 ).process(input))
-		if( new Pass(config, macroManager.getCodeFilter()		 ).process(input))
-		if( new Pass(config, title								 ).process(input))
-		if( new Pass(config, macroManager.getRefFilter()		 ).process(input))
-		if( new Pass(config, listing.getReferenceExpander()		 ).process(input))
-		if( new Pass(config, title.getReferenceExpander(endNotes)).process(input))
-		if( new Pass(config, title.getTocReplacementFilter()	 ).process(input))
-		    new Pass(config, unmapEntities						 ).process(input);
+		// The document is lexed once, here. Subsequent passes re-lex only what the
+		// previous passes changed.
+		//
+		long	 startTime = (stats == null) ? 0 : System.nanoTime();
+		Document document  = new Document(input);
+		
+		macroManager.startDocument();		// <macro>s from a previous document don't apply to this one.
+		
+		Pass[] passes = createPasses();
+		
+		// Passes that have nothing to do are skipped. Whether a pass is needed is
+		// decided just before it would run, since an earlier pass (the macro pass,
+		// in particular) can introduce something that a later pass handles.
+		// Processing stops at the first pass that fails.
+		//
+		Text plan = new Text();
+		for( Pass pass : passes )
+		{
+			if( !pass.isNeededFor(document) )
+			{	plan.appendf( "    skipped %s\n", pass );
+				if( stats != null )
+					stats.recordSkippedPass( pass.toString() );
+				continue;
+			}
+			
+			pass.collectStatisticsIn( stats );
+			
+			plan.appendf( "    ran     %s\n", pass );
+			if( !pass.process(document) )
+			{	plan.appendf( "    (failed, remaining passes not run)\n" );
+				break;
+			}
+		}
+		log.debug( "Pass plan:\n%s", plan );
+		
+		input.replace( document.toString() );
+		
+		if( stats != null )
+			stats.recordDocument( System.nanoTime() - startTime );
 		
 		return error.getErrorCount();
 	}
 	
+	/** Create the passes that {@link #expand(Text)} runs, in the order that they run.
+	 *  Package access so that the benchmarks can run the passes one at a time.
+	 */
+	Pass[] createPasses()
+	{
+		return new Pass[]
+		{	new Pass(config, include 							 ),
+			new Pass(config, config 							 ),
+			new Pass(config, codeSnippets						 ),
+			new Pass(config, macroManager.getTextFilter()		 ),
+			new Pass(config, tags								 ),
+			new Pass(config, listing							 ),
+			new Pass(config, macroManager.getCodeFilter()		 ),
+			new Pass(config, title								 ),
+			new Pass(config, macroManager.getRefFilter()		 ),
+			new Pass(config, listing.getReferenceExpander()		 ),
+			new Pass(config, title.getReferenceExpander(endNotes)),
+			new Pass(config, title.getTocReplacementFilter()	 ),
+			new Pass(config, unmapEntities						 ),
+		};
+	}
+	
 	//----------------------------------------------------------------------
+	/** Handles output. The hml.head file can't be written until all the input
+	 *  destined for the current output file has been processed, because &lt;head&gt;
+	 *  elements in the input add to it. The processed input is held in memory until
+	 *  it gets large, at which point it's moved to a temporary "spill" file, and
+	 *  all subsequent output goes there. The spill file is copied to
+	 *  the real output (after the head) when the output is closed. This way, the amount
+	 *  of memory used doesn't depend on the size of the output.
+	 */
 	private class Printer
 	{
+		/** Processed input is spilled to disk once there's more than this many characters of it. */
+		private static final int SPILL_THRESHOLD = 256 * 1024;
+		
 		private Writer	output;
 		
 		public Printer( Writer output )
 		{	this.output = output;
-		}
 			
-		// The following two calls are mocked in IntegreationTests.java. If you change
-		// them, change the test.
-		//
-		private Reader head = Places.CONFIG.reader("hml.head");
-		private Reader tail = Places.CONFIG.reader("hml.tail");
+			// The following two calls are mocked in IntegreationTests.java. If you change
+			// them, change the test.
+			//
+			head = Places.CONFIG.reader("hml.head");
+			tail = Places.CONFIG.reader("hml.tail");
+		}
+		
+		/** Use the specified head and tail rather than loading them from the configuration directory. */
+		public Printer( Writer output, Text headContents, Text tailContents )
+		{	this.output 	  = output;
+			this.headContents = headContents;
+			this.tailContents = tailContents;
+		}
+		
+		private Reader head = null;
+		private Reader tail = null;
 		
 		private Text   tailContents = null;
 		private Text   headContents = null;
 		private Text   contents		= new Text();
+		private File   spillFile	= null;
+		private Writer spill		= null;
 		
 		/** Outputs the specified processed content to the current
 		 *  output file.
@@ -285,6 +479,10 @@ public class Hml
 		 *  output anything until all of the hml tags have been
 		 *  processed (because some of the tags effectively
 		 *  modify hml.head).
+		 *  <p>
+		 *  The content isn't written to the output file until
+		 *  {@link #close()} is called, but it's moved to a temporary
+		 *  file if there's a lot of it.
 		 *  
 		 * @param content
 		 * @throws IOException
@@ -293,7 +491,76 @@ public class Hml
 		{
 			if( output == null )
 				throw new IOException("No output file currently active");
-			contents.append(content);
+			
+			if( spill == null && contents.length() + content.length() <= SPILL_THRESHOLD )
+			{	contents.append(content);
+				return;
+			}
+			
+			boolean written = false;
+			try
+			{
+				if( spill == null )
+				{
+					spillFile = File.createTempFile( "hml", ".spill" );
+					spill = new BufferedWriter( new OutputStreamWriter( new FileOutputStream(spillFile), "UTF-8") );
+					
+					contents.write(spill);
+					contents.clear();
+				}
+				content.write(spill);
+				written = true;
+			}
+			finally
+			{	if( !written )
+					discardSpillFile();
+			}
+		}
+		
+		/** Copy everything that was written to the spill file to the output, then delete the spill file.
+		 */
+		private void copySpillFileToOutput() throws IOException
+		{
+			spill.close();
+			Reader in = new InputStreamReader( new FileInputStream(spillFile), "UTF-8" );
+			try
+			{
+				char[] buffer = new char[ 64 * 1024 ];
+				for( int got; (got = in.read(buffer)) > 0; )
+					output.write( buffer, 0, got );
+			}
+			finally
+			{
+				in.close();
+				if( !spillFile.delete() )
+					log.error( "Couldn't delete temporary file %s", spillFile.getPath() );
+				
+				spill 	  = null;
+				spillFile = null;
+			}
+		}
+		
+		/** Delete the spill file, if there is one, without copying it to the output.
+		 *  Used when processing stops before the output is closed.
+		 */
+		private void discardSpillFile()
+		{
+			if( spillFile == null )
+				return;
+			
+			try
+			{	if( spill != null )
+					spill.close();
+			}
+			catch( IOException e )
+			{	log.error( "Couldn't close temporary file %s", spillFile.getPath() );
+			}
+			
+			if( !spillFile.delete() )
+				log.error( "Couldn't delete temporary file %s", spillFile.getPath() );
+			
+			spill 	  = null;
+			spillFile = null;
 		}
 		
 		/** Finishes up processing by flushing the buffer and outputting the tail file. You
@@ -305,33 +572,42 @@ public class Hml
 			if( output == null )	// nothing to do
 				return;
 			
-			if( head == null )
-				error.report( "ERROR: Cannot locate hml.head" );
-			else
+			try
 			{
-				if( headContents == null )
-					headContents = new Text(head);
+				if( head == null && headContents == null )
+					error.report( "ERROR: Cannot locate hml.head" );
+				else
+				{
+					if( headContents == null )
+						headContents = new Text(head);
 					
-				Text augmentedHead = tags.appendAdditionsToHead( headContents );
-				augmentedHead.write(output);
-			}
+					Text augmentedHead = tags.appendAdditionsToHead( headContents );
+					augmentedHead.write(output);
+				}
 			
-			contents.write(output);
-			contents.clear();
+				contents.write(output);
+				contents.clear();
 			
-			if( tail == null )
-				error.report( "ERROR: Cannot locate hml.tail." );
-			else
-			{
-				if( tailContents == null )
-					tailContents = new Text(tail);
+				if( spill != null )
+					copySpillFileToOutput();
+			
+				if( tail == null && tailContents == null )
+					error.report( "ERROR: Cannot locate hml.tail." );
+				else
+				{
+					if( tailContents == null )
+						tailContents = new Text(tail);
 					
-				tailContents.write(output);
-				output.flush();
-			}
+					tailContents.write(output);
+					output.flush();
+				}
 
-			output.close();
-			output = null;
+				output.close();
+				output = null;
+			}
+			finally
+			{	discardSpillFile();		// if something went wrong before it was copied
+			}
 		}
 		
 		/** Close the current output and open a new one 
@@ -0,0 +1,309 @@
+package com.holub.hml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.holub.text.ReportingStream;
+import com.holub.text.Text;
+import com.holub.util.ExtendedLogger;
+import com.holub.util.Places;
+
+/** The expensive, document-independent part of an {@link Hml} processor:
+ *  the compiled macros from hml.macros and the contents of hml.head and hml.tail.
+ *  These are loaded when the engine is created and never modified after
+ *  that, so an engine can be shared by any number of threads.
+ *  <p>
+ *  Everything that changes while a document is processed (heading and
+ *  figure numbers, listing symbols, notes, user-defined macros, the
+ *  document's own configuration) lives in a separate {@link Hml} object
+ *  that's created for each call to {@link #render(CharSequence, Writer, Writer)}
+ *  and discarded afterwards. Those objects are cheap to create.
+ *  <pre>
+ *  HmlEngine engine = new HmlEngine();	// once
+ *
+ *  // then, on any thread:
+ *  int errorCount = engine.render( input, output, errors );
+ *  </pre>
+ *  In a long-running process, the configuration files can be reloaded when they change,
+ *  either by calling {@link #reloadIfChanged()} or by having the engine check
+ *  periodically ({@link #reloadEvery(long, TimeUnit)}). The new files are loaded into a
+ *  new {@link Snapshot}, which is swapped in once it's complete. Documents that are
+ *  being rendered when that happens go on using the old one; only renders that start
+ *  after the swap see the new files. If the new files have errors in them
+ *  (a bad regular expression in hml.macros, say), the errors are logged and
+ *  the engine goes on using the old files until they change again.
+ *
+ * @author allen
+ */
+
+public final class HmlEngine
+{
+	private static final ExtendedLogger log = ExtendedLogger.getLogger(HmlEngine.class);
+
+	/** The configuration files that the engine loads. A change to any of them causes a reload. */
+	private static final String[] FILES = { "hml.macros", "hml.macros" + MacroBundle.SUFFIX, "hml.head", "hml.tail" };
+
+	/** The configuration that new renders use. */
+	private volatile Snapshot snapshot;
+
+	/** The modification stamps of the files the last time a reload failed, so that
+	 *  the same errors aren't reported every time the files are checked.
+	 */
+	private long[] rejected = null;
+
+	private final AtomicInteger reloads		   = new AtomicInteger();
+	private final AtomicInteger failedReloads  = new AtomicInteger();
+
+	/** Checks the files for changes. Null if the engine isn't checking. */
+	private ScheduledExecutorService reloader = null;
+
+	private final Stats		stats;
+
+	/** The cache that every render's text macros use, or null. */
+	private volatile SegmentCache segmentCache = null;
+
+	//======================================================================
+	/** Everything that the engine loads from the configuration files, as it was at one
+	 *  point in time. Snapshots are immutable.
+	 */
+	static final class Snapshot
+	{
+		private final Macro		macros;
+		private final String	head;
+		private final String	tail;
+
+		private final int		errorCount;
+		private final String	errors;
+
+		/** The files' modification times and sizes when they were loaded. */
+		private final long[]	stamps;
+
+		private Snapshot( long[] stamps ) throws IOException
+		{
+			StringWriter	errorText = new StringWriter();
+			ReportingStream	error	  = new ReportingStream( errorText );
+
+			this.stamps		= stamps;
+			this.macros		= new Macro( new Configuration(error) );
+			this.head		= load( "hml.head", error );
+			this.tail		= load( "hml.tail", error );
+			this.errorCount	= error.getErrorCount();
+			this.errors		= errorText.toString();
+		}
+
+		/** Used by {@link Hml} to initialize its per-document copy of the macros. */
+		Macro macros()	{ return macros; }
+		Text  head()	{ return new Text(head); }
+		Text  tail()	{ return new Text(tail); }
+	}
+
+	//----------------------------------------------------------------------
+	/** Load the macros, head, and tail from the configuration directory.
+	 *  Problems are not fatal (the document is processed with whatever could be
+	 *  loaded). Use {@link #setupErrorCount()} to find out if there were any.
+	 */
+	public HmlEngine() throws IOException
+	{	this( null );
+	}
+	
+	/** Create an engine that records timing information for every document that it
+	 *  processes in the indicated Stats object, which is not recorded if stats is null.
+	 */
+	public HmlEngine( Stats stats ) throws IOException
+	{
+		this.stats	  = stats;
+		this.snapshot = new Snapshot( stamps() );
+	}
+
+	private static String load( String name, ReportingStream error ) throws IOException
+	{
+		Reader in = Places.CONFIG.reader(name);
+		if( in == null )
+		{	error.report( "ERROR: Cannot locate %s", name );
+			return "";
+		}
+
+		try
+		{	return new Text(in).toString();
+		}
+		finally
+		{	in.close();
+		}
+	}
+
+	/** Return the modification time and size of each of the {@link #FILES}
+	 *  (both are -1 if the file doesn't exist).
+	 */
+	private static long[] stamps()
+	{
+		long[] stamps = new long[ FILES.length * 2 ];
+		for( int i = 0; i < FILES.length; ++i )
+		{	stamps[2*i] = stamps[2*i + 1] = -1;
+
+			URL url = Places.CONFIG.url( FILES[i] );
+			if( url != null )
+			{	try
+				{	URLConnection connection = url.openConnection();
+					stamps[2*i]		= connection.getLastModified();
+					stamps[2*i + 1]	= connection.getContentLengthLong();
+					connection.getInputStream().close();	// opened by getContentLength() for some kinds of URL
+				}
+				catch( IOException e )
+				{	log.debug( "Can't check %s: %s", url, e.getMessage() );
+				}
+			}
+		}
+		return stamps;
+	}
+
+	/** The number of errors found while loading the configuration files that are in use. */
+	public int setupErrorCount()
+	{	return snapshot.errorCount;
+	}
+
+	/** The text of the error messages, if any, that were generated when the
+	 *  configuration files that are in use were loaded.
+	 */
+	public String setupErrors()
+	{	return snapshot.errors;
+	}
+
+	//----------------------------------------------------------------------
+	/** If any of the configuration files have changed since they were loaded, load them
+	 *  again, and use the new versions for renders that start after this method returns.
+	 *  If the new files have errors in them, and the ones in use don't, the errors are
+	 *  logged and the current files go on being used.
+	 *  @return true if the new files were loaded and are now in use.
+	 */
+	public synchronized boolean reloadIfChanged() throws IOException
+	{
+		long[] stamps = stamps();
+		if( Arrays.equals(stamps, snapshot.stamps) || Arrays.equals(stamps, rejected) )
+			return false;
+
+		Snapshot next = new Snapshot( stamps );
+		if( next.errorCount > 0 && snapshot.errorCount == 0 )
+		{	log.error( "The configuration files changed, but they have %d errors, so they weren't loaded:\n%s",
+															next.errorCount, next.errors );
+			rejected = stamps;
+			failedReloads.incrementAndGet();
+			return false;
+		}
+
+		snapshot = next;
+		rejected = null;
+		reloads.incrementAndGet();
+		log.info( "Reloaded the configuration files from %s", Places.CONFIG );
+		return true;
+	}
+
+	/** Check the configuration files for changes every interval (in the indicated units),
+	 *  and {@linkplain #reloadIfChanged() reload} them if they've changed. The files are
+	 *  checked and loaded on a background (daemon) thread, so renders aren't held up.
+	 *  Replaces any previous schedule.
+	 */
+	public synchronized void reloadEvery( long interval, TimeUnit unit )
+	{
+		stopReloading();
+		reloader = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+			{	@Override public Thread newThread( Runnable r )
+				{	Thread t = new Thread( r, "hml-config-reloader" );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+
+		reloader.scheduleWithFixedDelay( new Runnable()
+			{	@Override public void run()
+				{	try
+					{	reloadIfChanged();
+					}
+					catch( Exception e )		// an uncaught exception would cancel the schedule
+					{	failedReloads.incrementAndGet();
+						log.error( "Couldn't reload the configuration files", e );
+					}
+				}
+			}, interval, interval, unit );
+	}
+
+	/** Stop checking the configuration files for changes. */
+	public synchronized void stopReloading()
+	{	if( reloader != null )
+		{	reloader.shutdownNow();
+			reloader = null;
+		}
+	}
+
+	/** The number of times the configuration files have been reloaded (and the number of
+	 *  times a reload failed because the new files had errors in them).
+	 */
+	public int reloads()		{ return reloads.get();		  }
+	public int failedReloads()	{ return failedReloads.get(); }
+
+	//----------------------------------------------------------------------
+	/** Create the per-document state for a single render. The returned object
+	 *  must be used by only one thread, and only for one document.
+	 */
+	Hml newRenderer( Writer output, Writer errors )
+	{	return new Hml( output, errors, this );
+	}
+
+	/** The Stats object passed to the constructor (possibly null). */
+	public Stats stats()
+	{	return stats;
+	}
+
+	/** Keep the results of expanding the text macros in the indicated cache, and reuse
+	 *  them in later renders (see {@link SegmentCache}). Renders that have already
+	 *  started aren't affected. Pass null to stop caching.
+	 */
+	public void useSegmentCache( SegmentCache cache )
+	{	segmentCache = cache;
+	}
+
+	/** The cache passed to {@link #useSegmentCache(SegmentCache)}, or null. */
+	SegmentCache segmentCache()
+	{	return segmentCache;
+	}
+	
+	/** The configuration that a render that starts now should use. A render
+	 *  must get everything from the same snapshot.
+	 */
+	Snapshot snapshot()
+	{	return snapshot;
+	}
+
+	//----------------------------------------------------------------------
+	/** Process a single document. Safe to call from several threads at once.
+	 * @param input		The HML input
+	 * @param output	the .html output is sent to this writer, which is closed when processing is complete.
+	 * @param errors	error messages are sent to this writer.
+	 * @return			the error count or -1 if an unexpected exception was caught.
+	 */
+	public int render( CharSequence input, Writer output, Writer errors )
+	{
+		try
+		{
+			Hml processor  = newRenderer( output, errors );
+			int errorCount = processor.expandAndPrint( new Text(input) );
+			processor.closeCurrentOutputStream();
+			return errorCount;
+		}
+		catch( Exception e )
+		{
+			log.error( "Uncaught exception in render", e );
+			new Text( "%s", e.getMessage() ).write(errors);
+		}
+		return -1;
+	}
+}
@@ -26,7 +26,7 @@ import java.util.regex.PatternSyntaxException;
  * See main documentation for more details.
  */
 
-public class Include implements Filter
+public class Include implements Filter.Selective
 {
 	private static ExtendedLogger log 		 = ExtendedLogger.getLogger(Include.class);
 	private static final Pattern  tagPattern = Pattern.compile( "<\\s*(include|import)\\s+[^>]*>\\s*", Pattern.MULTILINE | Pattern.DOTALL );
@@ -41,6 +41,11 @@ public class Include implements Filter
 	@Override public boolean isSnippetFilter() 	{ return false; }
 	@Override public boolean isTextFilter() 	{ return true;  }
 	
+	@Override public boolean isNeededFor( CharSequence document )
+	{	String s = document.toString();
+		return s.contains("include") || s.contains("import");
+	}
+	
 	@Override
 	public void filter(Text prefix, Text body, Text suffix, final BlockType type)
 	{
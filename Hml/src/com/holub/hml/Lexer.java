@@ -0,0 +1,213 @@
+package com.holub.hml;
+
+import com.holub.hml.Pass.Type;
+
+/** A hand-written, single-scan lexer that finds all the {@link Pass.Type} delimiters
+ *  in one left-to-right pass through the input, emitting them in order. It replaces
+ *  a set of regular expressions (one per token type) that used to be run over the
+ *  input one after another, with the results sorted into a tree. The tokens it
+ *  recognizes are exactly the ones that those expressions recognized:
+ *  <pre>
+ *  PRE_SHORTHAND	^([\t ]*,.*\n)+				MULTILINE
+ *  PRE_START		&lt;pre(?=[\s&gt;])[^&gt;]*?&gt;
+ *  PRE_END			&lt;/pre\s*&gt;
+ *  LISTING_START	&lt;listing(?=[\s&gt;])[^&gt;]*?&gt;
+ *  LISTING_END		&lt;/listing\s*&gt;
+ *  COMMENT_START	(?&lt;!\\)&lt;!=
+ *  COMMENT_END		(?&lt;!\\)=!&gt;
+ *  SNIPPET			((?&lt;![`\\])`(?!`))|(^`(?!`))|((?&lt;![`\\])`$)	MULTILINE
+ *  </pre>
+ *  The expressions were applied independently of each other, so a token of
+ *  one type could be found inside a token of another type (a &lt;!= inside the
+ *  arguments of a &lt;pre&gt; tag, for example), but two tokens of the same type
+ *  couldn't overlap. The lexer keeps track of where each type's search
+ *  would have resumed to get the same behavior. Tokens that start inside a
+ *  PRE_SHORTHAND block are discarded, as they always have been.
+ *  <p>
+ *  The lexer can work on a region of the input. As is the case with a transparent,
+ *  non-anchoring {@link java.util.regex.Matcher} region, characters outside the
+ *  region are visible for the purposes of context (is the previous character a
+ *  backslash? are we at the start of a line?), but a token can't extend past
+ *  the end of the region.
+ *
+ * @author allen
+ */
+
+final class Lexer
+{
+	private static final Type[] types = Type.values();
+
+	private Lexer(){}
+
+	/** Lex input from start (inclusive) to end (exclusive), appending the
+	 *  non-TEXT tokens to output.
+	 */
+	static void lex( CharSequence input, int start, int end, TokenList output )
+	{
+		// resume[t] is the position at which the search for tokens of type t picks up.
+		int[] resume = new int[ types.length ];
+		for( int i = 0; i < resume.length; ++i )
+			resume[i] = start;
+
+		int shorthandEnd = -1;	// tokens that start before this position are discarded.
+
+		for( int i = start; i < end; ++i )
+		{
+			Type type	  = null;
+			int  tokenEnd = -1;
+
+			switch( input.charAt(i) )
+			{
+			case '\t':
+			case ' ' :
+			case ',' :	tokenEnd = preShorthand( input, i, end );	if( tokenEnd > 0 ) type = Type.PRE_SHORTHAND;	break;
+			case '=' :	tokenEnd = commentEnd( input, i, end );		if( tokenEnd > 0 ) type = Type.COMMENT_END;	  	break;
+			case '`' :	tokenEnd = snippet( input, i, end );		if( tokenEnd > 0 ) type = Type.SNIPPET;			break;
+			case '<' :
+				if( (tokenEnd = startTag(input, i, end, "<pre")) > 0 )			type = Type.PRE_START;
+				else if( (tokenEnd = endTag(input, i, end, "</pre")) > 0 )		type = Type.PRE_END;
+				else if( (tokenEnd = startTag(input, i, end, "<listing")) > 0 )	type = Type.LISTING_START;
+				else if( (tokenEnd = endTag(input, i, end, "</listing")) > 0 ) 	type = Type.LISTING_END;
+				else if( (tokenEnd = commentStart(input, i, end)) > 0 )			type = Type.COMMENT_START;
+				break;
+			}
+
+			if( type == null || i < resume[type.ordinal()] )
+				continue;
+
+			resume[ type.ordinal() ] = tokenEnd;
+
+			if( i < shorthandEnd )		// inside a PRE_SHORTHAND block. Discard it.
+				continue;
+
+			output.add( type, i, tokenEnd );
+
+			if( type == Type.PRE_SHORTHAND )
+				shorthandEnd = tokenEnd;
+		}
+	}
+
+	//----------------------------------------------------------------------
+	// Recognizers. Each returns the end position of the token that
+	// starts at position i, or -1 if there's no such token.
+	//----------------------------------------------------------------------
+
+	/** One or more consecutive lines that start with optional tabs and spaces followed
+	 *  by a comma. Each line must be terminated by a newline. The first line must
+	 *  start at the beginning of a line.
+	 */
+	private static int preShorthand( CharSequence input, int i, int end )
+	{
+		if( !isStartOfLine(input, i) )
+			return -1;
+
+		int matchEnd = -1;
+		for( int current = i; current < end ; )
+		{
+			while( current < end && (input.charAt(current) == ' ' || input.charAt(current) == '\t') )
+				++current;
+
+			if( current >= end || input.charAt(current) != ',' )
+				break;
+
+			while( current < end && !isLineTerminator(input.charAt(current)) )
+				++current;
+
+			if( current >= end || input.charAt(current) != '\n' )
+				break;
+
+			matchEnd = ++current;
+		}
+		return matchEnd;
+	}
+
+	/** &lt;pre or &lt;listing followed by whitespace or &gt;, and then everything up to and including the first &gt; */
+	private static int startTag( CharSequence input, int i, int end, String name )
+	{
+		if( !matchesAt(input, i, name) )
+			return -1;
+
+		int current = i + name.length();
+		if( current >= input.length() || !(isWhitespace(input.charAt(current)) || input.charAt(current) == '>') )
+			return -1;
+
+		for( ; current < end ; ++current )
+			if( input.charAt(current) == '>' )
+				return current + 1;
+		return -1;
+	}
+
+	/** &lt;/pre or &lt;/listing, optional whitespace, then &gt; */
+	private static int endTag( CharSequence input, int i, int end, String name )
+	{
+		if( !matchesAt(input, i, name) )
+			return -1;
+
+		int current = i + name.length();
+		while( current < end && isWhitespace(input.charAt(current)) )
+			++current;
+
+		return ( current < end && input.charAt(current) == '>' ) ? current + 1 : -1;
+	}
+
+	/** &lt;!= not preceded by a backslash */
+	private static int commentStart( CharSequence input, int i, int end )
+	{	return (i + 3 <= end && matchesAt(input, i, "<!=") && !isPrecededBy(input, i, '\\')) ? i + 3 : -1;
+	}
+
+	/** =!&gt; not preceded by a backslash */
+	private static int commentEnd( CharSequence input, int i, int end )
+	{	return (i + 3 <= end && matchesAt(input, i, "=!>") && !isPrecededBy(input, i, '\\')) ? i + 3 : -1;
+	}
+
+	/** A backquote that isn't preceded by a backslash or backquote, and isn't followed by a backquote.
+	 *  (The ^` and `$ alternatives in the original expression are both special
+	 *  cases of this one.)
+	 */
+	private static int snippet( CharSequence input, int i, int end )
+	{
+		if( isPrecededBy(input, i, '`') || isPrecededBy(input, i, '\\') )
+			return -1;
+		if( i + 1 < input.length() && input.charAt(i + 1) == '`' )
+			return -1;
+		return i + 1;
+	}
+
+	//----------------------------------------------------------------------
+	private static boolean matchesAt( CharSequence input, int i, String s )
+	{
+		if( i + s.length() > input.length() )
+			return false;
+		for( int j = s.length(); --j >= 0; )
+			if( input.charAt(i + j) != s.charAt(j) )
+				return false;
+		return true;
+	}
+
+	private static boolean isPrecededBy( CharSequence input, int i, char c )
+	{	return i > 0 && input.charAt(i - 1) == c;
+	}
+
+	/** Same as \s in a regular expression */
+	private static boolean isWhitespace( char c )
+	{	return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/** The characters that . doesn't match in a regular expression (without DOTALL) */
+	private static boolean isLineTerminator( char c )
+	{	return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	/** Same as ^ in a MULTILINE regular expression. */
+	private static boolean isStartOfLine( CharSequence input, int i )
+	{
+		if( i == 0 )
+			return true;
+
+		char previous = input.charAt(i - 1);
+		if( previous == '\r' )
+			return input.charAt(i) != '\n';		// no line start between \r and \n
+
+		return isLineTerminator(previous);
+	}
+}
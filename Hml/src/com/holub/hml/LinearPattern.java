@@ -0,0 +1,990 @@
+package com.holub.hml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+/** A regular-expression matcher that takes time proportional to the length of its input
+ *  (times the size of the expression), whatever the expression looks like, so it can't
+ *  be made to backtrack its way into a hang. The expression is compiled to an NFA, and
+ *  the matcher runs every path through the NFA in lock step, one input character at a
+ *  time (Thompson's simulation, with the thread priorities and capture tracking of
+ *  Pike's VM). The threads are kept in the order that a backtracking matcher would try
+ *  them, so {@link Matcher#find()} finds exactly what {@link java.util.regex.Matcher#find()}
+ *  does: the leftmost match and, of the matches that start there, the one that the
+ *  backtracking matcher would find first. Greedy and reluctant quantifiers work as usual.
+ *  <p>
+ *  Not every expression can be matched this way. {@link #compile(Pattern)} returns null
+ *  for the ones that use:
+ *  <ul>
+ *  <li>back references, named groups, atomic groups, possessive quantifiers, \G, or \Q...\E;</li>
+ *  <li>lookahead or lookbehind of anything but a single character (which is handled
+ *  	as a test of the neighboring character);</li>
+ *  <li>inline flags, or the COMMENTS, LITERAL, CANON_EQ, or UNICODE_CHARACTER_CLASS flags;</li>
+ *  <li>a repeated subexpression that can match the empty string, like <code>(a*)*</code>;</li>
+ *  <li>a capturing group inside a repetition other than ?, like <code>(?:(.))*</code>, whose
+ *  	captures Pattern leaves as they were in the iterations that it gave back;</li>
+ *  <li>more than {@link #MAX_PROGRAM} instructions, which is easy to do with large counted repetitions.</li>
+ *  </ul>
+ *  Character classes (and ., \s, literal characters, and so forth) are tested by compiling
+ *  them as a {@link Pattern}, with the expression's flags, and recording which characters
+ *  match, so they mean exactly what they'd mean to a {@link Pattern}. The records are
+ *  built lazily, 256 characters at a time, and shared by every expression that uses the class.
+ *  Surrogate pairs are left to {@link Pattern} too: if a matcher runs into a surrogate
+ *  character, it hands the search over to a {@link java.util.regex.Matcher}, as it does
+ *  if it has to decide whether there's a word boundary next to a nonspacing mark.
+ *  <p>
+ *  A LinearPattern is immutable, so it can be shared by several threads. Its Matchers can't.
+ *
+ * @author allen
+ */
+
+final class LinearPattern
+{
+	/** Expressions that compile to more instructions than this are left to {@link Pattern}. */
+	static final int MAX_PROGRAM = 4096;
+
+	private static final int MAX_CACHED = 1024;
+
+	// The instructions. The operands are in x[] and y[], and the character class (if any) in classes[].
+	//
+	private static final int CHAR	= 0;	// consume a character in classes[pc]
+	private static final int SPLIT	= 1;	// continue at x, and (with lower priority) at y
+	private static final int JUMP	= 2;	// continue at x
+	private static final int SAVE	= 3;	// record the current position in capture slot x
+	private static final int ASSERT	= 4;	// continue only if assertion x holds at the current position
+	private static final int MATCH	= 5;
+
+	// The assertions.
+	//
+	private static final int BEGIN_INPUT			= 0;	// \A, and ^ without MULTILINE
+	private static final int END_INPUT				= 1;	// \z
+	private static final int CARET					= 2;	// ^ in MULTILINE mode
+	private static final int UNIX_CARET				= 3;	// ^ in MULTILINE|UNIX_LINES mode
+	private static final int DOLLAR					= 4;	// \Z, and $ without MULTILINE
+	private static final int DOLLAR_MULTILINE		= 5;
+	private static final int UNIX_DOLLAR			= 6;
+	private static final int UNIX_DOLLAR_MULTILINE	= 7;
+	private static final int BOUNDARY				= 8;	// \b
+	private static final int NOT_BOUNDARY			= 9;	// \B
+	private static final int BEHIND					= 10;	// (?<=c)
+	private static final int NOT_BEHIND				= 11;	// (?<!c)
+	private static final int AHEAD					= 12;	// (?=c)
+	private static final int NOT_AHEAD				= 13;	// (?!c)
+
+	private static final Map<String,CharClass> classCache = new ConcurrentHashMap<String,CharClass>();
+
+	/** The characters for which there's a \b before the character at the start of the input. */
+	private static final CharClass WORD = new CharClass( Pattern.compile("\\b.", Pattern.DOTALL) );
+
+	private final Pattern		pattern;
+	private final int			groupCount;
+	private final int[]			op;
+	private final int[]			x;
+	private final int[]			y;
+	private final CharClass[]	classes;
+
+	/** The classes of the characters that can start a match, or null if the expression can match the empty string. */
+	private final CharClass[]	starts;
+	private final long[]		startsAscii;
+
+	//======================================================================
+	/** The characters matched by a single-character expression. */
+	private static final class CharClass
+	{
+		private final Pattern						atom;
+		private final long[]						ascii;
+		private final AtomicReferenceArray<long[]>	pages = new AtomicReferenceArray<long[]>( 256 );
+
+		CharClass( Pattern atom )
+		{	this.atom  = atom;
+			this.ascii = Arrays.copyOf( page(0), 2 );
+		}
+
+		static CharClass of( String source, int flags )
+		{
+			flags &= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL | Pattern.UNIX_LINES;
+			String	  key	= flags + "/" + source;
+			CharClass chars = classCache.get( key );
+			if( chars == null )
+			{	chars = new CharClass( Pattern.compile(source, flags) );
+				if( classCache.size() >= MAX_CACHED )
+					classCache.clear();
+				classCache.put( key, chars );
+			}
+			return chars;
+		}
+
+		boolean contains( char c )
+		{
+			if( c < 128 )
+				return (ascii[c >> 6] & (1L << c)) != 0;
+
+			long[] page = pages.get( c >> 8 );
+			if( page == null )
+				pages.set( c >> 8, page = page(c >> 8) );	// two threads might both do this, harmlessly.
+			return (page[(c >> 6) & 3] & (1L << c)) != 0;
+		}
+
+		private long[] page( int index )
+		{
+			long[] bits = new long[4];
+			java.util.regex.Matcher m = atom.matcher( "" );
+			for( int i = 0; i < 256; ++i )
+			{	char c = (char)( (index << 8) | i );
+				if( !Character.isSurrogate(c) && m.reset(String.valueOf(c)).matches() )
+					bits[i >> 6] |= 1L << i;
+			}
+			return bits;
+		}
+	}
+
+	//----------------------------------------------------------------------
+	/** Compile the pattern, or return null if it uses something that can't be matched in linear time. */
+	static LinearPattern compile( Pattern pattern )
+	{
+		if( (pattern.flags() & (Pattern.LITERAL | Pattern.COMMENTS | Pattern.CANON_EQ | Pattern.UNICODE_CHARACTER_CLASS)) != 0
+				|| pattern.pattern().contains("\\Q") )
+			return null;
+
+		try
+		{	Compiler compiler = new Compiler( pattern );
+			Program	 program  = compiler.compile();
+			if( compiler.groupCount != pattern.matcher("").groupCount() )
+				return null;									// something we didn't parse the way Pattern does
+			return new LinearPattern( pattern, compiler.groupCount, program );
+		}
+		catch( RuntimeException e )		// Ineligible, or something we don't understand. Pattern does.
+		{	return null;
+		}
+	}
+
+	private LinearPattern( Pattern pattern, int groupCount, Program program )
+	{
+		this.pattern	= pattern;
+		this.groupCount	= groupCount;
+		this.op			= Arrays.copyOf( program.op, program.size );
+		this.x			= Arrays.copyOf( program.x,  program.size );
+		this.y			= Arrays.copyOf( program.y,  program.size );
+		this.classes	= Arrays.copyOf( program.classes, program.size );
+
+		List<CharClass> found = new ArrayList<CharClass>();
+		if( firstClasses(0, new boolean[op.length], found) )
+		{	starts		= null;
+			startsAscii	= null;
+		}
+		else
+		{	starts		= found.toArray( new CharClass[found.size()] );
+			startsAscii	= new long[2];
+			for( CharClass c : starts )
+			{	startsAscii[0] |= c.ascii[0];
+				startsAscii[1] |= c.ascii[1];
+			}
+		}
+	}
+
+	/** Collect the classes of the CHAR instructions reachable from pc without consuming
+	 *  anything. Return true if a MATCH is reachable that way, too.
+	 */
+	private boolean firstClasses( int pc, boolean[] visited, List<CharClass> starts )
+	{
+		if( visited[pc] )
+			return false;
+		visited[pc] = true;
+
+		switch( op[pc] )
+		{
+		case CHAR:	starts.add( classes[pc] );	return false;
+		case MATCH:	return true;
+		case JUMP:	return firstClasses( x[pc], visited, starts );
+		case SPLIT:	return firstClasses( x[pc], visited, starts ) | firstClasses( y[pc], visited, starts );
+		default:	return firstClasses( pc + 1, visited, starts );
+		}
+	}
+
+	/** The pattern that this one was compiled from. */
+	Pattern pattern()
+	{	return pattern;
+	}
+
+	Matcher matcher( CharSequence input )
+	{	return new Matcher( input );
+	}
+
+	//======================================================================
+	/** Thrown when an expression can't be compiled. */
+	private static final class Ineligible extends RuntimeException
+	{	private static final long serialVersionUID = 1L;
+		Ineligible(){ super( null, null, false, false ); }
+	}
+	private static final Ineligible INELIGIBLE = new Ineligible();
+
+	/** Thrown when a Matcher has to hand the search over to a java.util.regex.Matcher. */
+	private static final class Fallback extends RuntimeException
+	{	private static final long serialVersionUID = 1L;
+		Fallback(){ super( null, null, false, false ); }
+	}
+	private static final Fallback FALLBACK = new Fallback();
+
+	//======================================================================
+	/** The instructions, as they're being generated. */
+	private static final class Program
+	{
+		int[]		op		= new int[32];
+		int[]		x		= new int[32];
+		int[]		y		= new int[32];
+		CharClass[]	classes	= new CharClass[32];
+		int			size	= 0;
+
+		/** Add an instruction, returning its address. */
+		int emit( int instruction, int x, int y, CharClass chars )
+		{
+			if( size >= MAX_PROGRAM )
+				throw INELIGIBLE;
+			if( size == op.length )
+			{	op		= Arrays.copyOf( op,	  size * 2 );
+				this.x	= Arrays.copyOf( this.x,  size * 2 );
+				this.y	= Arrays.copyOf( this.y,  size * 2 );
+				classes	= Arrays.copyOf( classes, size * 2 );
+			}
+			op[size]		= instruction;
+			this.x[size]	= x;
+			this.y[size]	= y;
+			classes[size]	= chars;
+			return size++;
+		}
+
+		/** Point a SPLIT's preferred branch at the next instruction and the other one at target, or vice versa. */
+		void patchSplit( int split, int target, boolean greedy )
+		{	x[split] = greedy ? split + 1 : target;
+			y[split] = greedy ? target	  : split + 1;
+		}
+	}
+
+	//======================================================================
+	// The parse tree.
+	//
+	// alternation	: sequence ( '|' sequence )*
+	// sequence		: ( atom quantifier? )*
+	//======================================================================
+
+	private static abstract class Node
+	{	abstract boolean nullable();
+		abstract void	 emit( Program program );
+	}
+
+	private static final class Char extends Node
+	{	final CharClass chars;
+		Char( CharClass chars ){ this.chars = chars; }
+		@Override boolean nullable(){ return false; }
+		@Override void emit( Program program ){ program.emit( CHAR, 0, 0, chars ); }
+	}
+
+	private static final class Assertion extends Node
+	{	final int		kind;
+		final CharClass	chars;
+		Assertion( int kind, CharClass chars ){ this.kind = kind; this.chars = chars; }
+		@Override boolean nullable(){ return true; }
+		@Override void emit( Program program ){ program.emit( ASSERT, kind, 0, chars ); }
+	}
+
+	private static final class Sequence extends Node
+	{	final List<Node> nodes;
+		Sequence( List<Node> nodes ){ this.nodes = nodes; }
+
+		@Override boolean nullable()
+		{	for( Node node : nodes )
+				if( !node.nullable() )
+					return false;
+			return true;
+		}
+
+		@Override void emit( Program program )
+		{	for( Node node : nodes )
+				node.emit( program );
+		}
+	}
+
+	private static final class Alternation extends Node
+	{	final List<Node> alternatives;
+		Alternation( List<Node> alternatives ){ this.alternatives = alternatives; }
+
+		@Override boolean nullable()
+		{	for( Node node : alternatives )
+				if( node.nullable() )
+					return true;
+			return false;
+		}
+
+		@Override void emit( Program program )
+		{
+			int[] exits = new int[ alternatives.size() - 1 ];
+			for( int i = 0; i < exits.length; ++i )
+			{	int split = program.emit( SPLIT, 0, 0, null );
+				alternatives.get(i).emit( program );
+				exits[i] = program.emit( JUMP, 0, 0, null );
+				program.patchSplit( split, program.size, true );
+			}
+			alternatives.get( exits.length ).emit( program );
+
+			for( int exit : exits )
+				program.x[exit] = program.size;
+		}
+	}
+
+	private static final class Group extends Node
+	{	final int  number;
+		final Node body;
+		Group( int number, Node body ){ this.number = number; this.body = body; }
+		@Override boolean nullable(){ return body.nullable(); }
+		@Override void emit( Program program )
+		{	program.emit( SAVE, 2 * number, 0, null );
+			body.emit( program );
+			program.emit( SAVE, 2 * number + 1, 0, null );
+		}
+	}
+
+	private static final class Repeat extends Node
+	{	final Node		body;
+		final int		min;
+		final int		max;		// -1 if unbounded
+		final boolean	greedy;
+
+		Repeat( Node body, int min, int max, boolean greedy )
+		{	this.body = body; this.min = min; this.max = max; this.greedy = greedy;
+		}
+
+		@Override boolean nullable(){ return min == 0 || body.nullable(); }
+
+		@Override void emit( Program program )
+		{
+			for( int i = 0; i < min; ++i )
+				body.emit( program );
+
+			if( max < 0 )
+			{	int loop = program.emit( SPLIT, 0, 0, null );
+				body.emit( program );
+				program.emit( JUMP, loop, 0, null );
+				program.patchSplit( loop, program.size, greedy );
+			}
+			else	// nested optional copies, each of which skips to the end: (x(x(x)?)?)?
+			{	int[] splits = new int[ max - min ];
+				for( int i = 0; i < splits.length; ++i )
+				{	splits[i] = program.emit( SPLIT, 0, 0, null );
+					body.emit( program );
+				}
+				for( int split : splits )
+					program.patchSplit( split, program.size, greedy );
+			}
+		}
+	}
+
+	//======================================================================
+	/** Parses the expression and generates the program. Throws {@link #INELIGIBLE}
+	 *  on anything that isn't supported.
+	 */
+	private static final class Compiler
+	{
+		private final String	source;
+		private final int		flags;
+		private int				position	= 0;
+		int						groupCount	= 0;
+
+		Compiler( Pattern pattern )
+		{	this.source = pattern.pattern();
+			this.flags	= pattern.flags();
+		}
+
+		Program compile()
+		{
+			Node expression = alternation();
+			if( position != source.length() )
+				throw INELIGIBLE;
+			checkCaptures( expression, 0 );
+
+			Program program = new Program();
+			program.emit( SAVE, 0, 0, null );
+			expression.emit( program );
+			program.emit( SAVE, 1, 0, null );
+			program.emit( MATCH, 0, 0, null );
+			return program;
+		}
+
+		/** When a repetition gives back an iteration, Pattern keeps whatever the
+		 *  capturing groups inside that iteration recorded, so when (?:(.))* followed
+		 *  by a space matches "x y", group 1 is the y that was given back, not the x.
+		 *  We can't reproduce that, so reject capturing groups that are inside any
+		 *  repetition but ? (or {0,1}).
+		 */
+		private static void checkCaptures( Node node, int repeats )
+		{
+			if( node instanceof Group )
+			{	if( repeats > 0 )
+					throw INELIGIBLE;
+				checkCaptures( ((Group)node).body, repeats );
+			}
+			else if( node instanceof Repeat )
+			{	Repeat repeat = (Repeat)node;
+				checkCaptures( repeat.body, repeat.max == 0 || repeat.max == 1 ? repeats : repeats + 1 );
+			}
+			else if( node instanceof Sequence )
+			{	for( Node element : ((Sequence)node).nodes )
+					checkCaptures( element, repeats );
+			}
+			else if( node instanceof Alternation )
+			{	for( Node alternative : ((Alternation)node).alternatives )
+					checkCaptures( alternative, repeats );
+			}
+		}
+
+		private boolean is( int flag )
+		{	return (flags & flag) != 0;
+		}
+
+		private Node alternation()
+		{
+			List<Node> alternatives = new ArrayList<Node>();
+			alternatives.add( sequence() );
+			while( position < source.length() && source.charAt(position) == '|' )
+			{	++position;
+				alternatives.add( sequence() );
+			}
+			return alternatives.size() == 1 ? alternatives.get(0) : new Alternation( alternatives );
+		}
+
+		private Node sequence()
+		{
+			List<Node> nodes = new ArrayList<Node>();
+			while( position < source.length() && source.charAt(position) != '|' && source.charAt(position) != ')' )
+				nodes.add( quantified(atom()) );
+			return nodes.size() == 1 ? nodes.get(0) : new Sequence( nodes );
+		}
+
+		private Node quantified( Node node )
+		{
+			if( position >= source.length() )
+				return node;
+
+			int min, max;
+			switch( source.charAt(position) )
+			{
+			case '?':	++position; min = 0; max =  1; break;
+			case '*':	++position; min = 0; max = -1; break;
+			case '+':	++position; min = 1; max = -1; break;
+			case '{':
+			{	int close = source.indexOf( '}', position );
+				if( close < 0 )
+					throw INELIGIBLE;
+				String body	 = source.substring( position + 1, close );
+				int	   comma = body.indexOf( ',' );
+				try
+				{	min = Integer.parseInt( comma < 0 ? body : body.substring(0, comma) );
+					max = comma < 0							   ? min
+						: body.substring(comma + 1).length() == 0 ? -1
+						: Integer.parseInt( body.substring(comma + 1) );
+				}
+				catch( NumberFormatException e )
+				{	throw INELIGIBLE;
+				}
+				position = close + 1;
+				break;
+			}
+			default:
+				return node;
+			}
+
+			boolean greedy = true;
+			if( position < source.length() && source.charAt(position) == '?' )
+			{	++position;
+				greedy = false;
+			}
+			else if( position < source.length() && source.charAt(position) == '+' )
+				throw INELIGIBLE;								// possessive
+
+			if( node instanceof Assertion || (max != 1 && node.nullable()) )
+				throw INELIGIBLE;
+			return new Repeat( node, min, max, greedy );
+		}
+
+		private Node atom()
+		{
+			int	 start = position;
+			char c	   = source.charAt( position++ );
+			switch( c )
+			{
+			case '(':	return group();
+			case '^':	return new Assertion( !is(Pattern.MULTILINE) ? BEGIN_INPUT
+											: is(Pattern.UNIX_LINES) ? UNIX_CARET : CARET, null );
+			case '$':	return new Assertion( is(Pattern.UNIX_LINES)
+											? (is(Pattern.MULTILINE) ? UNIX_DOLLAR_MULTILINE : UNIX_DOLLAR)
+											: (is(Pattern.MULTILINE) ? DOLLAR_MULTILINE		 : DOLLAR), null );
+			case '[':	skipClass();
+						return character( start );
+			case '.':	return character( start );
+			case '\\':	return escape( start );
+			case '*': case '+': case '?': case '{':
+						throw INELIGIBLE;
+			default:
+				if( Character.isSurrogate(c) )
+					throw INELIGIBLE;
+				return new Char( CharClass.of(Pattern.quote(String.valueOf(c)), flags) );
+			}
+		}
+
+		private Node group()
+		{
+			if( !source.startsWith("?", position) )
+			{	int number = ++groupCount;
+				Node body  = alternation();
+				close();
+				return new Group( number, body );
+			}
+
+			if( source.startsWith("?:", position) )
+			{	position += 2;
+				Node body = alternation();
+				close();
+				return body;
+			}
+
+			int kind;
+			if	   ( source.startsWith("?=",  position) ){ position += 2; kind = AHEAD;	   }
+			else if( source.startsWith("?!",  position) ){ position += 2; kind = NOT_AHEAD;	   }
+			else if( source.startsWith("?<=", position) ){ position += 3; kind = BEHIND;	   }
+			else if( source.startsWith("?<!", position) ){ position += 3; kind = NOT_BEHIND; }
+			else
+				throw INELIGIBLE;								// named or atomic group, or inline flags
+
+			if( position >= source.length() || source.charAt(position) == ')' || source.charAt(position) == '|' )
+				throw INELIGIBLE;
+			Node body = atom();
+			if( !(body instanceof Char) )
+				throw INELIGIBLE;
+			close();
+			return new Assertion( kind, ((Char)body).chars );
+		}
+
+		private void close()
+		{	if( position >= source.length() || source.charAt(position) != ')' )
+				throw INELIGIBLE;
+			++position;
+		}
+
+		private Node escape( int start )
+		{
+			if( position >= source.length() )
+				throw INELIGIBLE;
+
+			char c = source.charAt( position++ );
+			switch( c )
+			{
+			case 'b':	if( source.startsWith("{", position) )		// \b{g}
+							throw INELIGIBLE;
+						return new Assertion( BOUNDARY,		null );
+			case 'B':	return new Assertion( NOT_BOUNDARY,	null );
+			case 'A':	return new Assertion( BEGIN_INPUT,	null );
+			case 'z':	return new Assertion( END_INPUT,	null );
+			case 'Z':	return new Assertion( is(Pattern.UNIX_LINES) ? UNIX_DOLLAR : DOLLAR, null );
+
+			case 'p': case 'P':
+				if( source.startsWith("{", position) )
+					position = source.indexOf( '}', position ) + 1;
+				else
+					++position;
+				return character( start );
+
+			case 'd': case 'D': case 's': case 'S': case 'w': case 'W':
+			case 'h': case 'H': case 'v': case 'V':
+			case 't': case 'n': case 'r': case 'f': case 'a': case 'e':
+				return character( start );
+
+			case 'x':
+				if( source.startsWith("{", position) )
+					throw INELIGIBLE;							// might be a supplementary character
+				position += 2;
+				return character( start );
+
+			case 'u':
+			{	position += 4;
+				if( Character.isSurrogate((char)Integer.parseInt(source.substring(position - 4, position), 16)) )
+					throw INELIGIBLE;
+				return character( start );
+			}
+			case 'c':	++position;
+						return character( start );
+			case '0':
+			{	int digits = 0;
+				while( digits < 3 && position + digits < source.length()
+						&& source.charAt(position + digits) >= '0' && source.charAt(position + digits) <= '7' )
+					++digits;
+				if( digits == 3 && source.charAt(position) > '3' )
+					--digits;
+				position += digits;
+				return character( start );
+			}
+			default:
+				if( Character.isLetterOrDigit(c) )				// back references, \G, \R, \X, \k<name>, etc.
+					throw INELIGIBLE;
+				return character( start );
+			}
+		}
+
+		/** Skip past a character class, which might contain nested classes. */
+		private void skipClass()
+		{
+			if( source.startsWith("^", position) )
+				++position;
+			if( source.startsWith("]", position) )
+				++position;
+			for( int depth = 1; depth > 0; ++position )
+			{
+				if( position >= source.length() )
+					throw INELIGIBLE;
+				char c = source.charAt( position );
+				if( c == '\\' )
+					++position;
+				else if( c == '[' )
+					++depth;
+				else if( c == ']' )
+					--depth;
+			}
+		}
+
+		private Node character( int start )
+		{	if( position > source.length() )
+				throw INELIGIBLE;
+			return new Char( CharClass.of(source.substring(start, position), flags) );
+		}
+	}
+
+	//======================================================================
+	/** A list of threads, in priority order, with at most one thread per instruction. */
+	private static final class Threads
+	{
+		final int[]		pc;
+		final int[][]	captures;
+		final int[]		mark;		// mark[pc] == generation if pc has been visited in this generation.
+		int				generation	= 1;
+		int				size		= 0;
+
+		Threads( int programSize )
+		{	pc		 = new int[ programSize ];
+			captures = new int[ programSize ][];
+			mark	 = new int[ programSize ];
+		}
+
+		void clear()
+		{	size = 0;
+			++generation;
+		}
+
+		/** Return true (and mark pc) if pc hasn't been visited yet. */
+		boolean visit( int address )
+		{	if( mark[address] == generation )
+				return false;
+			mark[address] = generation;
+			return true;
+		}
+
+		void add( int address, int[] slots )
+		{	if( captures[size] == null )
+				captures[size] = new int[ slots.length ];
+			System.arraycopy( slots, 0, captures[size], 0, slots.length );
+			pc[size++] = address;
+		}
+	}
+
+	//======================================================================
+	/** Finds successive matches in the input, with the same semantics as
+	 *  {@link java.util.regex.Matcher#find()}.
+	 */
+	final class Matcher implements MatchResult
+	{
+		private final CharSequence	input;
+		private final int			length;
+		private final int[]			groups;
+
+		// As in java.util.regex.Matcher: the bounds of the previous match, first == -1 if there isn't one.
+		private int					first = -1;
+		private int					last  = 0;
+
+		private Threads				current;
+		private Threads				next;
+		private int[]				work;
+
+		/** Does the matching once this matcher has had to give up. */
+		private java.util.regex.Matcher delegate;
+
+		private Matcher( CharSequence input )
+		{	this.input	= input;
+			this.length	= input.length();
+			this.groups	= new int[ 2 * (groupCount + 1) ];
+		}
+
+		/** Find the next match, starting where the previous one ended. */
+		public boolean find()
+		{
+			if( delegate != null )
+				return delegate.find();
+
+			int from = (last == first) ? last + 1 : last;
+			Arrays.fill( groups, -1 );
+			if( from > length )
+				return false;
+
+			try
+			{	if( search(from) )
+				{	first = groups[0];
+					last  = groups[1];
+					return true;
+				}
+				first = -1;
+				return false;
+			}
+			catch( Fallback e )
+			{	delegate = pattern.matcher( input );
+				return delegate.find( from );
+			}
+		}
+
+		/** Run the threads from position from until the highest-priority match is found. */
+		private boolean search( int from )
+		{
+			if( starts != null && (from = skip(from)) < 0 )
+				return false;					// usually the case, so don't allocate anything until here.
+
+			if( current == null )
+			{	current = new Threads( op.length );
+				next	= new Threads( op.length );
+				work	= new int[ groups.length ];
+			}
+			current.clear();
+
+			boolean matched = false;
+			for( int i = from;; ++i )
+			{
+				if( !matched )					// start a new, lowest-priority thread here
+				{
+					if( current.size == 0 )
+					{	current.clear();		// forget what was visited at an earlier position
+						if( starts != null && (i = skip(i)) < 0 )
+							return false;
+					}
+
+					Arrays.fill( work, -1 );
+					add( current, 0, i );
+				}
+				else if( current.size == 0 )
+					return true;
+
+				next.clear();
+				char c = (i < length) ? charAt( i ) : 0;
+				for( int t = 0; t < current.size; ++t )
+				{
+					int pc = current.pc[t];
+					if( op[pc] == MATCH )
+					{	System.arraycopy( current.captures[t], 0, groups, 0, groups.length );
+						matched = true;
+						break;					// the remaining threads have lower priority
+					}
+					if( i < length && classes[pc].contains(c) )
+					{	System.arraycopy( current.captures[t], 0, work, 0, work.length );
+						add( next, pc + 1, i + 1 );
+					}
+				}
+
+				Threads swap = current;
+				current		 = next;
+				next		 = swap;
+
+				if( i >= length )
+					return matched;
+			}
+		}
+
+		/** Return the position of the first character at or after i that could start a match, or -1 if there isn't one. */
+		private int skip( int i )
+		{
+			for( ; i < length; ++i )
+			{	char c = charAt( i );
+				if( c < 128 )
+				{	if( (startsAscii[c >> 6] & (1L << c)) != 0 )
+						return i;
+				}
+				else
+				{	for( CharClass chars : starts )
+						if( chars.contains(c) )
+							return i;
+				}
+			}
+			return -1;
+		}
+
+		/** Follow the instruction at pc, and everything that it leads to without consuming
+		 *  input, adding the threads that end up waiting for a character (or matching) to
+		 *  the list. The captures are in work, which is restored before returning.
+		 */
+		private void add( Threads list, int pc, int i )
+		{
+			if( !list.visit(pc) )
+				return;
+
+			switch( op[pc] )
+			{
+			case JUMP:
+				add( list, x[pc], i );
+				break;
+
+			case SPLIT:
+				add( list, x[pc], i );
+				add( list, y[pc], i );
+				break;
+
+			case SAVE:
+			{	int slot	 = x[pc];
+				int previous = work[slot];
+				work[slot]	 = i;
+				add( list, pc + 1, i );
+				work[slot]	 = previous;
+				break;
+			}
+			case ASSERT:
+				if( holds(x[pc], classes[pc], i) )
+					add( list, pc + 1, i );
+				break;
+
+			default:
+				list.add( pc, work );
+				break;
+			}
+		}
+
+		/** Evaluate an assertion at position i. The line-terminator rules are the ones used by Pattern. */
+		private boolean holds( int assertion, CharClass chars, int i )
+		{
+			switch( assertion )
+			{
+			case BEGIN_INPUT:	return i == 0;
+			case END_INPUT:		return i == length;
+
+			case CARET:
+				if( i == length )
+					return false;
+				if( i > 0 )
+				{	char c = charAt( i - 1 );
+					if( c != '\n' && c != '\r' && (c | 1) != '\u2029' && c != '\u0085' )
+						return false;
+					if( c == '\r' && charAt(i) == '\n' )
+						return false;
+				}
+				return true;
+
+			case UNIX_CARET:
+				return i < length && (i == 0 || charAt(i - 1) == '\n');
+
+			case DOLLAR:
+			case DOLLAR_MULTILINE:
+			{	boolean multiline = (assertion == DOLLAR_MULTILINE);
+				if( !multiline )
+				{	if( i < length - 2 )
+						return false;
+					if( i == length - 2 && (charAt(i) != '\r' || charAt(i + 1) != '\n') )
+						return false;
+				}
+				if( i < length )
+				{	char c = charAt( i );
+					if( c == '\n' )
+						return !(i > 0 && charAt(i - 1) == '\r');
+					return c == '\r' || c == '\u0085' || (c | 1) == '\u2029';
+				}
+				return true;
+			}
+			case UNIX_DOLLAR:
+			case UNIX_DOLLAR_MULTILINE:
+				if( i < length )
+					return charAt(i) == '\n' && (assertion == UNIX_DOLLAR_MULTILINE || i == length - 1);
+				return true;
+
+			case BOUNDARY:		return isWord( i - 1 ) != isWord( i );
+			case NOT_BOUNDARY:	return isWord( i - 1 ) == isWord( i );
+
+			case BEHIND:		return i > 0		&&  chars.contains( charAt(i - 1) );
+			case NOT_BEHIND:	return !(i > 0		&&  chars.contains( charAt(i - 1) ));
+			case AHEAD:			return i < length	&&  chars.contains( charAt(i) );
+			case NOT_AHEAD:		return !(i < length &&  chars.contains( charAt(i) ));
+
+			default:
+				throw new IllegalStateException( "Unknown assertion " + assertion );
+			}
+		}
+
+		/** True if the character at i is part of a word, as far as \b is concerned. */
+		private boolean isWord( int i )
+		{
+			if( i < 0 || i >= length )
+				return false;
+			char c = charAt( i );
+			if( c >= 128 && Character.getType(c) == Character.NON_SPACING_MARK )
+				throw FALLBACK;			// depends on the characters before it
+			return WORD.contains( c );
+		}
+
+		private char charAt( int i )
+		{	char c = input.charAt( i );
+			if( Character.isSurrogate(c) )
+				throw FALLBACK;
+			return c;
+		}
+
+		//------------------------------------------------------------------
+		// MatchResult
+
+		@Override public int start()
+		{	return start( 0 );
+		}
+
+		@Override public int start( int group )
+		{	return bound( 2 * checked(group) );
+		}
+
+		@Override public int end()
+		{	return end( 0 );
+		}
+
+		@Override public int end( int group )
+		{	return bound( 2 * checked(group) + 1 );
+		}
+
+		@Override public String group()
+		{	return group( 0 );
+		}
+
+		@Override public String group( int group )
+		{	int start = start( group );
+			return start < 0 ? null : input.subSequence( start, end(group) ).toString();
+		}
+
+		@Override public int groupCount()
+		{	return groupCount;
+		}
+
+		private int checked( int group )
+		{	if( group < 0 || group > groupCount )
+				throw new IndexOutOfBoundsException( "No group " + group );
+			return group;
+		}
+
+		private int bound( int slot )
+		{	if( delegate != null )
+				return (slot & 1) == 0 ? delegate.start( slot / 2 ) : delegate.end( slot / 2 );
+			if( first < 0 )
+				throw new IllegalStateException( "No match available" );
+			return groups[ slot ];
+		}
+	}
+}
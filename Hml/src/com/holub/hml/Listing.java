@@ -10,6 +10,8 @@ import com.holub.text.Text;
 import com.holub.util.ExtendedLogger;
 import com.holub.hml.Filter;
 
+import org.apache.log4j.Level;
+
 // TODO: Rewrite this file to use Tags.processElement
 
 /** Handles &lt;listing&gt; and &lt;pre&gt; elements. See main documentation for details.
@@ -37,11 +39,20 @@ public class Listing implements Filter
 	private final ReportingStream error;
 	private final Pattern bangComment;
 	
+	/** The bangComment configuration value used if the document doesn't specify one */
+	private static final String	 DEFAULT_BANG_COMMENT = "(?://|(?<!&)#+)!";
+	private static final Pattern defaultBangComment	  = compileBangComment( DEFAULT_BANG_COMMENT );
+	
 	public Listing( Configuration config )
 	{	this.error = config.error();
 	
-	  	config.supplyDefault("bangComment", "(?://|(?<!&)#+)!" );
-	  	bangComment = Pattern.compile( "(.*?)\\s*" + config.value("bangComment") + "\\s*(.*?)\\s*$" , Pattern.MULTILINE );
+	  	config.supplyDefault("bangComment", DEFAULT_BANG_COMMENT );
+	  	String value = config.value("bangComment");
+	  	bangComment	 = value.equals(DEFAULT_BANG_COMMENT) ? defaultBangComment : compileBangComment(value);
+	}
+	
+	private static Pattern compileBangComment( String bangCommentValue )
+	{	return Pattern.compile( "(.*?)\\s*" + bangCommentValue + "\\s*(.*?)\\s*$" , Pattern.MULTILINE );
 	}
 	//----------------------------------------------------------------------
 	/** The line number (and listing label) associated with things that can be referenced
@@ -456,7 +467,10 @@ public class Listing implements Filter
 	 */
 	public void logDebuggingInfo()
 	{
-		if( symbols.size() > 0 )
+		// Called after every listing, so formatting the whole symbol table when nobody's
+		// going to look at it makes processing time quadratic in the number of listings.
+		//
+		if( symbols.size() > 0 && log.isEnabledFor(Level.TRACE) )
 		{
 			Text t = new Text();
 			for( String key: symbols.keySet() )
@@ -538,11 +552,17 @@ public class Listing implements Filter
 									"\\{((?:[#:]|line|ref|sref)\\s*)"  + refId	+ "\\s*(.*?)\\s*\\}"
 								);
 	
-	private class InternalListingReferences implements Filter
+	private static final Pattern anyMemberReference = Pattern.compile( "\\{(?:[#:]|line|ref|sref)" );
+	
+	private class InternalListingReferences implements Filter.Selective
 	{
 		@Override public boolean isCodeBlockFilter(){ return true;  }
 		@Override public boolean isSnippetFilter()	{ return false; }
 		@Override public boolean isTextFilter()		{ return true;  }
+		
+		@Override public boolean isNeededFor( CharSequence document )
+		{	return anyMemberReference.matcher(document).find();
+		}
 	
 		@Override
 		public void filter(Text prefix, Text body, Text suffix, BlockType type)
@@ -0,0 +1,178 @@
+package com.holub.hml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/** An Aho-Corasick automaton that finds, in a single left-to-right scan of
+ *  a string, every one of a fixed set of literal strings that occurs in it.
+ *  The scan takes time proportional to the length of the input, regardless
+ *  of how many literals there are.
+ *  <p>
+ *  The literals are identified by their position in the list passed to the
+ *  constructor. Once constructed, a scanner is immutable, so it can be
+ *  used by several threads at once.
+ *
+ * @author allen
+ */
+
+final class LiteralScanner
+{
+	// The states are numbered from zero (the start state). The outgoing transitions
+	// of state s are labels[s][i] -> targets[s][i], with labels[s] sorted.
+
+	private final char[][]	labels;
+	private final int[][]	targets;
+	private final int[]		failure;
+
+	/** matches[s] holds the ids of every literal that ends when the automaton
+	 *  enters state s, including those inherited along the failure links. */
+	private final int[][]	matches;
+
+	private final int		literalCount;
+
+	LiteralScanner( List<String> literals )
+	{
+		literalCount = literals.size();
+
+		// Build the trie.
+
+		List<StringBuilder>		stateLabels	 = new ArrayList<StringBuilder>();
+		List<List<Integer>>		stateTargets = new ArrayList<List<Integer>>();
+		List<List<Integer>>		stateMatches = new ArrayList<List<Integer>>();
+		addState( stateLabels, stateTargets, stateMatches );
+
+		for( int id = 0; id < literals.size(); ++id )
+		{
+			int state = 0;
+			for( char c : literals.get(id).toCharArray() )
+			{
+				int i = stateLabels.get(state).indexOf( String.valueOf(c) );
+				if( i >= 0 )
+					state = stateTargets.get(state).get(i);
+				else
+				{	int next = addState( stateLabels, stateTargets, stateMatches );
+					stateLabels .get(state).append( c );
+					stateTargets.get(state).add( next );
+					state = next;
+				}
+			}
+			stateMatches.get(state).add( id );
+		}
+
+		// Freeze it into arrays, sorting each state's transitions by label.
+
+		int states = stateLabels.size();
+		labels	= new char[states][];
+		targets	= new int [states][];
+		failure	= new int [states];
+		matches	= new int [states][];
+
+		for( int s = 0; s < states; ++s )
+		{
+			char[] label  = stateLabels.get(s).toString().toCharArray();
+			int[]  target = new int[label.length];
+			Integer[] order = new Integer[label.length];
+			for( int i = 0; i < order.length; ++i )
+				order[i] = i;
+
+			final char[] unsorted = label.clone();
+			Arrays.sort( order, new Comparator<Integer>()
+				{	@Override public int compare( Integer a, Integer b )
+					{	return unsorted[a] - unsorted[b];
+					}
+				});
+
+			for( int i = 0; i < order.length; ++i )
+			{	label[i]  = unsorted[ order[i] ];
+				target[i] = stateTargets.get(s).get( order[i] );
+			}
+			labels[s]  = label;
+			targets[s] = target;
+		}
+
+		// Compute the failure links breadth first, merging the match lists
+		// of each state's failure state into its own.
+
+		int[] queue = new int[states];
+		int	  head	= 0;
+		int	  tail	= 0;
+
+		for( int child : targets[0] )
+		{	failure[child] = 0;
+			queue[tail++]  = child;
+		}
+
+		while( head < tail )
+		{
+			int s = queue[head++];
+			for( int i = 0; i < labels[s].length; ++i )
+			{
+				int	 child = targets[s][i];
+				char c	   = labels[s][i];
+
+				int f = failure[s];
+				while( f != 0 && next(f, c) < 0 )
+					f = failure[f];
+				int target = next( f, c );
+				failure[child] = (target >= 0) ? target : 0;
+
+				queue[tail++] = child;
+			}
+		}
+
+		for( int i = 0; i < states; ++i )		// queue holds the states in breadth-first order.
+		{
+			int s = (i == 0) ? 0 : queue[i - 1];
+			List<Integer> own = stateMatches.get(s);
+			int[] inherited = (s == 0) ? new int[0] : matches[ failure[s] ];
+
+			int[] merged = new int[ own.size() + inherited.length ];
+			for( int j = 0; j < own.size(); ++j )
+				merged[j] = own.get(j);
+			System.arraycopy( inherited, 0, merged, own.size(), inherited.length );
+			matches[s] = merged;
+		}
+	}
+
+	private static int addState( List<StringBuilder> labels, List<List<Integer>> targets, List<List<Integer>> matches )
+	{	labels .add( new StringBuilder() );
+		targets.add( new ArrayList<Integer>() );
+		matches.add( new ArrayList<Integer>() );
+		return labels.size() - 1;
+	}
+
+	/** Return the state reached from s on c, or -1 if there's no such transition. */
+	private int next( int s, char c )
+	{	int i = Arrays.binarySearch( labels[s], c );
+		return i < 0 ? -1 : targets[s][i];
+	}
+
+	/** Return the number of literals that the scanner looks for. */
+	int size()
+	{	return literalCount;
+	}
+
+	/** Scan the input, returning an array indexed by literal id in which an element
+	 *  is true if the corresponding literal occurs somewhere in the input.
+	 */
+	boolean[] scan( CharSequence input )
+	{
+		boolean[] found = new boolean[ literalCount ];
+		int		  state = 0;
+
+		for( int i = 0, length = input.length(); i < length; ++i )
+		{
+			char c = input.charAt(i);
+			int	 target;
+			while( (target = next(state, c)) < 0 && state != 0 )
+				state = failure[state];
+
+			state = target < 0 ? 0 : target;
+			for( int id : matches[state] )
+				found[id] = true;
+		}
+		return found;
+	}
+}
@@ -1,19 +1,25 @@
 package com.holub.hml;
 
 import com.holub.hml.Filter;
+import com.holub.hml.Configuration.RegexEngine;
 import com.holub.hml.Filter.BlockType;
 import com.holub.text.ReportingStream;
 import com.holub.text.Text;
 import com.holub.util.ExtendedLogger;
 import com.holub.util.Places;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
 import java.io.Reader;
 
 import org.apache.log4j.Level;
@@ -55,47 +61,144 @@ public class Macro
 {
 	private static ExtendedLogger log = ExtendedLogger.getLogger(Macro.class);
 	
-	private static final String[] month_names =
-	{	"January", "February", "March", "April", "May", "June", "July",
-		"August", "September", "October", "November", "December", };
-
-	private static final String[] day_names =
-	{	null, "Sunday", "Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday"
-	};
-	
 	private final ReportingStream	error;
+	private final Configuration		config;
+	
+	/** The source name given to definitions that come from &lt;macro&gt; elements. */
+	private static final String USER_MACROS = "<macro>";
+	
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
 	//----------------------------------------------------------------------
 	
 	public Macro( Configuration config, boolean loadDefaultDefinitionsFromFile )
 	{
 		this.error  = config.error();
+		this.config = config;
 		
-		if( loadDefaultDefinitionsFromFile )
+		if( !loadDefaultDefinitionsFromFile )
+			defaultMacros = DefinitionSet.EMPTY;
+		else
 		{
-			loadDefaultMacroDefinitionsFromFile("hml.macros");
-			log.debug( "Loaded macros from config file:\n%s\n", macros.toString());
+			defaultMacros = loadDefaultMacroDefinitionsFromFile("hml.macros");
+			log.debug( "Loaded macros from config file:\n%s\n", defaultMacros.toString());
 		}
+		macros = defaultMacros;
 	}
 	
 	public Macro( Configuration config )
 	{	this(config, true);
 	}
 	
+	/** Create a Macro object that starts out with the same macro definitions
+	 *  as the defaults object, without having to load them again. The definitions
+	 *  (which are immutable) are shared, along with their prefilters. User macros
+	 *  loaded into the new object are layered on top of them, so they don't affect
+	 *  the defaults.
+	 */
+	public Macro( Configuration config, Macro defaults )
+	{	this.error		   = config.error();
+		this.config		   = config;
+		this.defaultMacros = defaults.defaultMacros;
+		this.macros		   = defaultMacros;
+	}
+	
 	@Override public String toString()
 	{	return macros.toString();
 	}
 	
-	private final DefinitionSet macros = new DefinitionSet();
+	/** The macros loaded from the configuration file (or copied from another Macro object's defaults). */
+	private final DefinitionSet defaultMacros;
+	
+	/** The user macros defined so far in the current document. */
+	private DefinitionSet userMacros = DefinitionSet.EMPTY;
+	
+	/** User macros from &lt;macro scope="global"&gt; elements, which stay in effect for every
+	 *  later document processed by this object, and the bodies of the elements that
+	 *  defined them. An element that's exported again (by the next document that imports
+	 *  the same file, say) is already in effect, so it isn't added twice.
+	 */
+	private final Set<String> exported = new HashSet<String>();
+	private DefinitionSet globalMacros = DefinitionSet.EMPTY;
+	
+	/** The macros in effect: the current document's user macros layered over the
+	 *  global ones, which are layered over the defaults.
+	 *  It's volatile because the code filter runs on several threads at once.
+	 */
+	private volatile DefinitionSet macros;
+	
+	/** The scope= attribute of a &lt;macro&gt; element: how long its definitions stay in effect. */
+	private enum Scope
+	{
+		/** Only in the text block that holds the element. */
+		BLOCK,
+		
+		/** From the block that holds the element to the end of the document. */
+		DOCUMENT,
+		
+		/** Like DOCUMENT, but also in every later document processed by the same object. */
+		GLOBAL
+	}
+	
+	/** Compiled user macros, keyed by the body of the &lt;macro&gt; element that defines them,
+	 *  so that a document that's rendered repeatedly in a long-running process (or a
+	 *  set of documents that include the same macros) doesn't recompile them every
+	 *  time. Only definitions that loaded without errors are cached, so that the
+	 *  errors are reported for every document. When the cache is full, the least
+	 *  recently used definitions are discarded.
+	 */
+	private static final int MAX_COMPILED_USER_MACROS = 256;
+	private static final Map<String,DefinitionSet> compiledUserMacros = Collections.synchronizedMap(
+			new LinkedHashMap<String,DefinitionSet>( 16, 0.75f, true )
+			{	@Override protected boolean removeEldestEntry( Map.Entry<String,DefinitionSet> eldest )
+				{	return size() > MAX_COMPILED_USER_MACROS;
+				}
+			});
+	
+	/** If this isn't null, expanded text segments are stored here and reused. */
+	private volatile SegmentCache segmentCache = null;
+	
+	/** Keep the results of expanding the text macros in the indicated cache, and
+	 *  use them, rather than expanding the macros, when the same text is expanded by
+	 *  the same macros again. Pass null to stop caching. The cache can be shared by
+	 *  several Macro objects.
+	 */
+	public void useSegmentCache( SegmentCache cache )
+	{	segmentCache = cache;
+	}
+	
+	/** Macros are profiled here if this is non-null and profiling is turned on. */
+	private volatile Stats stats = null;
+	
+	/** If stats isn't null and {@link Stats#isProfilingMacros()} is true, record what
+	 *  each macro does in it.
+	 */
+	public void collectStatisticsIn( Stats stats )
+	{	this.stats = stats;
+	}
+	
+	/** Return the Stats object that individual macros should be recorded in, or null. */
+	private Stats profile()
+	{	Stats s = stats;
+		return (s != null && s.isProfilingMacros()) ? s : null;
+	}
 	//----------------------------------------------------------------------
 	
-	/** Load macro definitions from the specified macro-definition file into the specified macroTable.
+	/** Load macro definitions from the specified macro-definition file, or from its
+	 *  precompiled {@link MacroBundle} if there's an up-to-date one. (The macros in a
+	 *  bundle were checked for catastrophic backtracking when the bundle was built, so
+	 *  they aren't checked again here.)
 	 */
-	private void loadDefaultMacroDefinitionsFromFile( final String macroDefFile )
+	private DefinitionSet loadDefaultMacroDefinitionsFromFile( final String macroDefFile )
 	{
+		DefinitionSet bundled = MacroBundle.load( macroDefFile );
+		if( bundled != null )
+			return bundled;
+
+		DefinitionSet.Builder macroTable = new DefinitionSet.Builder();
 		try
 		{
 			Reader reader = Places.CONFIG.reader(macroDefFile);
-			_loadMacroDefinitions( macros, new Text(reader) );
+			_loadMacroDefinitions( macroTable, new Text(reader), macroDefFile );
 			
 			log.debug("Loading macros from" + Places.CONFIG.url("hml.macros") );
 			
@@ -108,6 +211,7 @@ public class Macro
 		{	
 			error.report( "Couldn't read macro-defintion file: %s", e.getMessage() );
 		}
+		return macroTable.build();
 	}
 	//----------------------------------------------------------------------
 	/**
@@ -132,14 +236,28 @@ public class Macro
 	 * 			 Macros must be loaded (and processed) in definition order. so this is a list, not a generic collection.
 	 * @throws DefinitionException if there's something wrong with a definition.
 	 */
-	public void _loadMacroDefinitions( DefinitionSet macroTable, Text definitions) throws Exception
+	public void _loadMacroDefinitions( DefinitionSet.Builder macroTable, Text definitions) throws Exception
+	{	_loadMacroDefinitions( macroTable, definitions, null );
+	}
+	
+	/** Same as {@link #_loadMacroDefinitions(DefinitionSet.Builder, Text)}, but the definitions
+	 *  remember where they came from (e.g. hml.macros:203), which identifies them in the
+	 *  macro profile (see {@link Stats}).
+	 *  
+	 * @param sourceName the name of the file (or element) that holds the definitions, or null.
+	 */
+	public void _loadMacroDefinitions( DefinitionSet.Builder macroTable, Text definitions, String sourceName ) throws Exception
 	{
+		int[] physicalLine = physicalLineNumbers( definitions.toString() );
+		
 		definitions.mergeContinuationLines(Text.Continuation.MERGE);
 		
 		int lineNum = 0;
 		for( String line : definitions )
 		{
 			++lineNum;
+			String source = (sourceName == null) ? null
+						  : sourceName + ":" + (lineNum <= physicalLine.length ? physicalLine[lineNum - 1] : lineNum);
 			try
 			{	
 				// remove comments and blank lines
@@ -163,64 +281,211 @@ public class Macro
 				// chunk[0] should be empty, so the search string is in chunk[1] and the
 				// replacement is in chunk[2]
 				
-				if( chunk.length == 4 )	 	 macroTable.addLast(type, new Definition(error, chunk[1],chunk[2],chunk[3]));
-				else if( chunk.length == 3 ) macroTable.addLast(type, new Definition(error, chunk[1],chunk[2],null	));
-				else if( chunk.length == 2 ) macroTable.addLast(type, new Definition(error, chunk[1],"",null	));
+				Definition definition;
+				if( chunk.length == 4 )	 	 definition = new Definition(error, chunk[1],chunk[2],chunk[3], source);
+				else if( chunk.length == 3 ) definition = new Definition(error, chunk[1],chunk[2],null,	   source);
+				else if( chunk.length == 2 ) definition = new Definition(error, chunk[1],"",null,		   source);
 				else
 					throw new DefinitionException( lineNum,
 													"Macro def must have either two or three fields:\n\t"
 													+ line );
+				
+				macroTable.addLast( type, definition );
+				reportBacktracking( definition, USER_MACROS.equals(sourceName) );
 			}
 			catch( IndexOutOfBoundsException e )
 			{	// Line is empty. Loop back up and do the next line.
 			}
 		}
 	}
+	
+	/** Report a definition whose regex could take long enough to fail that it would hang
+	 *  the renderer. (See {@link BacktrackingAnalyzer}; the label includes the line number.)
+	 *  Problems in user macros are reported as warnings, since the document's author can
+	 *  fix them. Problems in the configuration file would otherwise be reported every time
+	 *  the program ran, so they're logged at the INFO level, and the analysis (which takes
+	 *  most of a second for hml.macros) isn't done at all unless that level is enabled for
+	 *  this class. {@link MacroBundle#build} always checks the definitions it bundles.
+	 */
+	private static void reportBacktracking( Definition definition, boolean isUserMacro )
+	{
+		Level level = isUserMacro ? Level.WARN : Level.INFO;
+		if( !log.isEnabledFor(level) )
+			return;
+		
+		BacktrackingAnalyzer.Risk risk = BacktrackingAnalyzer.analyze( definition.regex() );
+		if( risk.isRisky() )
+		{	if( isUserMacro )
+				log.warn( "Macro %s could backtrack catastrophically: %s", definition.label(), risk );
+			else
+				log.info( "Macro %s could backtrack catastrophically: %s", definition.label(), risk );
+		}
+		else if( !risk.findings().isEmpty() && log.isEnabledFor(Level.DEBUG) )
+			log.debug( "Macro %s: %s", definition.label(), risk );
+	}
+	
+	/** The pattern that {@link Text#mergeContinuationLines(Text.Continuation)} uses for MERGE. */
+	private static final Pattern continuation = Pattern.compile( "\\s*(\\\\)\\s*\\n\\s*" );
+	
+	/** Return an array that holds, for each line that will be left after
+	 *  continuation lines are merged, the number of the line in the original
+	 *  text that it starts on (the first line is 1).
+	 */
+	private static int[] physicalLineNumbers( String text )
+	{
+		List<Integer> starts   = new ArrayList<Integer>();
+		int			  physical = 1;
+		starts.add( physical );
+		
+		Matcher m = continuation.matcher( text );
+		int		merged = m.find() ? m.start() : -1;
+		
+		for( int i = 0; i < text.length(); ++i )
+		{
+			if( i == merged )						// skip over the continuation, counting lines
+			{	for( ; i < m.end(); ++i )
+					if( text.charAt(i) == '\n' )
+						++physical;
+				merged = m.find() ? m.start() : -1;
+				--i;
+			}
+			else if( text.charAt(i) == '\n' )
+				starts.add( ++physical );
+		}
+		
+		int[] result = new int[ starts.size() ];
+		for( int i = 0; i < result.length; ++i )
+			result[i] = starts.get(i);
+		return result;
+	}
 	//----------------------------------------------------------------------
+	/** Forget the user macros defined by the previous document (other than the
+	 *  global ones). Call this at the start of every document so that a processor that
+	 *  handles several documents doesn't apply one document's macros to the next, or
+	 *  accumulate definitions forever.
+	 */
+	public void startDocument()
+	{	userMacros = DefinitionSet.EMPTY;
+		macros	   = globalMacros.over( defaultMacros );
+	}
+	
 	/** Loads the "user macros" that are defined in <macro> elements in blocks.
 	 *  are loaded into the front of the macro table, so they are processed before any
 	 *  build-in or predefined macros. All <macro> elements are effectively
 	 *  coalesced, and the user macros are applied in the order they were declared.
+	 *  The user macros stay in effect until the next call to {@link #startDocument()},
+	 *  unless the element has a scope="global" attribute, in which case they stay in
+	 *  effect for the life of this object. Macros in elements with a scope="block"
+	 *  attribute are ignored (they're used only by the text filter, which
+	 *  applies them to the block that holds the element).
 	 *  
 	 * @param input
-	 * @return input with &lt;macro&gt; elements removed.
+	 * @return input with &lt;macro&gt; elements removed, or input itself if
+	 * 			it doesn't contain any &lt;macro&gt; elements.
 	 */
 	public Text loadUserMacros( Text input )
+	{	return loadUserMacros( input, new ArrayList<DefinitionSet>() );
+	}
+	
+	/** Same as {@link #loadUserMacros(Text)}, but the macros in scope="block" elements
+	 *  are added to blockMacros, in order, rather than being ignored.
+	 */
+	private Text loadUserMacros( Text input, final List<DefinitionSet> blockMacros )
 	{
-		final DefinitionSet userMacros = new DefinitionSet();
+		if( input.indexOf("macro") < 0 )		// can't possibly contain a <macro> element.
+			return input;
+		
+		final List<DefinitionSet>		loaded	 = new ArrayList<DefinitionSet>();
+		final Map<String,DefinitionSet>	toExport = new LinkedHashMap<String,DefinitionSet>();
 	
 		input = Tags.processElement( error, input, "macro", null,
 			new Tags.Handler() {
 				@Override public Text handle(String tag, Map<String, String> arguments, String body, String context, int start )
 				{
-					try
+					Scope scope = Scope.DOCUMENT;
+					String scopeArgument = arguments.get("scope");
+					if( scopeArgument != null )
+					{	try
+						{	scope = Scope.valueOf( scopeArgument.trim().toUpperCase() );
+						}
+						catch( IllegalArgumentException e )
+						{	error.report( start, context, "Unknown <macro> scope (%s). Must be block, document, or global.", scopeArgument );
+						}
+					}
+					
+					DefinitionSet compiled = compiledUserMacros.get( body );
+					if( compiled == null )
+						compiled = compile( body, context, start );
+					
+					switch( scope )
 					{
-						_loadMacroDefinitions( userMacros, new Text(body) );
+					case BLOCK:		blockMacros.add( compiled );		break;
+					case DOCUMENT:	loaded.add( compiled );				break;
+					case GLOBAL:	toExport.put( body, compiled );		break;
 					}
-					catch (DefinitionException e)
-					{
-						Text contents = new Text(body);
-						
-						Text detailedError = new Text();
-						int i = 0;
-						for( String line : contents )
-							detailedError.appendf( "\t\t" + line + (++i == e.lineNumber ? " <<<<<<<<<<<<<<<<<<<<" : "") );
-						
-						error.report( start, context, "%s:\n\t<macro>\n%s\t</macro>", e.getMessage(), detailedError );
-					}
-					catch( Exception e )
-					{
-						error.report( start, context, "Error loading macro: %s", e.getMessage() );
-					}
-					
 					return Text.EMPTY;
 				}
 			}
 		);
 		
-		macros.transferToHeadOfList( userMacros );
+		// Global macros go in front of earlier global ones, but behind the document's own
+		// macros. An element that's already been exported is already in effect.
+		//
+		boolean exportedAny = false;
+		for( Map.Entry<String,DefinitionSet> export : toExport.entrySet() )
+			if( exported.add(export.getKey()) )
+			{	globalMacros = export.getValue().over( globalMacros );
+				exportedAny	 = true;
+			}
+		
+		if( !loaded.isEmpty() || exportedAny )
+		{	
+			userMacros = layer( loaded ).over( userMacros );	// The newly loaded macros go in front of earlier ones.
+			macros	   = userMacros.over( globalMacros ).over( defaultMacros );
+		}
 		return input;
 	}
+	
+	/** Compile the definitions in the body of a &lt;macro&gt; element, reporting any
+	 *  errors, and cache them if there weren't any.
+	 */
+	private DefinitionSet compile( String body, String context, int start )
+	{
+		DefinitionSet.Builder definitions = new DefinitionSet.Builder();
+		int errorsBefore = error.getErrorCount();
+		try
+		{
+			_loadMacroDefinitions( definitions, new Text(body), USER_MACROS );
+		}
+		catch (DefinitionException e)
+		{
+			Text contents = new Text(body);
+			
+			Text detailedError = new Text();
+			int i = 0;
+			for( String line : contents )
+				detailedError.appendf( "\t\t" + line + (++i == e.lineNumber ? " <<<<<<<<<<<<<<<<<<<<" : "") );
+			
+			error.report( start, context, "%s:\n\t<macro>\n%s\t</macro>", e.getMessage(), detailedError );
+		}
+		catch( Exception e )
+		{
+			error.report( start, context, "Error loading macro: %s", e.getMessage() );
+		}
+		
+		DefinitionSet compiled = definitions.build();		// including the definitions that preceded an error, if any.
+		if( error.getErrorCount() == errorsBefore )
+			compiledUserMacros.put( body, compiled );
+		return compiled;
+	}
+	
+	/** Return a set that applies the sets in the list, in order. */
+	private static DefinitionSet layer( List<DefinitionSet> sets )
+	{	DefinitionSet result = DefinitionSet.EMPTY;
+		for( int i = sets.size(); --i >= 0; )
+			result = sets.get(i).over( result );
+		return result;
+	}
 	//======================================================================
 	/** A single macro definition. Holds the compiled pattern and the replacement
 	 *  text. Replaces all instance of itself in a text block. This method is
@@ -230,24 +495,61 @@ public class Macro
 	 */
 	public static class Definition
 	{
-		private static final Pattern  replacementVariables	= Pattern.compile(
-			 "(?<!\\\\)%\\(("
-			+"timestamp"
-			+"|[mM]onth"
-			+"|[dD]ay"
-			+"|year"
-			+"|hr"
-			+"|min"
-			+"|sec"
-			+")\\)"
-			);
-	
-		public Pattern regex;
-		public String  replaceWith;
+		/** The regex and its flags, as they appeared in the definition. */
+		private final String pattern;
+		private final int	 flags;
+		
+		/** The replacement text, with escapes like \n already expanded. */
+		private final String replaceWith;
+		
+		/** The number of capturing groups in the regex. */
+		private final int	 groupCount;
 
-		private final Calendar now = Calendar.getInstance();
-	
+		/** At least one of these must appear in any text that the regex matches.
+		 *  Null if the regex could match text that contains none of them.
+		 *  Computed once, when the definition is created. {@see RequiredLiterals}
+		 */
+		private final String[] requiredLiterals;
+		
+		/** Every string that the regex can match, if it's just literal text, otherwise null. */
+		private final String[] literalMatches;
+		
+		/** Where the definition came from (e.g. hml.macros:203), or null if that's not known. */
+		private final String source;
+		
+		/** Identifies the macro in profiles: where it was defined, if we know, and the regex. */
+		private final String label;
+		
+		/** The regex, compiled for both engines. Definitions loaded from a {@link MacroBundle}
+		 *  don't compile their regexes until they're first used, since most macros never
+		 *  get past the prefilter in a typical run. Two threads might compile the same
+		 *  regex, but that's harmless.
+		 */
+		private volatile Compiled compiled;
+		
+		/** The replaceWith string, compiled. Built on first use, for the same reason. */
+		private volatile ReplacementTemplate template;
+		
+		private static final class Compiled
+		{	final Pattern		regex;
+			
+			/** The regex, compiled for the linear-time engine, or null if that engine can't
+			 *  handle it (because it uses back references, for example). {@see LinearPattern}
+			 */
+			final LinearPattern linear;
+			
+			Compiled( Pattern regex )
+			{	this.regex	= regex;
+				this.linear	= LinearPattern.compile( regex );
+			}
+		}
+		
 		public Definition( ReportingStream error, String regex, String replaceWith, String flagsString )
+		{	this( error, regex, replaceWith, flagsString, null );
+		}
+		
+		/** @param source where the definition came from (e.g. hml.macros:203), or null if that's not known. */
+		public Definition( ReportingStream error, String regex, String replaceWith, String flagsString, String source )
 		{	
 			// The replaceWith string can have characters like \n in it. Since these
 			// strings haven't been through the compiler, they won't be interpreted
@@ -282,83 +584,217 @@ public class Macro
 					}
 				}
 			}
-			this.regex		 = Pattern.compile(regex, flags);
-			this.replaceWith = replaceWith;
+			Pattern compiledRegex	= Pattern.compile(regex, flags);
+			
+			this.pattern			= regex;
+			this.flags				= flags;
+			this.groupCount			= compiledRegex.matcher("").groupCount();
+			this.replaceWith 		= replaceWith;
+			this.requiredLiterals	= RequiredLiterals.of( compiledRegex );
+			this.literalMatches		= RequiredLiterals.exactly( compiledRegex );
+			this.source				= source;
+			this.label				= label( source, regex );
+			this.compiled			= new Compiled( compiledRegex );
+			this.template			= new ReplacementTemplate( replaceWith, groupCount );
 		}
-	
-		private void replaceVariables(Text t)
-		{
-			t.replaceAll( replacementVariables, 
-				new Text.Replacer()
-				{
-					@Override public String replace(Matcher m)
-					{
-						switch( m.group(1).charAt(0) )
-						{
-						case 't':	return now.getTime().toString();
-						case 'm':	return String.valueOf( m.group(1).charAt(1) == 'o' ? (now.get(Calendar.MONTH) + 1) : now.get(Calendar.MINUTE));
-						case 'd':	return String.valueOf( now.get(Calendar.DATE)	);
-						case 'y':	return String.valueOf( now.get(Calendar.YEAR)	);
-						case 'h':	return String.valueOf( now.get(Calendar.HOUR)	);
-						case 's':	return String.valueOf( now.get(Calendar.SECOND) );
-						case 'M': 	return month_names[ now.get(Calendar.MONTH) 		];
-						case 'D':  	return day_names  [ now.get(Calendar.DAY_OF_WEEK) ];
-						default:	throw new RuntimeException( "Unexpected macro: [" + m.group() + "]" );	// shouldn't happen
-						}
-					}
-				}
-			);
+		
+		/** Recreate a definition from the fields that a {@link MacroBundle} stores. The
+		 *  fields were computed (and checked) when the bundle was built, so nothing is
+		 *  compiled here.
+		 */
+		Definition( String pattern, int flags, int groupCount, String replaceWith,
+					String[] requiredLiterals, String[] literalMatches, String source )
+		{	this.pattern			= pattern;
+			this.flags				= flags;
+			this.groupCount			= groupCount;
+			this.replaceWith		= replaceWith;
+			this.requiredLiterals	= requiredLiterals;
+			this.literalMatches		= literalMatches;
+			this.source				= source;
+			this.label				= label( source, pattern );
 		}
-			
+		
+		private static String label( String source, String regex )
+		{	return (source == null ? "" : source + " ") + "/" + abbreviate(regex) + "/";
+		}
+		
+		private Compiled compiled()
+		{	Compiled result = compiled;
+			if( result == null )
+				compiled = result = new Compiled( Pattern.compile(pattern, flags) );
+			return result;
+		}
+		
+		private ReplacementTemplate template()
+		{	ReplacementTemplate result = template;
+			if( result == null )
+				template = result = new ReplacementTemplate( replaceWith, groupCount );
+			return result;
+		}
+		
+		/** The compiled regex. */
+		public Pattern regex()
+		{	return compiled().regex;
+		}
+		
+		/** The regex's source text and its flags (as in {@link Pattern#flags()}), which
+		 *  are available without compiling it.
+		 */
+		public String pattern() { return pattern; }
+		public int	  flags()	{ return flags;	  }
+		
+		public String replaceWith() { return replaceWith; }
+		
+		/** The number of capturing groups in the regex. */
+		int groupCount()
+		{	return groupCount;
+		}
+		
+		/** Where the definition came from (e.g. hml.macros:203), or null if that's not known. */
+		String source()
+		{	return source;
+		}
+		
+		/** Return the literals, one of which must appear in text that this macro
+		 *  can match, or null if the macro could match anything.
+		 */
+		String[] requiredLiterals()
+		{	return requiredLiterals;
+		}
+		
+		/** Return every string that this macro's regex can match if the regex is just
+		 *  literal text (so that matching it is a simple string search), otherwise null.
+		 */
+		String[] literalMatches()
+		{	return literalMatches;
+		}
+		
+		/** Return the replacement text if it's the same for every match (no group
+		 *  references or variables), otherwise null.
+		 */
+		String constantReplacement()
+		{	return template().constant();
+		}
+		
+		/** Identifies the macro in profiles. */
+		String label()
+		{	return label;
+		}
+		
+		/** If the regex could take long enough to fail that it would hang the renderer,
+		 *  return a description of the problem (including an example of the input that
+		 *  causes it), otherwise return null. {@see BacktrackingAnalyzer}
+		 */
+		public String backtrackingRisk()
+		{	BacktrackingAnalyzer.Risk risk = BacktrackingAnalyzer.analyze( regex() );
+			return risk.isRisky() ? risk.toString() : null;
+		}
+		
+		/** True if the replacement uses a date/time variable, so the expansion depends on when it's done. */
+		boolean dependsOnTime()
+		{	return template().hasVariables();
+		}
+		
+		/** True if the regex can be matched by the linear-time engine. */
+		public boolean isLinear()
+		{	return compiled().linear != null;
+		}
+		
+		private static String abbreviate( String regex )
+		{	return regex.length() <= 40 ? regex : regex.substring(0, 37) + "...";
+		}
+	
 		/** Replace all instances of the current macro with its replacement
 		 *  text in the specified Text object. The Text object's contents are
 		 *  replaced by the expanded text.
 		 *  
 		 * @param t
+		 * @param engine the engine that matches the regular expression
+		 * 			(normally {@link Configuration#regexEngine()}).
+		 * @return true if the macro matched something (in which case t has
+		 * 			been modified).
 		 */
-		public void replaceAll(Text t) throws RuntimeException
+		public boolean replaceAll(Text t, RegexEngine engine) throws RuntimeException
 		{	
+			StringBuilder expanded = new StringBuilder();
+			if( !expand(t, expanded, null, engine) )
+				return false;
+			
+			t.replace( expanded );
+			return true;
+		}
+		
+		/** If the current macro matches anything in the input, append the input, with all
+		 *  matches replaced by the replacement text, to output and return true. Otherwise,
+		 *  leave output alone and return false. The input is matched directly, without
+		 *  being copied.
+		 *  @param tally if not null, the matches are counted here.
+		 *  @param engine if {@link RegexEngine#LINEAR}, the input is matched with the
+		 *  		linear-time engine if it can handle the regex, otherwise with {@link Pattern}.
+		 */
+		boolean expand( CharSequence input, StringBuilder output, Tally tally, RegexEngine engine ) throws RuntimeException
+		{
 			try
 			{
-				String before = "";
-				if( log.isEnabledFor(Level.DEBUG ))
-					before = t.toString();
+				Compiled			c		 = compiled();
+				ReplacementTemplate template = template();
+				MatchResult m = (c.linear != null && engine == RegexEngine.LINEAR) ? c.linear.matcher( input )
+																					: c.regex.matcher( input );
+				if( !find(m) )
+					return false;
 				
-				Matcher m = regex.matcher(t.toString());
-
-				// We could (perhaps should) do this in the constructor. However,
-				// by doing it here, we keep open the possibility of having
-				// replacement variables whose values change over time instead
-				// of assuming that the variable won't change after construction time.
+				int outputStart = output.length();
+				
+				// Get the time here rather than storing it in the definition: the variables'
+				// values change over time, definitions are shared by every document processed
+				// by an HmlEngine (possibly on several threads at once), and Calendar isn't
+				// thread safe.
 				//
-				Text replacementText = new Text(replaceWith);
-				replaceVariables( replacementText );
+				Calendar now = template.hasVariables() ? Calendar.getInstance() : null;
 				
-				t.replace( m.replaceAll(replacementText.toString()) );
+				int previousEnd = 0;
+				do
+				{	output.append( input, previousEnd, m.start() );
+					
+					int replacementStart = output.length();
+					template.append( m, input, now, output );
+					if( tally != null )
+						tally.record( m.end() - m.start(), output.length() - replacementStart );
+					
+					previousEnd = m.end();
+				}
+				while( find(m) );
+				output.append( input, previousEnd, input.length() );
 				
 				if( log.isEnabledFor(Level.DEBUG ) )
-				{	if( !before.equals(t.toString() ))	// macro did something!
-					{	log.debug( "MACRO applied: /%s/%s/", regex, replaceWith ); 
+				{	String after = output.substring(outputStart);
+					if( !after.equals(input.toString()) )	// macro did something!
+					{	log.debug( "MACRO applied: /%s/%s/", pattern, replaceWith ); 
 						log.trace( "IN:\n%s\n" +
 								   "OUT:\n%s\n",
-								   new Text(before).indent("    "), 
-								   new Text(t     ).indent("    ") );
+								   new Text(input).indent("    "), 
+								   new Text(after).indent("    ") );
 					}
 				}
+				return true;
 			}
 			catch( RuntimeException e )
 			{
-				log.error("Macro-expansion failure: /%s/%s/", regex, replaceWith );
+				log.error("Macro-expansion failure: /%s/%s/", pattern, replaceWith );
 				throw e;
 			}
 		}
 		
+		private static boolean find( MatchResult m )
+		{	return (m instanceof Matcher) ? ((Matcher)m).find() : ((LinearPattern.Matcher)m).find();
+		}
+		
 		@Override public String toString()
-		{	return String.format("{%s->%s}", regex.toString(), replaceWith );
+		{	return String.format("{%s->%s}", pattern, replaceWith );
 		}
 		
 		@Override public int hashCode()
-		{	return regex.hashCode();
+		{	return pattern.hashCode();
 		}
 		
 		@Override public boolean equals( Object o )
@@ -366,12 +802,30 @@ public class Macro
 			if( !(o instanceof Definition) )
 				return false;
 			
-			boolean q1 = (((Definition) o).regex).toString().equals( this.regex.toString() );
+			boolean q1 = (((Definition) o).pattern).equals( this.pattern );
 			boolean q2 = (((Definition) o).replaceWith).equals( this.replaceWith );
 			return q1 && q2;
 		}
 	}
 	//======================================================================
+	/** Used when profiling to count what a macro did to one segment. */
+	static final class Tally
+	{
+		int matches;
+		int charactersMatched;
+		int charactersInserted;
+		
+		void record( int matched, int inserted )
+		{	++matches;
+			charactersMatched  += matched;
+			charactersInserted += inserted;
+		}
+		
+		void clear()
+		{	matches = charactersMatched = charactersInserted = 0;
+		}
+	}
+	//======================================================================
 	/** Thrown by {@see #loadMacroDefinitions(Iterable)} if something's wrong
 	 *  in the input.
 	 * @author Allen Holub
@@ -420,79 +874,430 @@ public class Macro
 	};
 	
 	//======================================================================
-	/** The set of macro definitions. It's public to make testing easier.
+	/** An immutable set of macro definitions, with a list for each block type. Use a
+	 *  {@link Builder} to make one. A set is made up of layers, each of which holds
+	 *  definitions that were loaded together (the ones in hml.macros, say, or the ones
+	 *  in one &lt;macro&gt; element), and {@link #over(DefinitionSet)} stacks one
+	 *  set's layers on top of another's without copying or recompiling anything.
+	 *  That's how a document's user macros are put in front of the defaults.
+	 *  <p>
+	 *  Nothing about a set changes once it's built, so one set can be used by any
+	 *  number of threads at once with no locking. (Each layer's prefilters are built
+	 *  the first time they're needed, but that isn't visible from outside.)
+	 *  It's public to make testing easier.
 	 * @author allen
 	 */
-	public static class DefinitionSet implements Iterable<Definition>
+	public static final class DefinitionSet
 	{
-		/** This implementation keeps three different lists, but it might not. (The individual
-		 *  macros could be tagged with the block type, for example.)
+		public static final DefinitionSet EMPTY = new DefinitionSet( new Layer[0] );
+		
+		/** The layers, in the order that they're applied. */
+		private final Layer[] layers;
+		
+		/** All the definitions in all the layers, in the order that they're applied. */
+		private final List<Definition> textMacros, codeMacros, refMacros;
+		
+		/** Computed on first use. {@see #fingerprint()} */
+		private volatile String fingerprint;
+		
+		private DefinitionSet( Layer[] layers )
+		{	this.layers		= layers;
+			this.textMacros = all( layers, BlockType.TEXT );
+			this.codeMacros = all( layers, BlockType.CODE );
+			this.refMacros	= all( layers, BlockType.REF  );
+		}
+		
+		private static List<Definition> all( Layer[] layers, BlockType type )
+		{	List<Definition> result = new ArrayList<Definition>();
+			for( Layer layer : layers )
+				result.addAll( Arrays.asList(layer.definitions(type)) );
+			return Collections.unmodifiableList( result );
+		}
+		
+		/** Return a set that applies the macros in the current set, then the ones in the
+		 *  base set. Neither set is changed.
 		 */
-		public LinkedList<Definition> textMacros = new LinkedList<Definition>();
-		public LinkedList<Definition> codeMacros = new LinkedList<Definition>();
-		public LinkedList<Definition> refMacros  = new LinkedList<Definition>();
+		public DefinitionSet over( DefinitionSet base )
+		{
+			if( base.layers.length == 0 )
+				return this;
+			if( layers.length == 0 )
+				return base;
+			
+			Layer[] combined = new Layer[ layers.length + base.layers.length ];
+			System.arraycopy( layers,	   0, combined, 0,			   layers.length	  );
+			System.arraycopy( base.layers, 0, combined, layers.length, base.layers.length );
+			return new DefinitionSet( combined );
+		}
 		
-		/** The next iterator will return an iterator across this set of macros */
-		public LinkedList<Definition> iterateAcross  = textMacros;
+		/** True if the set doesn't hold any macros. */
+		public boolean isEmpty()
+		{	return textMacros.isEmpty() && codeMacros.isEmpty() && refMacros.isEmpty();
+		}
 		
-		public void addLast(BlockType type, Definition definition)
-		{	
+		/** Return the macros that apply to the indicated type of block, in the order that they're applied. */
+		public List<Definition> macros( BlockType type )
+		{
 			switch( type )
 			{
-			case TEXT:	textMacros.addLast( definition);	break;
-			case CODE:	codeMacros.addLast( definition);	break;
-			case REF:	refMacros. addLast( definition);	break;
-			
-			case SNIPPET: /*ignore*/ break;
+			case TEXT:	return textMacros;
+			case CODE:	return codeMacros;
+			case REF:	return refMacros;
+			default:	return Collections.emptyList();
+			}
+		}
+		
+		public List<Definition> textMacros() { return textMacros; }
+		public List<Definition> codeMacros() { return codeMacros; }
+		public List<Definition> refMacros()  { return refMacros;  }
+		
+		/** A hash of every definition in the set (its type, regex, flags, and replacement),
+		 *  in order. Two sets with the same fingerprint expand text the same way.
+		 */
+		public String fingerprint()
+		{
+			String result = fingerprint;
+			if( result == null )
+			{	MessageDigest digest = SegmentCache.sha256();
+				for( Layer layer : layers )
+					digest.update( layer.fingerprint() );
+				fingerprint = result = SegmentCache.hex( digest.digest() );
 			}
+			return result;
 		}
 		
-		/** Move (not copy) all the macros from source to the front of the current definitions list. The ordering
-		 *  in the original list is preserved.
-		 * @param source
+		/** Expand, in order, all the macros of the indicated type in the body. Macros
+		 *  that can't possibly match (because none of their required literals appear
+		 *  in the body) aren't run at all. The result is the same as running every
+		 *  macro in the list.
+		 *  @param engine the engine that matches the regular expressions
+		 *  		(normally {@link Configuration#regexEngine()}).
 		 */
-		public void transferToHeadOfList(DefinitionSet source)
+		public void expand( BlockType type, Text body, RegexEngine engine )
+		{	expand( type, body, null, engine );
+		}
+		
+		/** Same as {@link #expand(BlockType, Text, RegexEngine)}, but if stats isn't null,
+		 *  each macro's work is recorded there ({@see Stats#recordMacro}).
+		 *  @return true if a macro whose replacement uses a date/time variable matched,
+		 *  		in which case the result depends on when the expansion was done.
+		 */
+		public boolean expand( BlockType type, Text body, Stats stats, RegexEngine engine )
 		{
-			for( int i = source.textMacros.size(); --i >= 0; ) textMacros.addFirst( source.textMacros.removeLast() );
-			for( int i = source.codeMacros.size(); --i >= 0; ) codeMacros.addFirst( source.codeMacros.removeLast() );
-			for( int i = source.refMacros.size();  --i >= 0; ) refMacros. addFirst( source.refMacros. removeLast() );
+			if( type == BlockType.SNIPPET )
+			{	log.error("%s not valid in expand.", type );
+				return false;
+			}
+			
+			boolean dependsOnTime = false;
+			for( Layer layer : layers )
+				dependsOnTime |= layer.expand( type, body, stats, engine );
+			return dependsOnTime;
+		}
+		
+		@Override public String toString()
+		{	return String.format( "Text: %s\nCode: %s\nRef:  %s\n",
+							textMacros.toString(), codeMacros.toString(), refMacros.toString() );
 		}
 		
-		/** The next iterator returns only macros that are valid on this type of input.
+		//==================================================================
+		/** Collects definitions for a new set. */
+		public static final class Builder
+		{
+			private final List<Definition> textMacros = new ArrayList<Definition>();
+			private final List<Definition> codeMacros = new ArrayList<Definition>();
+			private final List<Definition> refMacros  = new ArrayList<Definition>();
+			
+			public void addLast( BlockType type, Definition definition )
+			{	
+				switch( type )
+				{
+				case TEXT:	textMacros.add( definition );	break;
+				case CODE:	codeMacros.add( definition );	break;
+				case REF:	refMacros .add( definition );	break;
+				
+				case SNIPPET: /*ignore*/ break;
+				}
+			}
+			
+			/** Append all the macros in the source set. */
+			public void addAll( DefinitionSet source )
+			{	textMacros.addAll( source.textMacros );
+				codeMacros.addAll( source.codeMacros );
+				refMacros .addAll( source.refMacros	 );
+			}
+			
+			/** Return a set that holds the definitions added so far. The builder
+			 *  can go on being used, but later additions don't affect the set.
+			 */
+			public DefinitionSet build()
+			{	if( textMacros.isEmpty() && codeMacros.isEmpty() && refMacros.isEmpty() )
+					return EMPTY;
+				return new DefinitionSet( new Layer[]{ new Layer(textMacros, codeMacros, refMacros) } );
+			}
+		}
+	}
+	//======================================================================
+	/** Definitions that were loaded together, along with their prefilters. */
+	private static final class Layer
+	{
+		private final Definition[] textMacros, codeMacros, refMacros;
+		
+		/** Prefilters for the three lists, built on first use. They're volatile because
+		 *  the code filter runs on several threads at once. Two threads might build
+		 *  the same prefilter, but that's harmless.
 		 */
-		public void iterateAcross( BlockType type )
-		{	assert type != BlockType.SNIPPET;
+		private volatile Prefilter textPrefilter, codePrefilter, refPrefilter;
+		
+		/** Computed on first use. */
+		private volatile byte[] fingerprint;
+		
+		Layer( List<Definition> textMacros, List<Definition> codeMacros, List<Definition> refMacros )
+		{	this.textMacros = textMacros.toArray( new Definition[textMacros.size()] );
+			this.codeMacros = codeMacros.toArray( new Definition[codeMacros.size()] );
+			this.refMacros	= refMacros .toArray( new Definition[refMacros .size()] );
+		}
+		
+		Definition[] definitions( BlockType type )
+		{
+			switch( type )
+			{
+			case TEXT:	return textMacros;
+			case CODE:	return codeMacros;
+			case REF:	return refMacros;
+			default:	return new Definition[0];
+			}
+		}
+		
+		byte[] fingerprint()
+		{
+			byte[] result = fingerprint;
+			if( result == null )
+			{	MessageDigest digest = SegmentCache.sha256();
+				for( BlockType type : new BlockType[]{ BlockType.TEXT, BlockType.CODE, BlockType.REF } )
+				{	digest.update( (type + "\0").getBytes(UTF8) );
+					for( Definition d : definitions(type) )
+						digest.update( (d.flags + "/" + d.pattern + "\0" + d.replaceWith() + "\0").getBytes(UTF8) );
+				}
+				fingerprint = result = digest.digest();
+			}
+			return result;
+		}
 		
+		/** Returns true if a macro that depends on the time matched. */
+		boolean expand( BlockType type, Text body, Stats stats, RegexEngine engine )
+		{
+			Definition[] definitions = definitions( type );
+			if( definitions.length == 0 )
+				return false;
+			
+			Prefilter prefilter;
 			switch( type )
 			{
-			case TEXT:			iterateAcross = textMacros;	break;
-			case REF:			iterateAcross = refMacros;	break;
+			case TEXT:	prefilter = textPrefilter;	break;
+			case REF:	prefilter = refPrefilter;	break;
+			default:	prefilter = codePrefilter;	break;
+			}
 			
-			case SNIPPET:		log.error("SNIPPET not valid in iterateAcross."); // fall through to code.
-			case CODE: 			iterateAcross = codeMacros;
-								break;
+			if( prefilter == null )
+			{	prefilter = new Prefilter( definitions );
+				switch( type )
+				{
+				case TEXT:	textPrefilter = prefilter;	break;
+				case REF:	refPrefilter  = prefilter;	break;
+				default:	codePrefilter = prefilter;	break;
+				}
 			}
+			
+			return prefilter.expand( body, type, stats, engine );
 		}
+	}
+	//======================================================================
+	/** Decides which macros in a list could possibly match a block of text, using a single
+	 *  scan of the text that looks for all the macros' {@linkplain Definition#requiredLiterals()
+	 *  required literals} at once. 
+	 */
+	private static class Prefilter
+	{
+		private final LiteralScanner	scanner;
+		
+		/** The macros are run in steps. Step i either runs the single macro
+		 *  singles[i], or (if that's null) the run of literal-only macros in fused[i].
+		 */
+		private final Definition[]			singles;
+		private final FusedLiteralMacros[]	fused;
 		
-		@Override public Iterator<Definition> iterator(){ return iterateAcross.iterator(); }
+		/** literalIds[i] holds the ids (in the scanner) of the required literals of the
+		 *  macros in step i, or is null if step i has to be run unconditionally.
+		 */
+		private final int[][]				literalIds;
 		
-		public List<Definition> textMacros() { return Collections.unmodifiableList( textMacros ); }
-		public List<Definition> codeMacros() { return Collections.unmodifiableList( codeMacros ); }
-		public List<Definition> refMacros()  { return Collections.unmodifiableList( refMacros ); }
+		/** labels[i] identifies step i in profiles. */
+		private final String[]				labels;
 		
-		@Override public String toString()
-		{	return String.format( "Text: %s\nCode: %s\nRef:  %s\n",
-							textMacros.toString(), codeMacros.toString(), refMacros.toString() );
+		Prefilter( Definition[] definitions )
+		{
+			List<Definition>		 stepSingles = new ArrayList<Definition>();
+			List<FusedLiteralMacros> stepFused	 = new ArrayList<FusedLiteralMacros>();
+			List<Definition>		 run		 = new ArrayList<Definition>();
+			
+			for( Definition d : definitions )
+			{
+				if( FusedLiteralMacros.canFuse(d) && FusedLiteralMacros.canAdd(run, d) )
+				{	run.add( d );
+					continue;
+				}
+				
+				addRun( run, stepSingles, stepFused );
+				if( FusedLiteralMacros.canFuse(d) && FusedLiteralMacros.canAdd(run, d) )
+					run.add( d );
+				else
+				{	stepSingles.add( d );
+					stepFused.add( null );
+				}
+			}
+			addRun( run, stepSingles, stepFused );
+			
+			singles		= stepSingles.toArray( new Definition[stepSingles.size()] );
+			fused		= stepFused	 .toArray( new FusedLiteralMacros[stepFused.size()] );
+			literalIds	= new int[singles.length][];
+			labels		= new String[singles.length];
+			
+			for( int i = 0; i < singles.length; ++i )
+				labels[i] = (singles[i] != null) ? singles[i].label() : fused[i].label();
+			
+			List<String> literals = new ArrayList<String>();
+			for( int i = 0; i < singles.length; ++i )
+			{
+				List<Definition> members = (singles[i] != null) ? Collections.singletonList(singles[i])
+																: fused[i].members();
+				List<Integer> ids = new ArrayList<Integer>();
+				for( Definition member : members )
+				{	String[] required = member.requiredLiterals();
+					if( required == null )
+					{	ids = null;
+						break;
+					}
+					for( String literal : required )
+					{	ids.add( literals.size() );
+						literals.add( literal );
+					}
+				}
+				
+				if( ids != null )
+				{	literalIds[i] = new int[ ids.size() ];
+					for( int j = 0; j < ids.size(); ++j )
+						literalIds[i][j] = ids.get(j);
+				}
+			}
+			scanner = new LiteralScanner( literals );
+		}
+		
+		/** Add the run (if any) to the steps, then empty it. A run with only one macro in it
+		 *  is added as a single macro.
+		 */
+		private static void addRun( List<Definition> run, List<Definition> singles, List<FusedLiteralMacros> fused )
+		{
+			if( run.size() == 1 )
+			{	singles.add( run.get(0) );
+				fused.add( null );
+			}
+			else if( run.size() > 1 )
+			{	singles.add( null );
+				fused.add( new FusedLiteralMacros(run) );
+			}
+			run.clear();
+		}
+		
+		/** Run the macros that might match, in order. A macro that matches changes
+		 *  the text, perhaps adding something that a later macro looks for
+		 *  (or removing something), so the text is rescanned after every change.
+		 *  <p>
+		 *  Macros match directly against the current text and write their output into
+		 *  a second buffer, and the two buffers swap roles after every change,
+		 *  so a macro that doesn't match costs nothing but the match attempt. The body
+		 *  is only rewritten (once) if some macro changed it. Runs of consecutive
+		 *  macros that just replace one literal string with another are applied
+		 *  together, in one scan ({@see FusedLiteralMacros}).
+		 *  @return true if a macro whose replacement uses a date/time variable matched.
+		 */
+		boolean expand( Text body, BlockType type, Stats stats, RegexEngine engine )
+		{
+			boolean			dependsOnTime = false;
+			CharSequence	text	= body;
+			StringBuilder	output	= null;		// the buffer that the next macro writes into
+			StringBuilder	spare	= null;		// the buffer that holds text, if it isn't the body
+			Tally			tally	= (stats == null) ? null : new Tally();
+			long			start	= 0;
+			
+			boolean[] found = scanner.scan( body );
+			for( int i = 0; i < singles.length; ++i )
+			{
+				if( !mightMatch(i, found) )
+				{	if( stats != null )
+						stats.recordSkippedMacro( type, labels[i] );
+					continue;
+				}
+				
+				if( output == null )
+					output = new StringBuilder( text.length() + text.length() / 8 );
+				
+				if( stats != null )
+				{	tally.clear();
+					start = System.nanoTime();
+				}
+				
+				boolean changed = (singles[i] != null) ? singles[i].expand( text, output, tally, engine )
+													   : fused[i]  .expand( text, output, tally );
+				if( stats != null )
+					stats.recordMacro( type, labels[i], System.nanoTime() - start,
+										tally.matches, tally.charactersMatched, tally.charactersInserted );
+				if( changed )
+				{	dependsOnTime |= singles[i] != null && singles[i].dependsOnTime();
+					
+					StringBuilder previous = spare;
+					spare  = output;
+					text   = output;
+					output = previous;
+					if( output != null )
+						output.setLength( 0 );
+					
+					found = scanner.scan( text );
+				}
+			}
+			
+			if( text != body )
+				body.replace( text );
+			return dependsOnTime;
+		}
+		
+		private boolean mightMatch( int i, boolean[] found )
+		{
+			if( literalIds[i] == null )
+				return true;
+			
+			for( int id : literalIds[i] )
+				if( found[id] )
+					return true;
+			return false;
 		}
 	}
 	//======================================================================
 	public Filter getCodeFilter() {	return new CodeFilter(); }
 	
-	private class CodeFilter implements Filter
+	/* The code filter doesn't modify anything, and DefinitionSets are immutable,
+	 * so it can safely run on several code blocks at once.
+	 */
+	private class CodeFilter implements Filter.Stateless, Filter.Selective
 	{
 		@Override public boolean isCodeBlockFilter(){ return true;	}
 		@Override public boolean isTextFilter()		{ return false;	}
 		@Override public boolean isSnippetFilter()	{ return false; }
+		
+		@Override public boolean isNeededFor( CharSequence document )
+		{	String s = document.toString();
+			return !macros.codeMacros().isEmpty() && (s.contains("<pre") || s.contains("<listing"));
+		}
 	
 		@Override public void filter( Text prefix, Text body, Text suffix, Filter.BlockType type )
 		{
@@ -500,9 +1305,7 @@ public class Macro
 			
 			log.trace("Running CodeFilter");
 				
-			macros.iterateAcross( BlockType.CODE );
-			for( Definition macro : macros )
-				macro.replaceAll(body);
+			macros.expand( BlockType.CODE, body, profile(), config.regexEngine() );
 			
 			body.prefix( prefix );
 			body.append( suffix );
@@ -523,15 +1326,40 @@ public class Macro
 			
 			log.trace("Running RefFilter");
 			
-			macros.iterateAcross( BlockType.REF );
-			for( Definition macro : macros )
-				macro.replaceAll(body);
+			macros.expand( BlockType.REF, body, profile(), config.regexEngine() );
 			
 			body.prefix( prefix );
 			body.append( suffix );
 		}
 	}
 	//======================================================================
+	/** Expand the text macros in the indicated set (the macros in effect, plus the
+	 *  block's own, if it has any) in the body, using the segment cache if there is one.
+	 *  The cache isn't used if macros are being profiled (so that the profile shows
+	 *  what the macros actually do), or for short segments. An expansion isn't
+	 *  stored if it depends on the time.
+	 */
+	private void expandTextMacros( Text body, DefinitionSet current )
+	{
+		SegmentCache	cache	= segmentCache;
+		Stats			profile	= profile();
+		
+		if( cache == null || profile != null || body.length() < SegmentCache.MIN_SEGMENT )
+		{	current.expand( BlockType.TEXT, body, profile, config.regexEngine() );
+			return;
+		}
+		
+		String key		= SegmentCache.key( current.fingerprint(), BlockType.TEXT, body );
+		String expanded	= cache.get( key );
+		if( expanded != null )
+		{	body.replace( expanded );
+			return;
+		}
+		
+		if( !current.expand(BlockType.TEXT, body, null, config.regexEngine()) )
+			cache.put( key, body.toString() );
+	}
+	//======================================================================
 	public Filter getTextFilter() {	return new TextFilter(); }
 	
 	private class TextFilter implements Filter
@@ -546,11 +1374,13 @@ public class Macro
 			
 			log.trace("Running TextFilter");
 			
-			body.replace( loadUserMacros(body) );
+			List<DefinitionSet> blockMacros = new ArrayList<DefinitionSet>( 0 );
+			
+			Text withoutMacroElements = loadUserMacros( body, blockMacros );
+			if( withoutMacroElements != body )
+				body.replace( withoutMacroElements );
 			
-			macros.iterateAcross( BlockType.TEXT );
-			for( Definition macro : macros )
-				macro.replaceAll(body);
+			expandTextMacros( body, blockMacros.isEmpty() ? macros : layer(blockMacros).over(macros) );
 			
 			body.prefix( prefix );
 			body.append( suffix );
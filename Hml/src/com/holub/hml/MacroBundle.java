@@ -0,0 +1,323 @@
+package com.holub.hml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.List;
+
+import com.holub.hml.Filter.BlockType;
+import com.holub.hml.Macro.Definition;
+import com.holub.hml.Macro.DefinitionSet;
+import com.holub.text.ReportingStream;
+import com.holub.text.Text;
+import com.holub.util.ExtendedLogger;
+import com.holub.util.Places;
+
+/** A precompiled form of a macro-definition file (normally hml.macros), which
+ *  loads much faster than the file itself. Most of the time it takes to start up the
+ *  command-line program goes into reading hml.macros: parsing the lines,
+ *  compiling the regular expressions (for both engines), and working out each
+ *  macro's {@linkplain RequiredLiterals required literals}. The bundle holds the
+ *  result of all that except the compilation: the parsed fields, the flags, the line
+ *  that each macro came from, and the literals. It's read with a single pass over
+ *  a binary file, and the definitions that it creates don't compile their regular
+ *  expressions until they're first used. Most macros never get past the
+ *  prefilter in a given run, so most regular expressions are never compiled at all.
+ *  <p>
+ *  Build the bundle with
+ *  <pre>
+ *  java [-DCONFIG=/path/to/config/directory] com.holub.hml.MacroBundle [macroFile [bundleFile]]
+ *  </pre>
+ *  which validates the macros (reporting any errors, and any macros that could
+ *  backtrack catastrophically) and then writes the bundle. By default, it reads
+ *  hml.macros in the configuration directory and writes hml.macros.bundle next to it.
+ *  {@link Macro} uses the bundle when it finds one in the configuration
+ *  directory, unless the macro file has been modified since the bundle was built,
+ *  in which case it ignores the bundle and reads the macro file.
+ *  <p>
+ *  The bundle is written with a {@link DataOutputStream}:
+ *  <pre>
+ *  int		magic number ("HMLB")
+ *  int		format version
+ *  Then, for each of the TEXT, CODE, and REF block types:
+ *  	UTF		block type
+ *  	int		number of definitions, followed by that many definitions, each of which holds:
+ *  		UTF		 regex
+ *  		int		 flags
+ *  		int		 number of capturing groups
+ *  		UTF		 replacement, with escape sequences (\n, etc.) already expanded
+ *  		strings	 required literals
+ *  		strings	 literal matches
+ *  		boolean	 true if a source follows
+ *  		UTF		 source (e.g. hml.macros:203)
+ *  </pre>
+ *  where strings is an int count (-1 for null) followed by that many UTF strings.
+ *
+ * @author allen
+ */
+
+public final class MacroBundle
+{
+	private static final ExtendedLogger log = ExtendedLogger.getLogger(MacroBundle.class);
+
+	/** The bundle for a macro file is in a file with the same name plus this suffix. */
+	public static final String SUFFIX = ".bundle";
+
+	private static final int MAGIC	 = 0x484D4C42;		// "HMLB"
+	private static final int VERSION = 3;
+
+	private static final BlockType[] TYPES = { BlockType.TEXT, BlockType.CODE, BlockType.REF };
+
+	private static final String USAGE =
+			new Text("\n",
+					"Usage: java [-DCONFIG=/path/to/config/directory] com.holub.hml.MacroBundle [macroFile [bundleFile]]",
+					"",
+					"Check the macro definitions in macroFile (hml.macros in the configuration directory",
+					"by default) and write them, precompiled, to bundleFile (the macroFile name followed",
+					"by " + SUFFIX + " by default). HML loads the bundle, rather than hml.macros, when",
+					"it's in the configuration directory and is newer than hml.macros."
+				).toString();
+
+	private MacroBundle(){}
+
+	//----------------------------------------------------------------------
+	/** Write a bundle that holds all the definitions in the set. */
+	static void write( DefinitionSet macros, OutputStream destination ) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream(destination) );
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		for( BlockType type : TYPES )
+		{
+			List<Definition> definitions = macros.macros( type );
+			out.writeUTF( type.name() );
+			out.writeInt( definitions.size() );
+			for( Definition d : definitions )
+			{	out.writeUTF( d.pattern() );
+				out.writeInt( d.flags() );
+				out.writeInt( d.groupCount() );
+				out.writeUTF( d.replaceWith() );
+				writeStrings( out, d.requiredLiterals() );
+				writeStrings( out, d.literalMatches() );
+				out.writeBoolean( d.source() != null );
+				if( d.source() != null )
+					out.writeUTF( d.source() );
+			}
+		}
+		out.flush();
+	}
+
+	/** Read a bundle created by {@link #write(DefinitionSet, OutputStream)}.
+	 *  @throws IOException if the input isn't a bundle, or was written by a
+	 *  		different version of this class.
+	 */
+	public static DefinitionSet read( InputStream source ) throws IOException
+	{
+		DataInputStream in = new DataInputStream( new BufferedInputStream(source) );
+		if( in.readInt() != MAGIC )
+			throw new IOException( "Not a macro bundle" );
+
+		int version = in.readInt();
+		if( version != VERSION )
+			throw new IOException( String.format("Macro bundle has version %d, expected %d", version, VERSION) );
+
+		DefinitionSet.Builder macros = new DefinitionSet.Builder();
+		for( BlockType expected : TYPES )
+		{
+			String type = in.readUTF();
+			if( !type.equals(expected.name()) )
+				throw new IOException( String.format("Found %s macros in bundle where %s macros were expected", type, expected) );
+
+			for( int count = in.readInt(); --count >= 0 ; )
+			{	String	 pattern		  = in.readUTF();
+				int		 flags			  = in.readInt();
+				int		 groupCount		  = in.readInt();
+				String	 replaceWith	  = in.readUTF();
+				String[] requiredLiterals = readStrings( in );
+				String[] literalMatches	  = readStrings( in );
+				String	 where			  = in.readBoolean() ? in.readUTF() : null;
+
+				macros.addLast( expected,
+						new Definition(pattern, flags, groupCount, replaceWith, requiredLiterals, literalMatches, where) );
+			}
+		}
+		return macros.build();
+	}
+
+	private static void writeStrings( DataOutputStream out, String[] strings ) throws IOException
+	{	out.writeInt( strings == null ? -1 : strings.length );
+		if( strings != null )
+			for( String s : strings )
+				out.writeUTF( s );
+	}
+
+	private static String[] readStrings( DataInputStream in ) throws IOException
+	{	int count = in.readInt();
+		if( count < 0 )
+			return null;
+
+		String[] strings = new String[count];
+		for( int i = 0; i < count; ++i )
+			strings[i] = in.readUTF();
+		return strings;
+	}
+
+	//----------------------------------------------------------------------
+	/** Return the definitions in the bundle for the indicated file in the configuration
+	 *  directory, or null if there's no bundle, if the file has been modified since
+	 *  the bundle was built, or if the bundle can't be read. (In the last case, a
+	 *  warning is logged.) The caller should load the file itself if null is returned.
+	 */
+	static DefinitionSet load( String macroDefFile )
+	{	return load( Places.CONFIG.url(macroDefFile), Places.CONFIG.url(macroDefFile + SUFFIX) );
+	}
+
+	/** Same as {@link #load(String)}, but the macro file and the bundle can be anywhere.
+	 *  @param text the macro file, or null if it doesn't exist.
+	 *  @param bundle the bundle, or null if it doesn't exist.
+	 */
+	public static DefinitionSet load( URL text, URL bundle )
+	{
+		if( bundle == null )
+			return null;
+
+		try
+		{	URLConnection connection = bundle.openConnection();
+			InputStream	  in		 = connection.getInputStream();
+			try
+			{	if( text != null && lastModified(text) > connection.getLastModified() )
+				{	log.info( "%s is newer than %s, so it's being loaded instead. Rebuild the bundle with %s.",
+														text, bundle, MacroBundle.class.getName() );
+					return null;
+				}
+
+				DefinitionSet macros = read( in );
+				log.debug( "Loaded macros from %s", bundle );
+				return macros;
+			}
+			finally
+			{	in.close();
+			}
+		}
+		catch( IOException e )
+		{	log.warn( "Ignoring macro bundle %s: %s", bundle, e.getMessage() );
+			return null;
+		}
+	}
+
+	/** Return the URL's modification time. (Getting the time opens the file, so close it.) */
+	private static long lastModified( URL url ) throws IOException
+	{	URLConnection connection = url.openConnection();
+		connection.getInputStream().close();
+		return connection.getLastModified();
+	}
+
+	//----------------------------------------------------------------------
+	/** Check the macros in macroFile and, if there are no errors, write them to bundleFile.
+	 *  Errors, and macros that could backtrack catastrophically, are reported to the
+	 *  error stream.
+	 *  @return the number of errors found. The bundle is written only if this is 0.
+	 */
+	public static int build( File macroFile, File bundleFile, ReportingStream error ) throws IOException
+	{
+		Macro				  loader = new Macro( new Configuration(error), false );
+		DefinitionSet.Builder builder = new DefinitionSet.Builder();
+		Reader source = new InputStreamReader( new FileInputStream(macroFile), "UTF-8" );
+		try
+		{	loader._loadMacroDefinitions( builder, new Text(source), macroFile.getName() );
+		}
+		catch( Macro.DefinitionException e )
+		{	error.report( "%s line %d: %s", macroFile, e.lineNumber, e.getMessage() );
+		}
+		catch( IOException e )
+		{	throw e;
+		}
+		catch( Exception e )		// typically a PatternSyntaxException
+		{	error.report( "%s: %s", macroFile, e.getMessage() );
+		}
+		finally
+		{	source.close();
+		}
+
+		if( error.getErrorCount() > 0 )
+			return error.getErrorCount();
+
+		DefinitionSet macros = builder.build();
+		for( BlockType type : TYPES )
+			for( Definition d : macros.macros(type) )
+			{	String risk = d.backtrackingRisk();
+				if( risk != null )
+					System.err.printf( "Warning: macro %s could backtrack catastrophically: %s%n", d.label(), risk );
+			}
+
+		// Write under a temporary name, then rename, so that a program that's
+		// starting up never sees a partly written bundle.
+
+		File directory = bundleFile.getAbsoluteFile().getParentFile();
+		File temporary = File.createTempFile( "macros", ".tmp", directory );
+		try
+		{	OutputStream out = new FileOutputStream( temporary );
+			try
+			{	write( macros, out );
+			}
+			finally
+			{	out.close();
+			}
+
+			InputStream in = new FileInputStream( temporary );	// Make sure that it reads back.
+			try
+			{	if( !read(in).fingerprint().equals(macros.fingerprint()) )
+					throw new IOException( "Bundle didn't read back correctly" );
+			}
+			finally
+			{	in.close();
+			}
+
+			if( bundleFile.exists() && !bundleFile.delete() )	// can't rename over a file on Windows
+				throw new IOException( "Can't replace " + bundleFile );
+			if( !temporary.renameTo(bundleFile) )
+				throw new IOException( "Can't create " + bundleFile );
+		}
+		finally
+		{	temporary.delete();
+		}
+
+		System.err.printf( "Wrote %d text, %d code, and %d ref macros to %s%n",
+								macros.textMacros().size(), macros.codeMacros().size(),
+								macros.refMacros().size(), bundleFile );
+		return 0;
+	}
+
+	public static void main( String[] args ) throws IOException
+	{
+		if( args.length > 2 || (args.length > 0 && args[0].startsWith("-")) )
+		{	System.err.println( USAGE );
+			System.exit( -3 );
+		}
+
+		File macroFile	= args.length > 0 ? new File(args[0]) : new File( Places.CONFIG.directory(), "hml.macros" );
+		File bundleFile = args.length > 1 ? new File(args[1]) : new File( macroFile.getPath() + SUFFIX );
+
+		PrintWriter		errors		= new PrintWriter( new OutputStreamWriter(System.err) );
+		ReportingStream error		= new ReportingStream( errors );
+		int				errorCount	= build( macroFile, bundleFile, error );
+		errors.flush();
+
+		if( errorCount > 0 )
+			System.err.printf( "%d errors. %s not written.%n", errorCount, bundleFile );
+		System.exit( errorCount );
+	}
+}
@@ -9,16 +9,22 @@ public class NoteSet
 	private final List<EndNote>			endNotes 	 = new LinkedList<EndNote>();
 	private final Map<String,EndNote>	notesByLabel = new HashMap<String,EndNote>();
 	
+	/** The marks of the notes in endNotes. EndNote.equals() compares marks by identity,
+	 *  so this set does, too. It's used instead of endNotes.contains(), which made
+	 *  adding n notes an O(n<sup>2</sup>) operation.
+	 */
+	private final Set<String>			marks		 = Collections.newSetFromMap( new IdentityHashMap<String,Boolean>() );
+	
 	public NoteSet( Configuration config )
 	{	// for now, just ignore the configuration
 	}
 	
 	public EndNote add( String mark, String body, String label )
 	{
-		EndNote newNote = new EndNote(mark,body);
-		if( endNotes.contains(newNote) )
+		if( !marks.add(mark) )
 			return null;
 
+		EndNote newNote = new EndNote(mark,body);
 		endNotes.add( newNote );
 		if( label != null && label.length() > 0 )
 			notesByLabel.put(label, newNote);
@@ -52,5 +58,6 @@ public class NoteSet
 	
 	public void clear()
 	{	endNotes.clear();
+		marks.clear();
 	}
 }
@@ -2,10 +2,14 @@ package com.holub.hml;
 
 import java.util.*;
 import java.util.regex.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.nio.CharBuffer;
 
 import com.holub.text.ReportingStream;
 import com.holub.text.Text;
 import com.holub.util.ExtendedLogger;
+import org.apache.log4j.Level;
 
 import static com.holub.hml.Filter.BlockType.*;	// CODE, TEXT, SNIPPET, REF
 
@@ -23,10 +27,36 @@ public class Pass
 	 */
 	private String input;
 	
+	private final Filter[] filters;
 	private List<Filter> codeFilters 	= new ArrayList<Filter>();
 	private List<Filter> textFilters 	= new ArrayList<Filter>();
 	private List<Filter> snippetFilters = new ArrayList<Filter>();
 	
+	/* True if there are no filters of the associated type, in which case
+	 * segments of that type are copied from input to output without creating
+	 * Text objects for them.
+	 */
+	private boolean		 copyCode;
+	private boolean		 copyText;
+	private boolean		 copySnippets;
+	
+	/* True if all of the filters are Filter.Stateless, in which case segments
+	 * are collected in the pending list as the input is scanned, and are filtered
+	 * in parallel after the scan completes.
+	 */
+	private final boolean		stateless;
+	private List<Segment>		pending = new ArrayList<Segment>();
+	private Document.Editor 	processedText;
+	
+	/** Segments are filtered in parallel only if there are at least this many of them. */
+	private static final int	MINIMUM_PARALLEL_SEGMENTS = 64;
+	
+	/** A parallel filtering task is split until it has no more than this many segments. */
+	private static final int	SEGMENTS_PER_TASK		  = 16;
+	
+	/** Timing information is recorded here. Nothing is recorded if it's null. */
+	private Stats				stats = null;
+	
 	//----------------------------------------------------------------------
 	private static final Pattern commaPrefixes = Pattern.compile("\\n\\s*,\\t?", Pattern.MULTILINE);
 	private static final Text	 PRE_START_TEXT	= new Text("<pre>");
@@ -34,33 +64,20 @@ public class Pass
 	//----------------------------------------------------------------------
 	private TokenStream		tokenStream  = new TokenStream();
 	
-	Pattern p;
-	private static enum Type
+	static enum Type
 	{	
-		PRE_SHORTHAND	(", ...",			"^([\\t ]*,.*\\n)+", Pattern.MULTILINE ),
-		PRE_START		("<pre...>", 		"<pre(?=[\\s>])[^>]*?>"),
-		PRE_END			("</pre>",			"</pre\\s*>"),
-		LISTING_START	("<listing...>",	"<listing(?=[\\s>])[^>]*?>"),
-		LISTING_END		("</listing>",		"</listing\\s*>"),
-		COMMENT_START	("<!=",				"(?<!\\\\)<!="),
-		COMMENT_END		("=!>)",			"(?<!\\\\)=!>"),
-		SNIPPET			("`",				"((?<![`\\\\])`(?!`))|(^`(?!`))|((?<![`\\\\])`$)", Pattern.MULTILINE ),
-		TEXT			("...text...",		"x" );	// regex is ignored for TEXT tokens
+		PRE_SHORTHAND	(", ..."		),
+		PRE_START		("<pre...>"		),
+		PRE_END			("</pre>"		),
+		LISTING_START	("<listing...>"	),
+		LISTING_END		("</listing>"	),
+		COMMENT_START	("<!="			),
+		COMMENT_END		("=!>)"			),
+		SNIPPET			("`"			),
+		TEXT			("...text..."	);	// everything that isn't one of the others. See Lexer for the rest.
 	
 		private String  error;
-		private Pattern recognizer;
-		private Type( String error, String regex			){ this.error=error; recognizer = Pattern.compile(regex);		}
-		private Type( String error, String regex, int flags ){ this.error=error; recognizer = Pattern.compile(regex,flags);	}
-		
-		/* Get a matcher for the current token type.
-		 * @throws UnsupportedOperationException if you try to get a match for the TEXT type.
-		 */
-		public Matcher matcher(String input)
-		{	
-			if( this == TEXT )
-				throw new UnsupportedOperationException("Can't get a matcher for a TEXT token type");
-			return recognizer.matcher(input);
-		}
+		private Type( String error ){ this.error=error; }
 		
 		/** Returns a representation of the type suitable for display in an error message
 		 *  Use {@link #name()} to get the type name.
@@ -70,59 +87,13 @@ public class Pass
 		}
 	};
 	
-	//----------------------------------------------------------------------
-	/** An input token used by the {@link Pass} class. Tokens do implement
-	 *  Comparable and sort by the starting position of the token in the
-	 *  input stream.
-	 * 
-	 * @author allen
+	/** A cursor that walks through the tokens of a {@link Document}. Tokens are
+	 *  identified by their index in the document's {@link TokenList}.
 	 */
-	private class Token implements Comparable<Token>
-	{
-		final Type type;
-		final int start;
-		final int end;
-		
-		public Token( Type type, int start, int end )
-		{	this.type	= type;
-			this.start	= start;
-			this.end	= end;
-		}
-		@Override public boolean equals(Object other)
-		{	return(other instanceof Token)
-					&& (((Token)other).type == type)
-					&& (((Token)other).start == start)
-					&& (((Token)other).end == end);
-		}
-		@Override public int hashCode()
-		{	return start;
-		}
-		@Override public int compareTo(Token other)	// sort by start position.
-		{	return this.start - other.start;
-		}
-		@Override public String toString()
-		{	return String.format( "%s (%d-%d) [%s]", type.name(), start, end, input.substring(start,end) );
-		}
-		
-		/** @return true if the receiving Token is of the indicated type
-		 */
-		public boolean match( Type type )
-		{	return this.type == type;
-		}
-		
-		/** Return the lexeme (the input string) associated with the
-		 *  current token.
-		 */
-		public Text lexeme()
-		{	return new Text( input.substring(start,end) );
-		}
-	}
-	//----------------------------------------------------------------------
 	class TokenStream
 	{
-		private Token			current		 = null;
-		private Token			searchFrom	 = null;
-		private TreeSet<Token>	tokens		 = new TreeSet<Token>();
+		private TokenList		tokens		 = null;
+		private int				current		 = 0;
 		
 		/** Returns a string representing the current and all lookahead
 		 *  tokens. Returns a different string after every {@link #advance()}.
@@ -130,112 +101,50 @@ public class Pass
 		@Override public String toString()
 		{	
 			Text theTokens = new Text();
-			theTokens.appendf( "==> %s\n", current );
-			for( Token t : tokens )
-				 theTokens.appendf( "    %s\n", t );
+			theTokens.appendf( "==> %s\n", describe(current) );
+			for( int i = current + 1; i < tokens.size(); ++i )
+				 theTokens.appendf( "    %s\n", describe(i) );
 			return theTokens.toString();
 		}
 		
-		/** Load the tokens.
-		 *  @param input
+		/** Load the tokens from the document, which does the actual lexing.
+		 *  @param document
 		 */
-
-		private void load( String input )
+		private void load( Document document )
 		{
-			// Search for tokens. Note that sequence is corrected by dint of the fact that
-			// we're loading into a tree and tokens sort by start-location order. Consider a
-			// TEXT CODE_BEGIN TEXT CODE_END situation. We'll load the CODE_BEGIN token first.
-			// Then we'll load the CODE_END token, which will be inserted into the tree in
-			// proper order (following the CODE_BEGIN). The TEXT tokens comprise
-			// everything that's not recognized as a non-TEXT token.
-			// existing tokens.
-			//
-			for( Type tokenType: Type.values() )
-			{
-				if( tokenType == Type.TEXT )
-					continue;
-				
-				Matcher m = tokenType.matcher(input);
-				while( m.find() )
-					tokens.add( new Token(tokenType, m.start(), m.end()) );
-			}
-			
-			// The PRE_SHORTHAND token is odd in that it can contain other tokens
-			// (for example, a code snippet). Make an initial pass and remove
-			// all such contained tokens.
-			boolean lastTokenWasPreShorthand = false;;
-			int		lastTokenEnd = -1;
-			for( Iterator<Token> i = tokens.iterator(); i.hasNext(); )
-			{	
-				Token current = i.next();
-				if( lastTokenWasPreShorthand && current.start < lastTokenEnd )
-				{
-					i.remove();
-					continue;
-				}
-				lastTokenWasPreShorthand = current.match( Type.PRE_SHORTHAND);
-				lastTokenEnd = current.end;
-			}
-				
-			Iterator<Token> i = tokens.iterator();
-			if( !i.hasNext() )	// it's entirely text.
-				tokens.add( new Token( Type.TEXT, 0, input.length() ));
-			else
-			{
-				// Make a second pass and create TEXT tokens that represent
-				// all text that falls between other tokens.
-				//
-				List<Token> textTokens = new LinkedList<Token>();
-				Token current = i.next();
-				
-				if( current.start != 0 )
-					textTokens.add( new Token(Type.TEXT, 0, current.start ) );
-				
-				while( i.hasNext() )
-				{	Token next = i.next();
-					if( current.end < next.start )	// if end==start, they're adjacent. > is an error.
-						textTokens.add( new Token(Type.TEXT, current.end, next.start) );
-					current = next;
-				}
-				
-				if( current.end < input.length() )
-					textTokens.add( new Token(Type.TEXT, current.end, input.length()) );
-				
-				tokens.addAll(textTokens);
-			}
-			
-			// Do the first advance (can't call advance() because it throws an exception if
-			// current is null;
-			current = tokens.pollFirst();
+			tokens	= document.tokens();
+			current = 0;
 		}
 			
 		/** Advance to the next token
-		 * @return The Token that is current after the advance.
+		 * @return The index of the token that is current after the advance.
 		 * @throws IllegalStateException if you try to read past end of input.
 		 */
-		private Token advance()
+		private int advance()
 		{	
-			if( current == null )
+			if( atEndOfInput() )
 				throw new IllegalStateException("Tried to advance past end of input");
-			
-			current = tokens.pollFirst();
-			return current;
+			return ++current;
 		}
 		
 		private boolean match( Type t ) throws IllegalStateException
-		{	if( current == null )
+		{	if( atEndOfInput() )
 				throw new IllegalStateException("Tried to match " + t + " at end of input");
-			return current.match(t);
+			return tokens.match(current, t);
 		}
 		
-		private Token current()
-		{	if( current == null  )
+		/** Return the index of the current token. */
+		private int current()
+		{	if( atEndOfInput() )
 				throw new IllegalStateException("Attempt to access current token when positioned at end of input");
 			return current;
 		}
+		
+		private int start(){ return tokens.start( current() ); }
+		private int end()  { return tokens.end  ( current() ); }
 
 		public boolean atEndOfInput()
-		{	return current == null;
+		{	return current >= tokens.size();
 		}
 		
 		/** Skip forward to a token of the specified type. Prints an error message.
@@ -243,7 +152,7 @@ public class Pass
 		 *  @return true if the token was found.
 		 */
 		public boolean skipTo( Type t ) throws NoSuchElementException
-		{	searchFrom = current;
+		{	int searchFrom = current;
 			try
 			{
 				while( !match(t) )
@@ -251,7 +160,7 @@ public class Pass
 			}
 			catch( IllegalStateException e )	// hit end of file
 			{
-				error.report( searchFrom.start, input, "Could not find %s", t.toString() );
+				error.report( tokens.start(searchFrom), input, "Could not find %s", t.toString() );
 				return false;
 			}
 			return true;
@@ -267,15 +176,17 @@ public class Pass
 		 */
 		public void findMatchingEndDelim( Type end )
 		{
-			log.trace("Looking for %s to match %s at position %d", end, current, current.start );
+			if( log.isEnabledFor(Level.TRACE) )		// avoid formatting the description when it won't be used
+				log.trace("Looking for %s to match %s at position %d", end, describe(current), start() );
 			
-			Token beginToken   = current;
-			int  startPosition = current.start;
+			int  beginToken    = current;
+			Type beginType	   = tokens.type(beginToken);
+			int  startPosition = start();
 			advance();
 			
 			int	 nestingLevel = 0;
 			while( nestingLevel > 0 || !match(end) )
-			{	if( match(beginToken.type) )
+			{	if( match(beginType) )
 					++nestingLevel;
 				else if( match(end) )
 					--nestingLevel;
@@ -284,7 +195,7 @@ public class Pass
 					
 			if( tokenStream.atEndOfInput() )
 			{
-				error.report( startPosition, input, "Couldn't find %s to match %s", end.toString(), beginToken.lexeme() );
+				error.report( startPosition, input, "Couldn't find %s to match %s", end.toString(), lexeme(beginToken) );
 				throw new IllegalStateException("Reached end of input while looking for" + end.toString() );
 			}
 		}
@@ -295,10 +206,14 @@ public class Pass
 	
 	public Pass( Configuration config, Filter... filters )
 	{
-		this.error = config.error();
+		this.error	 = config.error();
+		this.filters = filters;
 		
+		boolean allStateless = filters.length > 0;
 		for( Filter f : filters )
 		{
+			allStateless &= (f instanceof Filter.Stateless);
+			
 			assert f.isTextFilter() || f.isCodeBlockFilter() || f.isSnippetFilter(): "Filter can't do anything!" ;
 			
 			if( f.isCodeBlockFilter() )
@@ -313,11 +228,102 @@ public class Pass
 			
 		// Arrange for segments for which there is no filter to pass through to the output untouched.
 		//
-		if( codeFilters.size() 	  == 0 ){ codeFilters	.add( new Filter.Default(CODE) 	 ); }
-		if( textFilters.size()	  == 0 ){ textFilters	.add( new Filter.Default(TEXT) 	 ); }
-		if( snippetFilters.size() == 0 ){ snippetFilters.add( new Filter.Default(SNIPPET)); }
+		if( copyCode		 = (codeFilters.size()	  == 0) ){ codeFilters	 .add( new Filter.Default(CODE)		); }
+		if( copyText		 = (textFilters.size()	  == 0) ){ textFilters	 .add( new Filter.Default(TEXT)		); }
+		if( copySnippets = (snippetFilters.size() == 0) ){ snippetFilters.add( new Filter.Default(SNIPPET)	); }
+		
+		stateless = allStateless;
+	}
+		
+	/** Return true if running this pass on the document could change the document
+	 *  or report an error. Return false if all of the pass's filters are
+	 *  {@link Filter.Selective} filters that aren't needed for this document, and the
+	 *  pass itself has nothing to do (there are no comments to remove, no comma-prefixed
+	 *  lines to turn into &lt;pre&gt; blocks, no unmatched tags or backquotes, and so forth).
+	 *  The pass can be skipped entirely when this method returns false.
+	 *  This method is much faster than {@link #process(Document)}. Only the parts of
+	 *  the document that have changed since it was last lexed are lexed again.
+	 */
+	public boolean isNeededFor( Document document )
+	{
+		for( Filter f : filters )
+			if( !(f instanceof Filter.Selective) || ((Filter.Selective)f).isNeededFor(document.toString()) )
+				return true;
+		
+		return !isCanonical( document );
 	}
+	
+	/** Return true if a pass that has no filters wouldn't change the document
+	 *  or report any errors. The logic mirrors {@link #process(Document)}.
+	 */
+	private static boolean isCanonical( Document document )
+	{
+		String	  text	 = document.toString();
+		TokenList tokens = document.tokens();
 		
+		for( int i = 0; i < tokens.size(); ++i )
+		{
+			switch( tokens.type(i) )
+			{
+			case TEXT:
+				break;
+				
+			case SNIPPET:			// must be followed by another SNIPPET on the same line.
+				int close = i + 1;
+				while( close < tokens.size() && !tokens.match(close, Type.SNIPPET) )
+					++close;
+				if( close >= tokens.size() )
+					return false;
+				
+				int newline = text.indexOf( '\n', tokens.start(i + 1) );
+				if( 0 <= newline && newline < tokens.start(close) )
+					return false;
+				
+				i = close;
+				break;
+				
+			case PRE_START:			// must have a matching end tag.
+			case LISTING_START:
+				Type begin	 = tokens.type(i);
+				Type end	 = (begin == Type.PRE_START) ? Type.PRE_END : Type.LISTING_END;
+				int  nesting = 0;
+				int  j		 = i + 1;
+				for( ; j < tokens.size() && (nesting > 0 || !tokens.match(j, end)); ++j )
+				{	if( tokens.match(j, begin) )
+						++nesting;
+					else if( tokens.match(j, end) )
+						--nesting;
+				}
+				if( j >= tokens.size() )
+					return false;
+				
+				i = j;
+				break;
+				
+			default:				// comments, comma-prefixed lines, and unmatched end tags are all modified.
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/** Record timing and throughput information for this pass and its filters in the
+	 *  indicated Stats object, which can be shared with other passes. Pass null to
+	 *  stop recording.
+	 */
+	void collectStatisticsIn( Stats stats )
+	{	this.stats = stats;
+	}
+	
+	/** Return a list of the names of the filters in this pass, for use in log messages. */
+	@Override public String toString()
+	{
+		StringBuilder names = new StringBuilder();
+		for( Filter f : filters )
+			names.append( names.length() == 0 ? "" : "+" ).append( f.getClass().getSimpleName() );
+		return names.toString();
+	}
+	
 	/** Make a pass through the inputText, filtering each segment
 	 *  as appropriate. 
 	 * @param inputText Both the input and the output. Contents are
@@ -326,21 +332,42 @@ public class Pass
 	 */
 	public boolean process(Text inputText)
 	{
-		Text processedText = new Text();
+		Document document = new Document(inputText);
+		if( !process(document) )
+			return false;
+		
+		inputText.replace( document.toString() );
+		return true;
+	}
+	
+	/** Make a pass through a document that's shared by several passes, filtering
+	 *  each segment as appropriate. Only the parts of the document that
+	 *  this pass changes will have to be lexed again by the next pass.
+	 *  
+	 * @param document Both the input and the output. Contents are
+	 * 			modified by processing, but only if processing succeeds.
+	 * @return false if processing failed, in which case the document isn't modified.
+	 */
+	public boolean process(Document document)
+	{
+		long startTime	= (stats == null) ? 0 : System.nanoTime();
+		int  lengthIn	= document.length();
+		
+		processedText = document.edit();
+		pending.clear();
 		try
 		{
-			input = inputText.toString();
+			input = document.toString();
 			
-			for( tokenStream.load(input); !tokenStream.atEndOfInput(); tokenStream.advance() )
+			for( tokenStream.load(document); !tokenStream.atEndOfInput(); tokenStream.advance() )
 			{
 				if( tokenStream.match(Type.TEXT) )
 				{
-					Text body = tokenStream.current().lexeme();
-										
-					for( Filter f : textFilters )
-						f.filter(	Text.EMPTY, body, Text.EMPTY, Filter.BlockType.TEXT );
-					
-					processedText.append(body);
+					if( copyText )
+						copy( tokenStream.start(), tokenStream.end() );
+					else
+						filter( textFilters, Text.EMPTY, text(tokenStream.current()), Text.EMPTY, Filter.BlockType.TEXT,
+								tokenStream.start(), tokenStream.end() );
 				}
 				else if( tokenStream.match(Type.COMMENT_START) )
 				{
@@ -349,67 +376,218 @@ public class Pass
 				}
 				else if( tokenStream.match(Type.SNIPPET) )
 				{
-					Text prefix = tokenStream.current().lexeme();
-					int start 	= tokenStream.advance().start;
+					int beginToken	= tokenStream.current();
+					tokenStream.advance();
+					int start 		= tokenStream.start();
 					
 					if( !tokenStream.skipTo(Type.SNIPPET) ) // error printed in skipTo
 						return false;
 					
-					Text body = inputText.substring(start, tokenStream.current().start);
-					if( body.indexOf('\n') >= 0 )
+					int end = tokenStream.start();
+					if( indexOf('\n', start, end) >= 0 )
 					{	error.report( start, input, "Code snippets (`code`) must be on a single line. Missing or extra backquote? Aborting this pass.");
 						return false;
 					}
 					
-					for( Filter f : snippetFilters )
-						f.filter( prefix, body, tokenStream.current.lexeme(), Filter.BlockType.SNIPPET );
-					
-					processedText.append(body);
+					if( copySnippets )
+						copy( tokens().start(beginToken), tokenStream.end() );
+					else
+						filter( snippetFilters, text(beginToken), new Text(input.substring(start, end)), text(tokenStream.current()),
+								Filter.BlockType.SNIPPET, tokens().start(beginToken), tokenStream.end() );
 				}
 				else if( tokenStream.match( Type.PRE_SHORTHAND) )	// lines that start with a comma are treated as a pre block
 				{
-					Text body = tokenStream.current().lexeme();
+					Text body = text( tokenStream.current() );
 					body.prefix("\n");
 					body.replaceAll(commaPrefixes, "\n");				// get rid of the comma prefix.
-					for( Filter f : codeFilters )
-						f.filter( PRE_START_TEXT, body, PRE_END_TEXT, Filter.BlockType.CODE );
-					processedText.append(body);
+					filter( codeFilters, PRE_START_TEXT, body, PRE_END_TEXT, Filter.BlockType.CODE,
+							tokenStream.start(), tokenStream.end() );
 				}
 				else if( tokenStream.match(Type.LISTING_START) || tokenStream.match(Type.PRE_START) )
 				{
-					Token beginToken = tokenStream.current();
-					Text prefix	 	 = tokenStream.current().lexeme();
+					int  beginToken	 = tokenStream.current();
 					Type endDelim 	 = tokenStream.match(Type.LISTING_START) ? Type.LISTING_END : Type.PRE_END ;
 					
 					tokenStream.findMatchingEndDelim( endDelim );
 					
-					Text body = inputText.substring( beginToken.end, tokenStream.current().start);
-					
-					for( Filter f : codeFilters )
-						f.filter( prefix, body, tokenStream.current().lexeme(), Filter.BlockType.CODE );
-		
-					processedText.append(body);
+					if( copyCode )
+						copy( tokens().start(beginToken), tokenStream.end() );
+					else
+						filter( codeFilters, text(beginToken), new Text(input.substring(tokens().end(beginToken), tokenStream.start())),
+								text(tokenStream.current()), Filter.BlockType.CODE, tokens().start(beginToken), tokenStream.end() );
 				}
 				else if( tokenStream.match(Type.LISTING_END) || tokenStream.match(Type.PRE_END) || tokenStream.match(Type.COMMENT_END) )
 				{
-					error.report( tokenStream.current().start, input, "Found %s without matching start element", tokenStream.current().lexeme() );
+					error.report( tokenStream.start(), input, "Found %s without matching start element", lexeme(tokenStream.current()) );
 					tokenStream.advance();
 				}
 				else
 				{
-					log.error( "Unexpected tag in input: %s", tokenStream.current().toString() );
+					log.error( "Unexpected tag in input: %s", describe(tokenStream.current()) );
 					tokenStream.advance();
 				}
 			}
 			
-			inputText.replace( processedText );
+			filterPendingSegments();
+			processedText.commit();
 		}
 		catch( Exception e )
 		{	
 			log.error("Internal error: Unexpected exception %s.\nInput is:\n%s", e, new Text(input).indent(4) );
 			return false;
 		}
+		finally
+		{	pending.clear();
+			if( stats != null )
+				stats.recordPass( toString(), System.nanoTime() - startTime, lengthIn, document.length() );
+		}
 		
 		return true;
 	}
+	
+	//----------------------------------------------------------------------
+	// Segment filtering. Segments are filtered as they're found unless
+	// all the filters are Stateless, in which case they're saved in the pending
+	// list and filtered in parallel by filterPendingSegments() when the
+	// scan is done.
+	//----------------------------------------------------------------------
+	
+	/** A segment of the input that's waiting to be filtered. If the filters list is null, the
+	 *  segment is copied to the output without modification.
+	 */
+	private static class Segment
+	{
+		final int 				start;
+		final int 				end;
+		final List<Filter>		filters;
+		final Text 				prefix;
+		final Text 				body;
+		final Text 				suffix;
+		final Filter.BlockType	type;
+		
+		Segment( int start, int end, List<Filter> filters, Text prefix, Text body, Text suffix, Filter.BlockType type )
+		{	this.start	 = start;
+			this.end	 = end;
+			this.filters = filters;
+			this.prefix	 = prefix;
+			this.body	 = body;
+			this.suffix	 = suffix;
+			this.type	 = type;
+		}
+		
+		void filter( Stats stats )
+		{	if( filters != null )
+				applyFilters( filters, prefix, body, suffix, type, stats );
+		}
+	}
+	
+	/** Filters a range of the pending segments, splitting the range in half until it's small enough. */
+	private class FilterTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+		
+		FilterTask( int from, int to )
+		{	this.from = from;
+			this.to	  = to;
+		}
+		
+		@Override protected void compute()
+		{
+			if( to - from <= SEGMENTS_PER_TASK )
+			{	for( int i = from; i < to; ++i )
+					pending.get(i).filter( stats );
+			}
+			else
+			{	int middle = (from + to) >>> 1;
+				invokeAll( new FilterTask(from, middle), new FilterTask(middle, to) );
+			}
+		}
+	}
+	
+	/** Copy the input between start and end to the output. */
+	private void copy( int start, int end )
+	{
+		if( stateless )
+			pending.add( new Segment(start, end, null, null, null, null, null) );
+		else
+			processedText.copy( start, end );
+	}
+	
+	/** Run the segment through the filters, replacing the input between start and end with the filtered body. */
+	private void filter( List<Filter> filters, Text prefix, Text body, Text suffix, Filter.BlockType type, int start, int end )
+	{
+		if( stateless )
+			pending.add( new Segment(start, end, filters, prefix, body, suffix, type) );
+		else
+		{	applyFilters( filters, prefix, body, suffix, type, stats );
+			processedText.emit( start, end, body );
+		}
+	}
+	
+	/** Run the body through all the filters, recording timing information if stats isn't null.
+	 *  Static because it's called from worker threads when segments are filtered in parallel.
+	 */
+	private static void applyFilters( List<Filter> filters, Text prefix, Text body, Text suffix, Filter.BlockType type, Stats stats )
+	{
+		for( Filter f : filters )
+		{
+			if( stats == null )
+				f.filter( prefix, body, suffix, type );
+			else
+			{	String before	 = body.toString();
+				long   startTime = System.nanoTime();
+				f.filter( prefix, body, suffix, type );
+				stats.recordFilter( f, System.nanoTime() - startTime, before.length(), body.length(), !before.contentEquals(body) );
+			}
+		}
+	}
+	
+	/** Filter all the pending segments (in parallel if there are enough of them), and then
+	 *  transfer them, in order, to the output.
+	 */
+	private void filterPendingSegments()
+	{
+		if( pending.size() >= MINIMUM_PARALLEL_SEGMENTS )
+			ForkJoinPool.commonPool().invoke( new FilterTask(0, pending.size()) );
+		else
+			for( Segment segment : pending )
+				segment.filter( stats );
+		
+		for( Segment segment : pending )
+		{	if( segment.filters == null )
+				processedText.copy( segment.start, segment.end );
+			else
+				processedText.emit( segment.start, segment.end, segment.body );
+		}
+	}
+	
+	/** Return the lexeme (the input string) associated with the
+	 *  indicated token. The returned CharSequence is a view
+	 *  into the input, not a copy.
+	 */
+	private CharSequence lexeme( int token )
+	{	return CharBuffer.wrap( input, tokens().start(token), tokens().end(token) );
+	}
+	
+	/** Return a copy of the lexeme associated with the indicated token, suitable for passing to a filter. */
+	private Text text( int token )
+	{	return new Text( input.substring(tokens().start(token), tokens().end(token)) );
+	}
+	
+	private TokenList tokens()
+	{	return tokenStream.tokens;
+	}
+	
+	/** Return the position of c in the input between start and end, or -1 if it's not there. */
+	private int indexOf( char c, int start, int end )
+	{	int position = input.indexOf(c, start);
+		return position < end ? position : -1;
+	}
+	
+	/** Return a description of the token suitable for a log message. */
+	private String describe( int token )
+	{	return token >= tokens().size() ? "null" : String.format( "%s [%s]", tokens().toString(token), lexeme(token) );
+	}
 }
\ No newline at end of file
@@ -0,0 +1,395 @@
+package com.holub.hml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+
+import com.holub.text.Text;
+import com.holub.util.ExtendedLogger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** A long-running HTTP server that renders HML documents. The configuration
+ *  files are loaded once, into an {@link HmlEngine}, when the server starts,
+ *  so a request costs only as much as processing the document itself.
+ *  <p>
+ *  The server handles the following requests:
+ *  <table>
+ *  <tr><td>POST /render</td>
+ *  	<td>The request body is an HML document (UTF-8). The response body is the HTML.
+ *  		The number of errors found in the document is returned in an
+ *  		X-Hml-Error-Count header. The error messages themselves are logged.</td></tr>
+ *  <tr><td>GET /health</td>
+ *  	<td>Returns 200 and "OK" if the server is running.</td></tr>
+ *  <tr><td>GET /metrics</td>
+ *  	<td>Returns request counts and timings as name=value lines (text/plain).</td></tr>
+ *  </table>
+ *  At most <em>maxConcurrentRenders</em> documents are processed at once.
+ *  Up to <em>queueCapacity</em> additional requests wait for a free renderer.
+ *  Requests that arrive when the queue is full get a 503 (Service Unavailable)
+ *  response before their body is read. Documents larger than <em>maxDocumentBytes</em>
+ *  get a 413 (Request Entity Too Large) response.
+ *  <p>
+ *  The engine can reload the configuration files while the server is running
+ *  (see {@link HmlEngine#reloadEvery(long, TimeUnit)}); the number of reloads is
+ *  reported in the metrics.
+ *  <p>
+ *  When it's run from the command line, the server also publishes per-pass and per-filter
+ *  timing through JMX (see {@link Stats}), as com.holub.hml:type=Stats,name=RenderServer.
+ *
+ * @author allen
+ */
+
+public class RenderServer
+{
+	private static final ExtendedLogger log = ExtendedLogger.getLogger(RenderServer.class);
+	private static final Charset		UTF8 = Charset.forName("UTF-8");
+
+	private static final String USAGE =
+			new Text("\n",
+					"Usage: java [-DCONFIG=/path/to/config/directory] com.holub.hml.RenderServer [port [maxConcurrentRenders [queueCapacity [reloadSeconds]]]]",
+					"",
+					"Start an HTTP server that renders HML documents POSTed to /render.",
+					"The port defaults to 8080. By default, one document per processor is rendered at a",
+					"time, and up to 100 requests are queued. The configuration files (hml.macros,",
+					"hml.head, and hml.tail) are checked for changes every reloadSeconds (5 by default,",
+					"0 to never check), and reloaded without interrupting the server if they've changed."
+				).toString();
+
+	private final HmlEngine				engine;
+	private final HttpServer			server;
+	private final ThreadPoolExecutor	renderers;
+	private final ThreadPoolExecutor	connections;
+	private final Semaphore				admitted;		// one permit per renderer or queue slot
+	private final int					capacity;
+	private final long					maxDocumentBytes;
+
+	/** The largest document that's accepted by default. */
+	public static final long DEFAULT_MAX_DOCUMENT_BYTES = 16 * 1024 * 1024;
+
+	/** Connection threads beyond the ones that can be waiting for a renderer,
+	 *  used for /health, /metrics, and rejected requests.
+	 */
+	private static final int SPARE_CONNECTIONS = 4;
+
+	private final AtomicLong requests		= new AtomicLong();
+	private final AtomicLong rendered		= new AtomicLong();
+	private final AtomicLong rejected		= new AtomicLong();
+	private final AtomicLong tooLarge		= new AtomicLong();
+	private final AtomicLong failed			= new AtomicLong();
+	private final AtomicLong documentErrors	= new AtomicLong();
+	private final AtomicLong renderNanos	= new AtomicLong();
+	private final AtomicLong bytesIn		= new AtomicLong();
+	private final AtomicLong bytesOut		= new AtomicLong();
+
+	/** Create (but don't start) a server.
+	 * @param engine				used to render every document.
+	 * @param address				the server listens here. Use port 0 to pick any free port
+	 * 								(call {@link #getAddress()} to find out which one).
+	 * @param maxConcurrentRenders	the maximum number of documents processed at once.
+	 * @param queueCapacity			the number of requests that can wait for a renderer.
+	 */
+	public RenderServer( HmlEngine engine, InetSocketAddress address, int maxConcurrentRenders, int queueCapacity ) throws IOException
+	{	this( engine, address, maxConcurrentRenders, queueCapacity, DEFAULT_MAX_DOCUMENT_BYTES );
+	}
+
+	/** Same as {@link #RenderServer(HmlEngine, InetSocketAddress, int, int)}, but
+	 *  with a limit on the size of the documents.
+	 * @param maxDocumentBytes		larger documents are refused with a 413 response.
+	 */
+	public RenderServer( HmlEngine engine, InetSocketAddress address, int maxConcurrentRenders, int queueCapacity,
+						 long maxDocumentBytes ) throws IOException
+	{
+		this.engine				= engine;
+		this.maxDocumentBytes	= maxDocumentBytes;
+		capacity	= maxConcurrentRenders + queueCapacity;
+		admitted	= new Semaphore( capacity );
+		renderers	= new ThreadPoolExecutor( maxConcurrentRenders, maxConcurrentRenders, 0L, TimeUnit.MILLISECONDS,
+								queueCapacity > 0 ? new ArrayBlockingQueue<Runnable>(queueCapacity) : new SynchronousQueue<Runnable>() );
+
+		// One thread for every request that can be admitted, plus a few for the
+		// requests that are answered without rendering. If they're all busy, the
+		// server's own dispatcher thread handles the request. By then every
+		// renderer and queue slot is taken, so the request is rejected without
+		// reading its body, and the dispatcher is tied up only briefly.
+
+		int threads = capacity + SPARE_CONNECTIONS;
+		connections	= new ThreadPoolExecutor( threads, threads, 60L, TimeUnit.SECONDS,
+								new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy() );
+		connections.allowCoreThreadTimeOut( true );
+
+		server = HttpServer.create( address, 0 );
+		server.setExecutor( connections );
+		server.createContext( "/render",  new RenderHandler()  );
+		server.createContext( "/health",  new HealthHandler()  );
+		server.createContext( "/metrics", new MetricsHandler() );
+	}
+
+	public void start()
+	{	server.start();
+		log.info( "HML render server listening on %s", getAddress() );
+	}
+
+	/** Stop the server, waiting at most delaySeconds for requests in progress to finish. */
+	public void stop( int delaySeconds )
+	{	server.stop( delaySeconds );
+		renderers.shutdown();
+		connections.shutdown();
+	}
+
+	public InetSocketAddress getAddress()
+	{	return server.getAddress();
+	}
+
+	//----------------------------------------------------------------------
+	private class RenderHandler implements HttpHandler
+	{
+		@Override public void handle( HttpExchange exchange ) throws IOException
+		{
+			try
+			{
+				requests.incrementAndGet();
+
+				if( !exchange.getRequestMethod().equals("POST") )
+				{	exchange.getResponseHeaders().set( "Allow", "POST" );
+					respond( exchange, 405, "text/plain", "Use POST to send a document to /render\n" );
+					return;
+				}
+
+				String length = exchange.getRequestHeaders().getFirst( "Content-Length" );
+				if( length != null && Long.parseLong(length.trim()) > maxDocumentBytes )
+				{	refuseTooLarge( exchange );
+					return;
+				}
+
+				// Check for a free renderer or queue slot before reading the body, so
+				// that a rejected request costs almost nothing.
+
+				if( !admitted.tryAcquire() )
+				{	rejected.incrementAndGet();
+					respond( exchange, 503, "text/plain", "Too many requests. Try again later.\n" );
+					return;
+				}
+
+				Render result;
+				try
+				{	byte[] body = readFully( exchange.getRequestBody(), maxDocumentBytes );
+					if( body == null )			// no Content-Length, and too much data
+					{	refuseTooLarge( exchange );
+						return;
+					}
+					bytesIn.addAndGet( body.length );
+
+					final String input = new String( body, UTF8 );
+					result = renderers.submit( new Callable<Render>()
+							 {	@Override public Render call()
+								{	return render( input );
+								}
+							 }).get();
+				}
+				catch( RejectedExecutionException e )		// the server is shutting down
+				{	rejected.incrementAndGet();
+					respond( exchange, 503, "text/plain", "Too many requests. Try again later.\n" );
+					return;
+				}
+				finally
+				{	admitted.release();
+				}
+
+				if( result.errorCount < 0 )
+				{	failed.incrementAndGet();
+					respond( exchange, 500, "text/plain", result.errors );
+					return;
+				}
+
+				if( result.errorCount > 0 )
+					log.info( "%d errors in rendered document:\n%s", result.errorCount, result.errors );
+
+				exchange.getResponseHeaders().set( "X-Hml-Error-Count", String.valueOf(result.errorCount) );
+				respond( exchange, 200, "text/html; charset=utf-8", result.output );
+			}
+			catch( NumberFormatException e )	// bad Content-Length
+			{	respond( exchange, 400, "text/plain", "Bad Content-Length\n" );
+			}
+			catch( InterruptedException e )
+			{	Thread.currentThread().interrupt();
+				failed.incrementAndGet();
+				respond( exchange, 503, "text/plain", "Server is shutting down.\n" );
+			}
+			catch( ExecutionException e )
+			{	log.error( "Unexpected exception while rendering", e.getCause() );
+				failed.incrementAndGet();
+				respond( exchange, 500, "text/plain", "Internal error\n" );
+			}
+			finally
+			{	exchange.close();
+			}
+		}
+	}
+
+	private void refuseTooLarge( HttpExchange exchange ) throws IOException
+	{	tooLarge.incrementAndGet();
+		respond( exchange, 413, "text/plain", "Documents can't be larger than " + maxDocumentBytes + " bytes.\n" );
+	}
+
+	/** The result of rendering one document. */
+	private static class Render
+	{	final String output;
+		final String errors;
+		final int	 errorCount;
+
+		Render( String output, String errors, int errorCount )
+		{	this.output		= output;
+			this.errors		= errors;
+			this.errorCount	= errorCount;
+		}
+	}
+
+	private Render render( String input )
+	{
+		long		 start	= System.nanoTime();
+		StringWriter output = new StringWriter();
+		StringWriter errors = new StringWriter();
+
+		int errorCount = engine.render( input, output, errors );
+
+		renderNanos.addAndGet( System.nanoTime() - start );
+		rendered.incrementAndGet();
+		if( errorCount > 0 )
+			documentErrors.addAndGet( errorCount );
+
+		return new Render( output.toString(), errors.toString(), errorCount );
+	}
+
+	//----------------------------------------------------------------------
+	private class HealthHandler implements HttpHandler
+	{
+		@Override public void handle( HttpExchange exchange ) throws IOException
+		{	try
+			{	respond( exchange, 200, "text/plain", "OK\n" );
+			}
+			finally
+			{	exchange.close();
+			}
+		}
+	}
+
+	private class MetricsHandler implements HttpHandler
+	{
+		@Override public void handle( HttpExchange exchange ) throws IOException
+		{	try
+			{	respond( exchange, 200, "text/plain", metrics() );
+			}
+			finally
+			{	exchange.close();
+			}
+		}
+	}
+
+	/** Return the current metrics as name=value lines. */
+	public String metrics()
+	{
+		long count = rendered.get();
+		return new Text("\n",
+			"requests="				+ requests.get(),
+			"rendered="				+ count,
+			"rejected="				+ rejected.get(),
+			"tooLarge="				+ tooLarge.get(),
+			"failed="				+ failed.get(),
+			"documentErrors="		+ documentErrors.get(),
+			"admittedRequests="		+ (capacity - admitted.availablePermits()),
+			"activeRenders="		+ renderers.getActiveCount(),
+			"queuedRenders="		+ renderers.getQueue().size(),
+			"bytesIn="				+ bytesIn.get(),
+			"bytesOut="				+ bytesOut.get(),
+			"totalRenderMillis="	+ renderNanos.get() / 1000000,
+			"meanRenderMillis="		+ (count == 0 ? 0 : renderNanos.get() / count / 1000000),
+			"configReloads="		+ engine.reloads(),
+			"failedConfigReloads="	+ engine.failedReloads(),
+			""
+		).toString();
+	}
+
+	//----------------------------------------------------------------------
+	private void respond( HttpExchange exchange, int status, String contentType, String body ) throws IOException
+	{
+		byte[] bytes = body.getBytes( UTF8 );
+		exchange.getResponseHeaders().set( "Content-Type", contentType );
+		exchange.sendResponseHeaders( status, bytes.length == 0 ? -1 : bytes.length );
+		if( bytes.length > 0 )
+		{	OutputStream out = exchange.getResponseBody();
+			out.write( bytes );
+			out.close();
+		}
+		bytesOut.addAndGet( bytes.length );
+	}
+
+	/** Read the whole stream, or return null if it holds more than limit bytes. */
+	private static byte[] readFully( InputStream in, long limit ) throws IOException
+	{
+		ByteArrayOutputStream bytes  = new ByteArrayOutputStream();
+		byte[]				  buffer = new byte[8192];
+		try
+		{	for( int got; (got = in.read(buffer)) > 0 ; )
+			{	if( bytes.size() + got > limit )
+					return null;
+				bytes.write( buffer, 0, got );
+			}
+		}
+		finally
+		{	in.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	//----------------------------------------------------------------------
+	public static void main( String[] args ) throws IOException
+	{
+		int port		= 8080;
+		int renderers	= Runtime.getRuntime().availableProcessors();
+		int queue		= 100;
+		int reload		= 5;
+		try
+		{	if( args.length > 0 ) port		= Integer.parseInt( args[0] );
+			if( args.length > 1 ) renderers	= Integer.parseInt( args[1] );
+			if( args.length > 2 ) queue		= Integer.parseInt( args[2] );
+			if( args.length > 3 ) reload	= Integer.parseInt( args[3] );
+		}
+		catch( NumberFormatException e )
+		{	System.err.println( "Arguments must be numbers.\n" + USAGE );
+			System.exit( -3 );
+		}
+
+		Stats stats = new Stats();
+		try
+		{	stats.register( "RenderServer" );
+		}
+		catch( JMException e )
+		{	log.error( "Couldn't register statistics MBean", e );
+		}
+		
+		HmlEngine engine = new HmlEngine( stats );
+		if( engine.setupErrorCount() > 0 )
+			System.err.println( engine.setupErrors() );
+		if( reload > 0 )
+			engine.reloadEvery( reload, TimeUnit.SECONDS );
+
+		new RenderServer( engine, new InetSocketAddress(port), renderers, queue ).start();
+	}
+}
@@ -0,0 +1,237 @@
+package com.holub.hml;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+
+/** The replacement half of a macro definition, compiled once (when the definition
+ *  is loaded) into a list of parts: literal text, group references ($1, ${name}),
+ *  and date/time variables (%(year), %(Month), etc.). Expanding a match is then
+ *  just a matter of appending the parts to an output buffer, with no
+ *  regular-expression processing at all.
+ *  <p>
+ *  The result is exactly what you'd get by first replacing the variables
+ *  in the replacement string, then passing the result to
+ *  {@link Matcher#appendReplacement}: a backslash quotes the following character,
+ *  a variable isn't recognized if it's immediately preceded by a backslash, and
+ *  $n takes as many digits as form a valid group number. Errors (a trailing
+ *  backslash, a malformed group reference) are reported when the template is
+ *  used, not when it's compiled, as they were when the replacement was parsed
+ *  by the Matcher. (The one difference: a $ immediately followed by a variable
+ *  is an error here, rather than a reference to a group whose number
+ *  comes from the variable's value.)
+ *  <p>
+ *  Templates are immutable, so they can be used by several threads at once.
+ *
+ * @author allen
+ */
+
+final class ReplacementTemplate
+{
+	private static final String[] month_names =
+	{	"January", "February", "March", "April", "May", "June", "July",
+		"August", "September", "October", "November", "December", };
+
+	private static final String[] day_names =
+	{	null, "Sunday", "Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday"
+	};
+
+	private static final String[] variables =
+	{	"timestamp", "month", "Month", "day", "Day", "year", "hr", "min", "sec"
+	};
+
+	//----------------------------------------------------------------------
+	private static abstract class Part
+	{	abstract void append( MatchResult m, CharSequence input, Calendar now, StringBuilder output );
+	}
+
+	private static class Literal extends Part
+	{	private final String text;
+		Literal( String text ){ this.text = text; }
+		@Override void append( MatchResult m, CharSequence input, Calendar now, StringBuilder output )
+		{	output.append( text );
+		}
+	}
+
+	private static class Group extends Part
+	{	private final int number;
+		Group( int number ){ this.number = number; }
+		@Override void append( MatchResult m, CharSequence input, Calendar now, StringBuilder output )
+		{	int start = m.start( number );
+			if( start >= 0 )
+				output.append( input, start, m.end(number) );
+		}
+	}
+
+	private static class NamedGroup extends Part
+	{	private final String name;
+		NamedGroup( String name ){ this.name = name; }
+		@Override void append( MatchResult m, CharSequence input, Calendar now, StringBuilder output )
+		{	if( !(m instanceof Matcher) )		// LinearPatterns don't have named groups
+				throw new IllegalArgumentException( "No group with name <" + name + ">" );
+			String group = ((Matcher)m).group( name );
+			if( group != null )
+				output.append( group );
+		}
+	}
+
+	private static class Variable extends Part
+	{	private final String name;
+		Variable( String name ){ this.name = name; }
+		@Override void append( MatchResult m, CharSequence input, Calendar now, StringBuilder output )
+		{
+			switch( name.charAt(0) )
+			{
+			case 't':	output.append( now.getTime().toString() );	break;
+			case 'm':	output.append( name.charAt(1) == 'o' ? (now.get(Calendar.MONTH) + 1) : now.get(Calendar.MINUTE) ); break;
+			case 'd':	output.append( now.get(Calendar.DATE)	);	break;
+			case 'y':	output.append( now.get(Calendar.YEAR)	);	break;
+			case 'h':	output.append( now.get(Calendar.HOUR)	);	break;
+			case 's':	output.append( now.get(Calendar.SECOND)	);	break;
+			case 'M':	output.append( month_names[ now.get(Calendar.MONTH)		  ] ); break;
+			case 'D':	output.append( day_names  [ now.get(Calendar.DAY_OF_WEEK) ] ); break;
+			default:	throw new RuntimeException( "Unexpected macro: [" + name + "]" );	// shouldn't happen
+			}
+		}
+	}
+
+	/** A syntax error in the replacement, reported when the template is used. */
+	private static class Malformed extends Part
+	{	private final String message;
+		Malformed( String message ){ this.message = message; }
+		@Override void append( MatchResult m, CharSequence input, Calendar now, StringBuilder output )
+		{	throw new IllegalArgumentException( message );
+		}
+	}
+
+	//----------------------------------------------------------------------
+	private final Part[]	parts;
+	private final boolean	hasVariables;
+
+	/** Compile the replacement.
+	 * @param replacement the replacement text, with its \n-style escapes already expanded.
+	 * @param groupCount the number of capturing groups in the associated regular expression.
+	 */
+	ReplacementTemplate( String replacement, int groupCount )
+	{
+		List<Part>		parts	 = new ArrayList<Part>();
+		StringBuilder	literal	 = new StringBuilder();
+		boolean			variable = false;
+
+		for( int i = 0, length = replacement.length(); i < length; )
+		{
+			char c = replacement.charAt(i);
+
+			String name = (c == '%' && (i == 0 || replacement.charAt(i - 1) != '\\')) ? variableAt(replacement, i) : null;
+			if( name != null )
+			{	flush( literal, parts );
+				parts.add( new Variable(name) );
+				variable = true;
+				i += name.length() + 3;						// %( name )
+			}
+			else if( c == '\\' )
+			{	if( ++i >= length )
+				{	flush( literal, parts );
+					parts.add( new Malformed("character to be escaped is missing") );
+					break;
+				}
+				literal.append( replacement.charAt(i++) );
+			}
+			else if( c != '$' )
+			{	literal.append( c );
+				++i;
+			}
+			else
+			{	flush( literal, parts );
+
+				if( ++i >= length )
+				{	parts.add( new Malformed("Illegal group reference: group index is missing") );
+					break;
+				}
+
+				if( replacement.charAt(i) == '{' )
+				{	int close = replacement.indexOf( '}', i );
+					if( close < 0 )
+					{	parts.add( new Malformed("named capturing group is missing trailing '}'") );
+						break;
+					}
+					parts.add( new NamedGroup(replacement.substring(i + 1, close)) );
+					i = close + 1;
+				}
+				else
+				{	int number = replacement.charAt(i) - '0';
+					if( number < 0 || number > 9 )
+					{	parts.add( new Malformed("Illegal group reference") );
+						break;
+					}
+
+					// Take as many digits as form a valid group number.
+					while( ++i < length )
+					{	int digit = replacement.charAt(i) - '0';
+						if( digit < 0 || digit > 9 || number * 10 + digit > groupCount )
+							break;
+						number = number * 10 + digit;
+					}
+					parts.add( new Group(number) );
+				}
+			}
+		}
+		flush( literal, parts );
+
+		this.parts		  = parts.toArray( new Part[parts.size()] );
+		this.hasVariables = variable;
+	}
+
+	/** If the text at position i is a %(name) variable, return the name, otherwise return null. */
+	private static String variableAt( String replacement, int i )
+	{
+		if( !replacement.startsWith("%(", i) )
+			return null;
+
+		for( String name : variables )
+			if( replacement.startsWith(name, i + 2) && replacement.startsWith(")", i + 2 + name.length()) )
+				return name;
+		return null;
+	}
+
+	private static void flush( StringBuilder literal, List<Part> parts )
+	{	if( literal.length() > 0 )
+		{	parts.add( new Literal(literal.toString()) );
+			literal.setLength( 0 );
+		}
+	}
+
+	//----------------------------------------------------------------------
+	/** True if the template uses any date/time variables, in which case you have to pass
+	 *  a Calendar to {@link #append(MatchResult, CharSequence, Calendar, StringBuilder)}.
+	 */
+	boolean hasVariables()
+	{	return hasVariables;
+	}
+
+	/** If the replacement is just literal text (no group references or variables),
+	 *  return it, otherwise return null.
+	 */
+	String constant()
+	{
+		StringBuilder text = new StringBuilder();
+		for( Part part : parts )
+		{	if( !(part instanceof Literal) )
+				return null;
+			text.append( ((Literal)part).text );
+		}
+		return text.toString();
+	}
+
+	/** Append the replacement for the current match to the output.
+	 *  @param input the text that m is matching.
+	 *  @param now the time used to expand the date/time variables. May be null if
+	 *  			{@link #hasVariables()} is false.
+	 */
+	void append( MatchResult m, CharSequence input, Calendar now, StringBuilder output )
+	{	for( Part part : parts )
+			part.append( m, input, now, output );
+	}
+}
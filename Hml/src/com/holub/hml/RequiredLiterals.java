@@ -0,0 +1,457 @@
+package com.holub.hml;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/** Works out, from the source of a regular expression, a set of literal strings
+ *  such that every match of the expression contains at least one of them.
+ *  For example, every match of <code>\[(tm|TM)\]</code> contains either
+ *  <code>[tm]</code> or <code>[TM]</code>, and every match of
+ *  <code>(?&lt;=[a-zA-Z])---(?=[a-zA-Z])</code> contains <code>---</code>.
+ *  If a string contains none of the literals, the expression can't possibly match it,
+ *  so there's no need to run the expression. (The converse isn't true: finding
+ *  one of the literals doesn't mean that the expression will match.)
+ *  <p>
+ *  The analysis is conservative. It understands literal characters, escapes, small
+ *  character classes, groups, alternation, quantifiers, anchors, and lookaround.
+ *  If it runs into anything else (inline flags, case-insensitive matching, back
+ *  references, and so forth), or if an expression could match without consuming
+ *  any literal text at all (e.g. <code>\s+</code>), {@link #of(Pattern)} returns
+ *  null, which means "always run this expression."
+ *  <p>
+ *  {@link #exactly(Pattern)} does a stricter analysis: it returns the complete set of
+ *  strings that an expression can match, provided that the expression is nothing but
+ *  literal text (perhaps with alternation and small character classes, like
+ *  <code>\([cC]\)</code>), so that matching it is really just a string search.
+ *
+ * @author allen
+ */
+
+final class RequiredLiterals
+{
+	/** The largest set of alternatives that we'll track. Larger sets are dropped. */
+	private static final int MAX_ALTERNATIVES = 16;
+
+	/** Character classes that have more than this many members are treated like "." */
+	private static final int MAX_CLASS_SIZE = 4;
+
+	/** Thrown internally when the expression uses something we don't understand. */
+	private static class Unsupported extends Exception
+	{	private static final long serialVersionUID = 1L;
+	}
+
+	/** What we know about a fragment of an expression.
+	 *  <ul>
+	 *  <li>exact: every string that the fragment can match (null if we don't know them all,
+	 *  	or there are too many of them). A zero-width fragment is exactly {""}.</li>
+	 *  <li>required: every match of the fragment contains one of these (null if there's
+	 *  	no such set).</li>
+	 *  </ul>
+	 */
+	private static class Info
+	{	final Set<String> exact;
+		final Set<String> required;
+
+		Info( Set<String> exact, Set<String> required )
+		{	this.exact	  = exact;
+			this.required = required;
+		}
+	}
+
+	private static final Info UNKNOWN	 = new Info( null, null );
+	private static final Info ZERO_WIDTH = new Info( set(""), null );
+
+	private final String source;
+	private int			 position = 0;
+
+	/** Set if the expression uses anchors, word boundaries, or lookaround. */
+	private boolean		 zeroWidth = false;
+
+	private RequiredLiterals( String source )
+	{	this.source = source;
+	}
+
+	//----------------------------------------------------------------------
+	/** Return the literals, at least one of which must appear in any string that the
+	 *  pattern matches, or null if there's no such set of literals (or we can't tell).
+	 */
+	static String[] of( Pattern pattern )
+	{
+		int flags = pattern.flags();
+		if( (flags & (Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.COMMENTS | Pattern.CANON_EQ)) != 0 )
+			return null;
+
+		if( (flags & Pattern.LITERAL) != 0 )
+			return pattern.pattern().length() == 0 ? null : new String[]{ pattern.pattern() };
+
+		try
+		{
+			RequiredLiterals parser = new RequiredLiterals( pattern.pattern() );
+			Info info = parser.alternation();
+			if( parser.position != parser.source.length() )		// unbalanced parenthesis.
+				return null;
+
+			Set<String> best = best( info.required, info.exact );
+			return best == null ? null : best.toArray( new String[best.size()] );
+		}
+		catch( Unsupported e )
+		{	return null;
+		}
+	}
+
+	//----------------------------------------------------------------------
+	/** Return every string that the pattern can match, or null if it can match
+	 *  strings we don't know about, if there are more than a handful of them, if it could
+	 *  match an empty string, or if whether it matches depends on context (anchors,
+	 *  word boundaries, lookaround). Flags that don't affect literal text (MULTILINE,
+	 *  DOTALL, UNIX_LINES) are allowed, others aren't.
+	 */
+	static String[] exactly( Pattern pattern )
+	{
+		if( (pattern.flags() & ~(Pattern.MULTILINE | Pattern.DOTALL | Pattern.UNIX_LINES)) != 0 )
+			return null;
+
+		try
+		{
+			RequiredLiterals parser = new RequiredLiterals( pattern.pattern() );
+			Info info = parser.alternation();
+			if( parser.position != parser.source.length() || parser.zeroWidth
+											|| info.exact == null || info.exact.contains("") )
+				return null;
+
+			return info.exact.toArray( new String[info.exact.size()] );
+		}
+		catch( Unsupported e )
+		{	return null;
+		}
+	}
+
+	//----------------------------------------------------------------------
+	// Recursive-descent parser for the expression:
+	//
+	// alternation	: sequence ( '|' sequence )*
+	// sequence		: ( atom quantifier? )*
+	//----------------------------------------------------------------------
+
+	private Info alternation() throws Unsupported
+	{
+		Info		first	 = sequence();
+		Set<String> exact	 = first.exact;
+		Set<String> required = best( first.required, first.exact );
+
+		while( position < source.length() && source.charAt(position) == '|' )
+		{
+			++position;
+			Info next = sequence();
+			exact	 = union( exact, next.exact );
+			required = union( required, best(next.required, next.exact) );
+		}
+		return new Info( exact, required );
+	}
+
+	private Info sequence() throws Unsupported
+	{
+		Set<String> current		= set("");	// exact strings matched by the atoms since the last break.
+		boolean		allExact	= true;
+		Set<String> best		= null;
+
+		while( position < source.length() && source.charAt(position) != '|' && source.charAt(position) != ')' )
+		{
+			Info atom = quantified( atom() );
+
+			Set<String> product = (atom.exact == null) ? null : product( current, atom.exact );
+			if( product != null )
+				current = product;
+			else
+			{	allExact = false;
+				best	 = best( best, current );
+				best	 = best( best, atom.required );
+				best	 = best( best, atom.exact );
+				current	 = set("");
+			}
+		}
+
+		best = best( best, current );
+		return new Info( allExact ? current : null, best );
+	}
+
+	/** Apply the quantifier (if any) that follows the atom. */
+	private Info quantified( Info atom ) throws Unsupported
+	{
+		if( position >= source.length() )
+			return atom;
+
+		int minimum;
+		switch( source.charAt(position) )
+		{
+		case '?':
+		case '*':	++position;	minimum = 0;			break;
+		case '+':	++position;	minimum = 1;			break;
+		case '{':	minimum = repetition();				break;
+		default:	return atom;
+		}
+
+		if( position < source.length() && (source.charAt(position) == '?' || source.charAt(position) == '+') )
+			++position;		// reluctant or possessive
+
+		if( minimum == 0 )
+			return UNKNOWN;
+
+		return new Info( null, best(atom.required, atom.exact) );
+	}
+
+	/** Parse {n}, {n,}, or {n,m} and return n. */
+	private int repetition() throws Unsupported
+	{
+		int close = source.indexOf( '}', position );
+		if( close < 0 )
+			throw new Unsupported();
+
+		String body = source.substring( position + 1, close );
+		position = close + 1;
+
+		int comma = body.indexOf(',');
+		try
+		{	return Integer.parseInt( (comma < 0 ? body : body.substring(0, comma)).trim() );
+		}
+		catch( NumberFormatException e )
+		{	throw new Unsupported();
+		}
+	}
+
+	private Info atom() throws Unsupported
+	{
+		char c = source.charAt( position++ );
+		switch( c )
+		{
+		case '.':	return UNKNOWN;
+		case '^':
+		case '$':	zeroWidth = true;
+					return ZERO_WIDTH;
+		case '[':	return characterClass();
+		case '(':	return group();
+		case '\\':	return escape();
+		case '*':
+		case '+':
+		case '?':
+		case '{':	throw new Unsupported();		// dangling quantifier
+		default:	return literal( c );
+		}
+	}
+
+	private Info group() throws Unsupported
+	{
+		boolean lookaround = false;
+
+		if( source.startsWith("?", position) )
+		{
+			if( source.startsWith("?:", position) || source.startsWith("?>", position) )
+				position += 2;
+			else if( source.startsWith("?=", position) || source.startsWith("?!", position) )
+			{	position += 2;
+				lookaround = true;
+			}
+			else if( source.startsWith("?<=", position) || source.startsWith("?<!", position) )
+			{	position += 3;
+				lookaround = true;
+			}
+			else if( source.startsWith("?<", position) )			// named group
+			{	int close = source.indexOf( '>', position );
+				if( close < 0 )
+					throw new Unsupported();
+				position = close + 1;
+			}
+			else
+				throw new Unsupported();							// inline flags
+		}
+
+		Info contents = alternation();
+		if( position >= source.length() || source.charAt(position) != ')' )
+			throw new Unsupported();
+		++position;
+
+		if( lookaround )
+		{	this.zeroWidth = true;
+			return ZERO_WIDTH;
+		}
+		return contents;
+	}
+
+	private Info escape() throws Unsupported
+	{
+		if( position >= source.length() )
+			throw new Unsupported();
+
+		char c = source.charAt( position++ );
+		switch( c )
+		{
+		case 't':	return literal( '\t' );
+		case 'n':	return literal( '\n' );
+		case 'r':	return literal( '\r' );
+		case 'f':	return literal( '\f' );
+		case 'a':	return literal( '\u0007' );
+		case 'e':	return literal( '\u001B' );
+
+		case 'b': case 'B': case 'A': case 'z': case 'Z': case 'G':
+			zeroWidth = true;
+			return ZERO_WIDTH;
+
+		case 'd': case 'D': case 'w': case 'W': case 's': case 'S':
+		case 'h': case 'H': case 'v': case 'V': case 'R': case 'X':
+			return UNKNOWN;
+
+		case 'p': case 'P':
+			if( source.startsWith("{", position) )
+			{	int close = source.indexOf( '}', position );
+				if( close < 0 )
+					throw new Unsupported();
+				position = close + 1;
+			}
+			else
+				++position;
+			return UNKNOWN;
+
+		case 'Q':
+		{	int end = source.indexOf( "\\E", position );
+			if( end < 0 )
+				end = source.length();
+			String quoted = source.substring( position, end );
+			position = Math.min( source.length(), end + 2 );
+			return new Info( set(quoted), null );
+		}
+
+		default:
+			if( Character.isLetterOrDigit(c) )		// back references, hex, octal, and unicode escapes, and so forth.
+				throw new Unsupported();
+			return literal( c );
+		}
+	}
+
+	/** Handles simple classes like [rR] and [-+]. Anything with more than a few
+	 *  members, or with nested classes, intersections, escapes other than
+	 *  simple quoted characters, ranges that start with an escape, or negation,
+	 *  is treated like ".".
+	 */
+	private Info characterClass() throws Unsupported
+	{
+		int close = position;
+		if( close < source.length() && source.charAt(close) == '^' )
+			++close;
+		if( close < source.length() && source.charAt(close) == ']' )	// ] first in the class is a literal
+			++close;
+		boolean nested = false;
+		for( int depth = 0; close < source.length(); )		// find the ] that matches the opening [
+		{	char c = source.charAt(close);
+			if( c == ']' && --depth < 0 )
+				break;
+			if( c == '[' )
+			{	++depth;
+				nested = true;
+			}
+			if( c == '\\' && source.startsWith("Q", close + 1) )	// \Q...\E quotes everything up to the \E
+			{	int end = source.indexOf( "\\E", close + 2 );
+				close = (end < 0) ? source.length() : end + 2;
+			}
+			else
+				close += (c == '\\') ? 2 : 1;
+		}
+
+		if( close >= source.length() )
+			throw new Unsupported();
+
+		String body = source.substring( position, close );
+		position = close + 1;
+
+		if( nested || body.startsWith("^") || body.contains("&&") || body.contains("\\Q") )
+			return UNKNOWN;
+
+		Set<String> members = new LinkedHashSet<String>();
+		for( int i = 0; i < body.length(); ++i )
+		{
+			char c = body.charAt(i);
+			if( c == '\\' )
+			{	if( ++i >= body.length() || Character.isLetterOrDigit(body.charAt(i)) )
+					return UNKNOWN;
+				if( i + 1 < body.length() && body.charAt(i + 1) == '-' )	// a range that starts with an escape (e.g. [\.-z])
+					return UNKNOWN;
+				c = body.charAt(i);
+			}
+			else if( i + 2 < body.length() && body.charAt(i + 1) == '-' )	// range
+			{	char last = body.charAt(i + 2);
+				if( last == '\\' || last - c + 1 > MAX_CLASS_SIZE )
+					return UNKNOWN;
+				for( char member = c; member <= last; ++member )
+					members.add( String.valueOf(member) );
+				i += 2;
+				continue;
+			}
+			members.add( String.valueOf(c) );
+		}
+
+		return (members.isEmpty() || members.size() > MAX_CLASS_SIZE) ? UNKNOWN : new Info( members, null );
+	}
+
+	private static Info literal( char c )
+	{	return new Info( set(String.valueOf(c)), null );
+	}
+
+	//----------------------------------------------------------------------
+	// Set operations. A null set means "unknown" or "too big."
+	//----------------------------------------------------------------------
+
+	private static Set<String> set( String s )
+	{	Set<String> result = new LinkedHashSet<String>();
+		result.add( s );
+		return result;
+	}
+
+	private static Set<String> union( Set<String> a, Set<String> b )
+	{
+		if( a == null || b == null )
+			return null;
+
+		Set<String> result = new LinkedHashSet<String>( a );
+		result.addAll( b );
+		return result.size() > MAX_ALTERNATIVES ? null : result;
+	}
+
+	private static Set<String> product( Set<String> a, Set<String> b )
+	{
+		if( a.size() * b.size() > MAX_ALTERNATIVES )
+			return null;
+
+		Set<String> result = new LinkedHashSet<String>();
+		for( String prefix : a )
+			for( String suffix : b )
+				result.add( prefix + suffix );
+		return result;
+	}
+
+	/** Return the more selective of the two sets: the one whose shortest member is longest.
+	 *  A set that contains an empty string is useless (everything contains an empty string),
+	 *  so it's treated as null.
+	 */
+	private static Set<String> best( Set<String> a, Set<String> b )
+	{
+		int aLength = shortest(a);
+		int bLength = shortest(b);
+
+		if( aLength == 0 && bLength == 0 )
+			return null;
+		if( aLength != bLength )
+			return aLength > bLength ? a : b;
+		return a.size() <= b.size() ? a : b;
+	}
+
+	private static int shortest( Set<String> s )
+	{
+		if( s == null || s.isEmpty() )
+			return 0;
+
+		int shortest = Integer.MAX_VALUE;
+		for( String member : s )
+			shortest = Math.min( shortest, member.length() );
+		return shortest;
+	}
+}
@@ -0,0 +1,247 @@
+package com.holub.hml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.holub.hml.Filter.BlockType;
+import com.holub.util.ExtendedLogger;
+
+/** An on-disk cache of macro-expanded text segments, which persists from one run
+ *  to the next. Documents usually change a paragraph at a time, so most of the
+ *  segments in a document come out of the cache when it's rebuilt.
+ *  <p>
+ *  The cache is content addressed: an entry's key is a hash of the
+ *  {@linkplain Macro.DefinitionSet#fingerprint() fingerprint} of the macros that expanded
+ *  the segment, the segment's block type, and the segment's contents, and the entry
+ *  is stored in a file whose name is the key. Changing the macros (by editing hml.macros,
+ *  say, or adding a &lt;macro&gt; element) changes the fingerprint, so the old entries
+ *  are never found again. They're evicted, along with everything else that hasn't been
+ *  used recently, once the cache grows past its maximum size. The time of last use is the
+ *  file's modification time, so the eviction order survives from run to run.
+ *  <p>
+ *  Problems reading or writing the cache are logged and otherwise ignored:
+ *  the segment is just expanded as if the cache wasn't there.
+ *  The cache can be shared by several threads, and (because files are written
+ *  under a temporary name and then renamed) by several processes, though each
+ *  process enforces the size limit only on the entries that it knows about.
+ *  <p>
+ *  Install a cache with {@link HmlEngine#useSegmentCache(SegmentCache)} or
+ *  {@link Hml#useSegmentCache(SegmentCache)} (or with the --macro-cache
+ *  command-line argument). One cache can be shared by several engines.
+ *
+ * @author allen
+ */
+
+public final class SegmentCache
+{
+	private static final ExtendedLogger log = ExtendedLogger.getLogger(SegmentCache.class);
+
+	/** The default maximum size of the cache, in bytes. */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/** Segments shorter than this aren't worth a trip to the disk. */
+	static final int MIN_SEGMENT = 256;
+
+	/** Part of every key. Change it if the format of the entries changes. */
+	private static final String VERSION = "1";
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private final File	directory;
+	private final long	maxBytes;
+	private long		totalBytes = 0;
+
+	/** Entry sizes, keyed by file name, least recently used first. */
+	private final LinkedHashMap<String,Long> entries = new LinkedHashMap<String,Long>( 1024, 0.75f, true );
+
+	private int hits	= 0;
+	private int misses	= 0;
+
+	/** Use (or create) the cache in the indicated directory, which can hold at most maxBytes of entries. */
+	public SegmentCache( File directory, long maxBytes ) throws IOException
+	{
+		if( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Can't create cache directory " + directory );
+
+		this.directory = directory;
+		this.maxBytes  = maxBytes;
+
+		File[] files = directory.listFiles();
+		if( files == null )
+			throw new IOException( "Can't read cache directory " + directory );
+
+		Arrays.sort( files, new Comparator<File>()
+			{	@Override public int compare( File a, File b )
+				{	return Long.compare( a.lastModified(), b.lastModified() );
+				}
+			} );
+
+		for( File file : files )
+			if( isEntry(file.getName()) )
+			{	entries.put( file.getName(), file.length() );
+				totalBytes += file.length();
+			}
+		evict();
+	}
+
+	private static boolean isEntry( String name )
+	{	return name.length() == 64 && name.matches( "[0-9a-f]+" );
+	}
+
+	//----------------------------------------------------------------------
+	/** Return the key for the segment. */
+	static String key( String fingerprint, BlockType type, CharSequence segment )
+	{
+		MessageDigest digest = sha256();
+		digest.update( (VERSION + '/' + fingerprint + '/' + type + '/').getBytes(UTF8) );
+		digest.update( segment.toString().getBytes(UTF8) );
+		return hex( digest.digest() );
+	}
+
+	static MessageDigest sha256()
+	{	try
+		{	return MessageDigest.getInstance( "SHA-256" );
+		}
+		catch( NoSuchAlgorithmException e )		// every JVM is required to have it.
+		{	throw new IllegalStateException( e );
+		}
+	}
+
+	static String hex( byte[] bytes )
+	{	StringBuilder b = new StringBuilder( bytes.length * 2 );
+		for( byte value : bytes )
+			b.append( Character.forDigit((value >> 4) & 0xf, 16) ).append( Character.forDigit(value & 0xf, 16) );
+		return b.toString();
+	}
+
+	//----------------------------------------------------------------------
+	/** Return the expanded segment stored under the key, or null if there isn't one. */
+	String get( String key )
+	{
+		synchronized( this )
+		{	if( entries.get(key) == null )		// (get() also marks the entry as recently used)
+			{	++misses;
+				return null;
+			}
+		}
+
+		File file = new File( directory, key );
+		try
+		{	String expanded = new String( read(file), UTF8 );
+			file.setLastModified( System.currentTimeMillis() );
+			synchronized( this )
+			{	++hits;
+			}
+			return expanded;
+		}
+		catch( IOException e )				// probably evicted by another process
+		{	synchronized( this )
+			{	++misses;
+				remove( key );
+			}
+			return null;
+		}
+	}
+
+	/** Store the expanded segment under the key, evicting the least-recently-used entries if necessary. */
+	void put( String key, String expanded )
+	{
+		byte[] bytes = expanded.getBytes( UTF8 );
+		File   file	 = new File( directory, key );
+		File   temporary = null;
+		try
+		{	temporary = File.createTempFile( "segment", ".tmp", directory );
+			OutputStream out = new FileOutputStream( temporary );
+			try
+			{	out.write( bytes );
+			}
+			finally
+			{	out.close();
+			}
+
+			if( !temporary.renameTo(file) )	// someone else stored it first (e.g. on Windows,
+			{	if( !temporary.delete() )		// where you can't rename over an existing file).
+					log.warn( "Couldn't delete temporary file %s", temporary.getPath() );
+				return;
+			}
+		}
+		catch( IOException e )
+		{	log.warn( "Couldn't write macro-cache entry %s: %s", file.getPath(), e.getMessage() );
+			if( temporary != null )
+				temporary.delete();
+			return;
+		}
+
+		synchronized( this )
+		{	remove( key );
+			entries.put( key, (long)bytes.length );
+			totalBytes += bytes.length;
+			evict();
+		}
+	}
+
+	/** The number of calls to {@link #get(String)} that found (and didn't find) an entry. */
+	public synchronized int hits()	 { return hits;	  }
+	public synchronized int misses() { return misses; }
+
+	/** The total size of the entries, in bytes. */
+	public synchronized long size()
+	{	return totalBytes;
+	}
+
+	@Override public synchronized String toString()
+	{	return String.format( "Macro cache %s: %d entries, %d bytes, %d hits, %d misses",
+											directory, entries.size(), totalBytes, hits, misses );
+	}
+
+	//----------------------------------------------------------------------
+	private void remove( String key )
+	{	Long size = entries.remove( key );
+		if( size != null )
+			totalBytes -= size;
+	}
+
+	/** Delete the least-recently-used entries until the cache fits. Must be called while synchronized. */
+	private void evict()
+	{
+		for( Iterator<Map.Entry<String,Long>> i = entries.entrySet().iterator(); totalBytes > maxBytes && i.hasNext(); )
+		{
+			Map.Entry<String,Long> eldest = i.next();
+			File file = new File( directory, eldest.getKey() );
+			if( !file.delete() && file.exists() )
+				log.warn( "Couldn't evict macro-cache entry %s", file.getPath() );
+
+			totalBytes -= eldest.getValue();
+			i.remove();
+		}
+	}
+
+	private static byte[] read( File file ) throws IOException
+	{
+		InputStream in = new FileInputStream( file );
+		try
+		{	byte[] bytes = new byte[ (int)file.length() ];
+			int	   got	 = 0;
+			for( int n; got < bytes.length && (n = in.read(bytes, got, bytes.length - got)) > 0; )
+				got += n;
+			if( got != bytes.length )
+				throw new IOException( "Short read" );
+			return bytes;
+		}
+		finally
+		{	in.close();
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package com.holub.hml;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.holub.hml.Filter.BlockType;
+import com.holub.text.Text;
+
+/** Timing and throughput statistics for documents, passes, and filters.
+ *  Nothing is collected unless a Stats object is handed to the processor
+ *  (see {@link HmlEngine#HmlEngine(Stats)} and the --stats command-line
+ *  option), and the cost of collecting is a couple of calls to
+ *  {@link System#nanoTime()} and one copy of the segment per filter call.
+ *  <p>
+ *  A Stats object can be shared by any number of documents, processed on
+ *  any number of threads, and it can be published through JMX with
+ *  {@link #register(String)}.
+ *  <p>
+ *  For each pass, we record the number of times it ran, the number of times it was
+ *  skipped because it had nothing to do, the time it took, and the size of the
+ *  document going in and coming out. For each filter, we record the number of
+ *  segments it processed, how many of those it actually changed, the time
+ *  it took, and the number of characters going in and coming out.
+ *  <p>
+ *  Macros can be profiled individually, too, but since that costs a little more,
+ *  it's off unless you turn it on with {@link #setProfilingMacros(boolean)}
+ *  (or the --profile-macros command-line option). For each macro, we record the
+ *  number of segments it was run on, the number of segments it was skipped for
+ *  because it couldn't possibly match, the number of matches, the time, the
+ *  number of characters it matched, and the number of characters it put in their
+ *  place. Macros are identified by where they were defined (e.g. hml.macros:203).
+ *
+ * @author allen
+ */
+
+public class Stats implements StatsMXBean
+{
+	/** A set of counters for one pass or filter. */
+	private static class Counter
+	{
+		final String		name;
+		final AtomicLong	calls	= new AtomicLong();
+		final AtomicLong	skipped	= new AtomicLong();	// passes and macros only
+		final AtomicLong	changed	= new AtomicLong();	// filters only (for macros, the number of matches)
+		final AtomicLong	nanos	= new AtomicLong();
+		final AtomicLong	in		= new AtomicLong();
+		final AtomicLong	out		= new AtomicLong();
+
+		Counter( String name )
+		{	this.name = name;
+		}
+	}
+
+	private final AtomicLong documents		= new AtomicLong();
+	private final AtomicLong documentNanos	= new AtomicLong();
+
+	private final ConcurrentMap<String,  Counter> passes  = new ConcurrentHashMap<String,  Counter>();
+	private final ConcurrentMap<Class<?>,Counter> filters = new ConcurrentHashMap<Class<?>,Counter>();
+	private final ConcurrentMap<String,  Counter> macros  = new ConcurrentHashMap<String,  Counter>();
+
+	private volatile boolean profilingMacros = false;
+
+	//----------------------------------------------------------------------
+	void recordDocument( long nanos )
+	{	documents.incrementAndGet();
+		documentNanos.addAndGet( nanos );
+	}
+
+	void recordPass( String name, long nanos, int charactersIn, int charactersOut )
+	{	Counter c = pass(name);
+		c.calls.incrementAndGet();
+		c.nanos.addAndGet( nanos );
+		c.in   .addAndGet( charactersIn  );
+		c.out  .addAndGet( charactersOut );
+	}
+
+	void recordSkippedPass( String name )
+	{	pass(name).skipped.incrementAndGet();
+	}
+
+	void recordFilter( Filter filter, long nanos, int charactersIn, int charactersOut, boolean changed )
+	{	Counter c = filter(filter);
+		c.calls.incrementAndGet();
+		c.nanos.addAndGet( nanos );
+		c.in   .addAndGet( charactersIn  );
+		c.out  .addAndGet( charactersOut );
+		if( changed )
+			c.changed.incrementAndGet();
+	}
+
+	/** Record one run of a macro (or of a fused run of literal macros) on one segment.
+	 *  @param label identifies the macro. Labels are built once, when the macro is loaded,
+	 *  		so that we don't have to build a string on every call.
+	 */
+	void recordMacro( BlockType type, String label, long nanos, int matches, int charactersMatched, int charactersInserted )
+	{	Counter c = macro( type, label );
+		c.calls	 .incrementAndGet();
+		c.nanos	 .addAndGet( nanos );
+		c.changed.addAndGet( matches );
+		c.in	 .addAndGet( charactersMatched	);
+		c.out	 .addAndGet( charactersInserted );
+	}
+
+	/** Record that a macro wasn't run on a segment because it couldn't possibly match. */
+	void recordSkippedMacro( BlockType type, String label )
+	{	macro( type, label ).skipped.incrementAndGet();
+	}
+
+	private Counter pass( String name )
+	{	Counter c = passes.get(name);
+		if( c == null )
+		{	Counter existing = passes.putIfAbsent( name, c = new Counter(name) );
+			if( existing != null )
+				c = existing;
+		}
+		return c;
+	}
+
+	/** Filters are looked up by class so that a name doesn't have to be built on every call. */
+	private Counter filter( Filter filter )
+	{	Class<?> key = filter.getClass();
+		Counter  c   = filters.get(key);
+		if( c == null )
+		{	String name = key.getName().substring( key.getName().lastIndexOf('.') + 1 );
+			Counter existing = filters.putIfAbsent( key, c = new Counter(name) );
+			if( existing != null )
+				c = existing;
+		}
+		return c;
+	}
+
+	private Counter macro( BlockType type, String label )
+	{	Counter c = macros.get(label);
+		if( c == null )
+		{	Counter existing = macros.putIfAbsent( label, c = new Counter(type.toString() + " " + label) );
+			if( existing != null )
+				c = existing;
+		}
+		return c;
+	}
+
+	//----------------------------------------------------------------------
+	// StatsMXBean
+	//----------------------------------------------------------------------
+	@Override public long getDocuments()	{ return documents.get(); 					}
+	@Override public long getTotalMillis()	{ return documentNanos.get() / 1000000;	}
+
+	@Override public Map<String,Long> getPassMillis()
+	{	Map<String,Long> result = new TreeMap<String,Long>();
+		for( Counter c : passes.values() )
+			result.put( c.name, c.nanos.get() / 1000000 );
+		return result;
+	}
+
+	@Override public Map<String,Long> getFilterMillis()
+	{	Map<String,Long> result = new TreeMap<String,Long>();
+		for( Counter c : filters.values() )
+			result.put( c.name, c.nanos.get() / 1000000 );
+		return result;
+	}
+
+	@Override public Map<String,Long> getMacroMillis()
+	{	Map<String,Long> result = new TreeMap<String,Long>();
+		for( Counter c : macros.values() )
+			result.put( c.name, c.nanos.get() / 1000000 );
+		return result;
+	}
+
+	@Override public boolean isProfilingMacros()
+	{	return profilingMacros;
+	}
+
+	@Override public void setProfilingMacros( boolean on )
+	{	profilingMacros = on;
+	}
+
+	@Override public void reset()
+	{	documents.set(0);
+		documentNanos.set(0);
+		passes.clear();
+		filters.clear();
+		macros.clear();
+	}
+
+	@Override public String getReport()
+	{	return toString();
+	}
+
+	/** Register this object with the platform MBean server under the name
+	 *  com.holub.hml:type=Stats,name=<em>name</em>.
+	 */
+	public void register( String name ) throws JMException
+	{	ManagementFactory.getPlatformMBeanServer().registerMBean( this, new ObjectName("com.holub.hml:type=Stats,name=" + name) );
+	}
+
+	//----------------------------------------------------------------------
+	/** Return a formatted report, with passes, filters, and macros sorted by total time (slowest first). */
+	@Override public String toString()
+	{
+		Text report = new Text();
+		report.appendf( "%d documents, %.1f ms\n\n", documents.get(), documentNanos.get() / 1e6 );
+
+		report.appendf( "%-50s %8s %8s %10s %12s %12s\n", "Pass", "runs", "skipped", "ms", "chars in", "chars out" );
+		for( Counter c : sortedByTime(passes.values()) )
+			report.appendf( "%-50s %8d %8d %10.1f %12d %12d\n",
+								c.name, c.calls.get(), c.skipped.get(), c.nanos.get() / 1e6, c.in.get(), c.out.get() );
+
+		report.appendf( "\n%-50s %8s %8s %10s %12s %12s\n", "Filter", "segments", "changed", "ms", "chars in", "chars out" );
+		for( Counter c : sortedByTime(filters.values()) )
+			report.appendf( "%-50s %8d %8d %10.1f %12d %12d\n",
+								c.name, c.calls.get(), c.changed.get(), c.nanos.get() / 1e6, c.in.get(), c.out.get() );
+
+		if( !macros.isEmpty() )
+		{	report.appendf( "\n%-50s %8s %8s %8s %10s %12s %12s\n", "Macro", "segments", "skipped", "matches", "ms", "chars in", "chars out" );
+			for( Counter c : sortedByTime(macros.values()) )
+				report.appendf( "%-50s %8d %8d %8d %10.1f %12d %12d\n",
+								c.name, c.calls.get(), c.skipped.get(), c.changed.get(), c.nanos.get() / 1e6, c.in.get(), c.out.get() );
+		}
+
+		return report.toString();
+	}
+
+	private static List<Counter> sortedByTime( Collection<Counter> counters )
+	{	List<Counter> sorted = new ArrayList<Counter>( counters );
+		Collections.sort( sorted, new Comparator<Counter>()
+			{	@Override public int compare( Counter a, Counter b )
+				{	long difference = b.nanos.get() - a.nanos.get();
+					return difference < 0 ? -1 : difference > 0 ? 1 : a.name.compareTo(b.name);
+				}
+			});
+		return sorted;
+	}
+}
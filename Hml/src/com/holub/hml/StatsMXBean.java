@@ -0,0 +1,41 @@
+package com.holub.hml;
+
+import java.util.Map;
+
+/** The JMX view of a {@link Stats} object. Register a Stats object
+ *  with {@link Stats#register(String)}.
+ *
+ * @author allen
+ */
+
+public interface StatsMXBean
+{
+	/** The number of documents processed. */
+	long getDocuments();
+
+	/** The total time spent processing documents, in milliseconds. */
+	long getTotalMillis();
+
+	/** Total time spent in each pass, in milliseconds, keyed by pass name. */
+	Map<String,Long> getPassMillis();
+
+	/** Total time spent in each filter, in milliseconds, keyed by filter name. */
+	Map<String,Long> getFilterMillis();
+
+	/** Total time spent in each macro, in milliseconds, keyed by type and the place
+	 *  where the macro was defined. Empty unless macros are being profiled.
+	 */
+	Map<String,Long> getMacroMillis();
+
+	/** True if individual macros are being profiled. */
+	boolean isProfilingMacros();
+
+	/** Turn macro profiling on or off. */
+	void setProfilingMacros( boolean on );
+
+	/** A formatted report of everything that's been collected. */
+	String getReport();
+
+	/** Discard everything that's been collected so far. */
+	void reset();
+}
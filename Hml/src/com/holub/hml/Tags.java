@@ -2,6 +2,7 @@ package com.holub.hml;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -255,21 +256,18 @@ public class Tags implements Filter
 	
 	public static Text processElement( ReportingStream error, Text input, boolean removeLeadingSpace, String elementName, String defaultClass, Handler handler )
 	{
-		Pattern tag = Pattern.compile(
-			  (removeLeadingSpace ? "\\s*" : "")
-			+ "<\\s*(" + elementName + ")"							// Group 1: tag name
-			+ "((?:\\s*[a-zA-Z_-]+\\s*=\\s*[\"'][^\"']*[\"'])*)"	// Group 2: all attributes
-			+ "\\s*>"												//			end tag.
-			+ "(.*?)"												// Group 3: body of element
-			+ "<\\s*/("+ elementName +")\\s*>",						// Group 4: tag name in closing element
-			Pattern.MULTILINE | Pattern.DOTALL );
+		Pattern tag = elementPattern( removeLeadingSpace, elementName );
 		
 		Text processedText = new Text();
 		
 		int end   = 0 ;	// index of the end of the most-recent search.
 		int start = 0;	// index of the start of the most recent search
 		
-		Matcher element = tag.matcher(input);
+		// The context is passed to every handler call. Converting it to a string once, here,
+		// rather than once per element keeps the work linear in the number of elements.
+		//
+		String	context = input.toString();
+		Matcher element = tag.matcher(context);
 		while( element.find() )
 		{
 			String  startTag  = ( element.group(1) );
@@ -287,13 +285,38 @@ public class Tags implements Filter
 			Map<String,String> parsedArguments = new HashMap<String,String>();
 			Util.getArguments( arguments, parsedArguments, defaultClass );
 			
-			processedText.append( handler.handle(startTag, parsedArguments, body, input.toString(), element.start()) );
+			processedText.append( handler.handle(startTag, parsedArguments, body, context, element.start()) );
 		}
 		
 		processedText.append( input.substring(end) ); // add everything following the last tag (if there is anything)
 		return processedText;
 	}
 	
+	/** The compiled element patterns, keyed by element name (prefixed with a space if
+	 *  leading space is removed). processElement() is called for every text segment,
+	 *  usually with one of a small number of element names, so it's worth not
+	 *  recompiling the pattern every time.
+	 */
+	private static final Map<String,Pattern> elementPatterns = new ConcurrentHashMap<String,Pattern>();
+	
+	private static Pattern elementPattern( boolean removeLeadingSpace, String elementName )
+	{
+		String  key = (removeLeadingSpace ? " " : "") + elementName;
+		Pattern tag = elementPatterns.get(key);
+		if( tag == null )
+		{	tag = Pattern.compile(
+				  (removeLeadingSpace ? "\\s*" : "")
+				+ "<\\s*(" + elementName + ")"							// Group 1: tag name
+				+ "((?:\\s*[a-zA-Z_-]+\\s*=\\s*[\"'][^\"']*[\"'])*)"	// Group 2: all attributes
+				+ "\\s*>"												//			end tag.
+				+ "(.*?)"												// Group 3: body of element
+				+ "<\\s*/("+ elementName +")\\s*>",						// Group 4: tag name in closing element
+				Pattern.MULTILINE | Pattern.DOTALL );
+			elementPatterns.put( key, tag );
+		}
+		return tag;
+	}
+	
 	/** Convenience method, calls {@link #processElement(Text, boolean, String, String, Handler)} with a {@code false}
 	 *  removeLeadSpace argument.
 	 * @param input
@@ -297,11 +297,15 @@ public class Titles implements Filter
 		return new TocFilter();
 	}
 	
-	private class TocFilter implements Filter
+	private class TocFilter implements Filter.Selective
 	{
 		@Override public boolean isCodeBlockFilter(){ return false; } 
 		@Override public boolean isSnippetFilter()	{ return false; } 
 		@Override public boolean isTextFilter()		{ return true;  }
+		
+		@Override public boolean isNeededFor( CharSequence document )
+		{	return document.toString().contains("toc");
+		}
 		
 		@Override public void filter(Text prefix, Text body, Text suffix, BlockType type)
 		{
@@ -338,12 +342,18 @@ public class Titles implements Filter
 		return new FigureTableListingSectionNoteReference( endNotes );
 	}
 	
-	private class FigureTableListingSectionNoteReference implements Filter
+	private static final Pattern anyReference = Pattern.compile("\\{(?:listing|figure|table|section|note)");
+	
+	private class FigureTableListingSectionNoteReference implements Filter.Selective
 	{
 		@Override public boolean isCodeBlockFilter(){ return true; } 
 		@Override public boolean isSnippetFilter()	{ return false; } 
 		@Override public boolean isTextFilter()		{ return true;  }
 		
+		@Override public boolean isNeededFor( CharSequence document )
+		{	return anyReference.matcher(document).find();
+		}
+		
 		private final NoteSet endNotes;
 		public FigureTableListingSectionNoteReference( NoteSet endNotes )
 		{	this.endNotes = endNotes;
@@ -0,0 +1,106 @@
+package com.holub.hml;
+
+import java.util.Arrays;
+
+import com.holub.hml.Pass.Type;
+
+/** A list of tokens, stored as a packed array of ints (three per token:
+ *  the type's ordinal, the start position, and the end position) rather
+ *  than as a collection of token objects. A large document can have tens
+ *  of thousands of tokens, and relexing a document, or walking through the
+ *  tokens in a pass, doesn't create any garbage when the tokens are
+ *  represented this way.
+ *  <p>
+ *  Tokens are identified by their index in the list. Lists are
+ *  reused by {@link Document} (see {@link #clear()}), so an index is
+ *  only good until the next time the document is modified.
+ *
+ * @author allen
+ */
+
+final class TokenList
+{
+	private static final Type[] types = Type.values();
+
+	private static final int TYPE  = 0;
+	private static final int START = 1;
+	private static final int END   = 2;
+	private static final int SIZE  = 3;	// ints per token
+
+	private int[] tokens;
+	private int	  count = 0;	// number of ints in use (not tokens)
+
+	TokenList()
+	{	this(64);
+	}
+
+	TokenList( int initialCapacity )
+	{	tokens = new int[ Math.max(1,initialCapacity) * SIZE ];
+	}
+
+	/** Add a token to the end of the list. */
+	void add( Type type, int start, int end )
+	{	add( type.ordinal(), start, end );
+	}
+
+	/** Add token i from the other list to the end of this one, shifting it by delta. */
+	void add( TokenList other, int i, int delta )
+	{	i *= SIZE;
+		add( other.tokens[i+TYPE], other.tokens[i+START] + delta, other.tokens[i+END] + delta );
+	}
+
+	private void add( int type, int start, int end )
+	{
+		if( count + SIZE > tokens.length )
+			tokens = Arrays.copyOf( tokens, tokens.length * 2 );
+
+		tokens[count++] = type;
+		tokens[count++] = start;
+		tokens[count++] = end;
+	}
+
+	void clear()
+	{	count = 0;
+	}
+
+	int  size()				{ return count / SIZE; 						}
+	Type type ( int i ) 	{ return types[ tokens[i * SIZE + TYPE] ];	}
+	int  start( int i ) 	{ return tokens[i * SIZE + START];			}
+	int  end  ( int i ) 	{ return tokens[i * SIZE + END];			}
+
+	/** @return true if token i is of the indicated type
+	 */
+	boolean match( int i, Type type )
+	{	return tokens[i * SIZE + TYPE] == type.ordinal();
+	}
+
+	/** Return the index of the last token whose start position is less than
+	 *  position, or -1 if there isn't one.
+	 */
+	int lastStartingBefore( int position )
+	{
+		int low  = 0;
+		int high = size() - 1;
+		while( low <= high )
+		{	int middle = (low + high) >>> 1;
+			if( start(middle) < position )
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return high;
+	}
+
+	/** Return a string representation of token i, suitable for a log message. */
+	String toString( int i )
+	{	return String.format( "%s (%d-%d)", type(i).name(), start(i), end(i) );
+	}
+
+	@Override public String toString()
+	{
+		StringBuilder b = new StringBuilder("[");
+		for( int i = 0; i < size(); ++i )
+			b.append( i == 0 ? "" : ", " ).append( toString(i) );
+		return b.append(']').toString();
+	}
+}
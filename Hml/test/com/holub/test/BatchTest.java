@@ -0,0 +1,111 @@
+package com.holub.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.holub.hml.Batch;
+import com.holub.hml.Hml;
+import com.holub.text.Text;
+
+public class BatchTest
+{
+	private File directory;
+
+	@Before public void setUp() throws IOException
+	{
+		directory = File.createTempFile("hml-batch-", "");
+		directory.delete();
+		assertTrue( directory.mkdir() );
+	}
+
+	@After public void tearDown()
+	{	delete( directory );
+	}
+
+	private static void delete( File file )
+	{	File[] contents = file.listFiles();
+		if( contents != null )
+			for( File f : contents )
+				delete( f );
+		file.delete();
+	}
+
+	private File create( String name, String contents ) throws IOException
+	{	File file = new File( directory, name );
+		file.getParentFile().mkdirs();
+		new Text( contents ).export( file );
+		return file;
+	}
+
+	private static String read( File file ) throws IOException
+	{	FileReader in = new FileReader(file);
+		try
+		{	return new Text(in).toString();
+		}
+		finally
+		{	in.close();
+		}
+	}
+
+	/** Return what the ordinary (non-batch) processor does with the input. */
+	private static String expected( String input )
+	{	StringWriter output = new StringWriter();
+		Hml.processInWebContext( input, output, new StringWriter() );
+		return output.toString();
+	}
+
+	@Test public void directoryTreeIsProcessed() throws IOException
+	{
+		for( int i = 0; i < 20; ++i )
+			create( "sub" + (i % 3) + "/doc" + i + ".hml", "Document *" + i + "*\n" );
+		create( "ignored.txt", "not hml\n" );
+
+		StringWriter report = new StringWriter();
+		int errors = new Batch( report ).processDirectory( directory );
+
+		assertEquals( report.toString(), 0, errors );
+		for( int i = 0; i < 20; ++i )
+			assertEquals( expected("Document *" + i + "*\n"),
+						  read( new File(directory, "sub" + (i % 3) + "/doc" + i + ".html")) );
+
+		assertFalse( new File(directory, "ignored.html").exists() );
+		assertTrue ( report.toString().contains("20 files, 0 errors") );
+	}
+
+	@Test public void manifestIsProcessed() throws IOException
+	{
+		create( "a.hml", "1\n" );
+		create( "b.hml", "2\n" );
+		File manifest = create( "manifest", "# a comment\n\na.hml\nb.hml  out/b-output.html\n" );
+		new File( directory, "out" ).mkdir();
+
+		StringWriter report = new StringWriter();
+		int errors = new Batch( report ).processManifest( manifest );
+
+		assertEquals( report.toString(), 0, errors );
+		assertEquals( expected("1\n"), read(new File(directory, "a.html")) );
+		assertEquals( expected("2\n"), read(new File(directory, "out/b-output.html")) );
+	}
+
+	@Test public void errorsAreAggregated() throws IOException
+	{
+		create( "good.hml", "fine\n" );
+		create( "bad.hml",  "`unterminated snippet\n" );
+		File manifest = create( "manifest", "good.hml\nbad.hml\nmissing.hml\n" );
+
+		StringWriter report = new StringWriter();
+		int errors = new Batch( report ).processManifest( manifest );
+
+		assertTrue( report.toString(), errors >= 2 );	// at least one for bad.hml and one for missing.hml
+		assertTrue( report.toString().contains("good.hml: 0 errors") );
+		assertTrue( report.toString().contains("3 files, " + errors + " errors") );
+	}
+}
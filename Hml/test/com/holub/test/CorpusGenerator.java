@@ -0,0 +1,70 @@
+package com.holub.test;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.holub.text.Text;
+
+/** Builds synthetic HML documents of arbitrary size for the scaling tests.
+ *  A document is made of a number of identical-in-shape sections, each of
+ *  which uses the features that tend to have non-local effects: headings
+ *  with labels, cross references to other sections, index entries,
+ *  end notes, code snippets, listings with marks and references to them,
+ *  comma blocks, and an include. A document with 2N sections is
+ *  (almost exactly) twice as large as one with N sections.
+ *
+ * @author allen
+ */
+
+public class CorpusGenerator
+{
+	private final File include;
+
+	/** @param include a small file that every section includes with &lt;include src=...&gt;. */
+	public CorpusGenerator( File include )
+	{	this.include = include;
+	}
+
+	/** Create a file suitable for passing to the constructor. The caller should delete it when done. */
+	public static File createIncludeFile() throws IOException
+	{	File file = File.createTempFile( "hml-corpus-", ".txt" );
+		new Text( "Included text with a `snippet` in it.\n" ).export( file );
+		return file;
+	}
+
+	/** Generate a document with the indicated number of sections. */
+	public String generate( int sections )
+	{
+		Text document = new Text();
+		for( int i = 0; i < sections; ++i )
+			section( document, i, sections );
+
+		document.append( "<endnotes>\n=/ Notes\n</endnotes>\n" );
+		document.append( "<index>Index</index>\n" );
+		return document.toString();
+	}
+
+	private void section( Text document, int i, int sections )
+	{
+		int previous = (i + sections - 1) % sections;
+
+		document.appendf( "=/ Section %d == section%d\n", i, i );
+		document.appendf( "{index topic %d}\n", i % 50 );
+		document.appendf( "Paragraph %d has *bold*, _italic_, and `snippet%d()` text, and refers to {section section%d}.\n", i, i, previous );
+		document.appendf( "It also has an end note.<note>This is note %d.</note>\n", i );
+		document.appendf( "<index-entry topic=\"entry %d\">entry</index-entry> and more text &amp; an entity.\n", i );
+		document.appendf( "<listing label=\"listing%d\" title='Listing %d'>\n", i, i );
+		document.appendf( "public class Class%d\n", i );
+		document.appendf( "{   private int field%d; // !{=field%d}! the field\n", i, i );
+		document.appendf( "    public void method%d()\n", i );
+		document.appendf( "    {   field%d++;\n", i );
+		document.appendf( "    }\n" );
+		document.appendf( "}\n" );
+		document.appendf( "</listing>\n" );
+		document.appendf( "{listing listing%d} shows {ref field%d} on {line field%d}.\n", i, i, i );
+		document.appendf( ",	int x = %d;\n", i );
+		document.appendf( ",	x += 1;\n" );
+		document.appendf( "<include src='%s'>\n", include.getAbsolutePath() );
+		document.appendf( "\n" );
+	}
+}
@@ -0,0 +1,179 @@
+package com.holub.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.holub.hml.HmlEngine;
+import com.holub.text.Text;
+import com.holub.util.Places;
+
+public class HmlEngineReloadTest
+{
+	private String previousConfig;
+	private File   directory;
+	private long   time;			// the modification time given to the next file that's written.
+
+	private HmlEngine engine;
+
+	@Before public void setUp() throws IOException
+	{
+		directory = File.createTempFile("hml-config-", "");
+		directory.delete();
+		directory.mkdirs();
+
+		time = System.currentTimeMillis() - 1000000;
+		write( "hml.macros", new Text(new File("src/hml.macros")).toString() );
+		write( "hml.head",	 "<!--head 1-->\n" );
+		write( "hml.tail",	 "<!--tail-->\n" );
+
+		previousConfig = System.getProperty( "CONFIG" );
+		System.setProperty( "CONFIG", directory.getPath() );
+		Places.reset();
+
+		engine = new HmlEngine();
+		assertEquals( engine.setupErrors(), 0, engine.setupErrorCount() );
+	}
+
+	@After public void tearDown()
+	{
+		engine.stopReloading();
+
+		if( previousConfig == null )
+			System.clearProperty( "CONFIG" );
+		else
+			System.setProperty( "CONFIG", previousConfig );
+		Places.reset();
+
+		File[] contents = directory.listFiles();
+		if( contents != null )
+			for( File f : contents )
+				f.delete();
+		directory.delete();
+	}
+
+	/** Write the file, giving it a later modification time than the last one written
+	 *  (the clock might not tick between writes).
+	 */
+	private void write( String name, String contents ) throws IOException
+	{	File   file = new File( directory, name );
+		Writer out	= new FileWriter( file );
+		try
+		{	out.write( contents );
+		}
+		finally
+		{	out.close();
+		}
+		assertTrue( file.setLastModified(time += 2000) );
+	}
+
+	/** Add a macro to the end of the original hml.macros. */
+	private void addMacro( String macro ) throws IOException
+	{	write( "hml.macros", new Text(new File("src/hml.macros")).toString() + "\n" + macro + "\n" );
+	}
+
+	private String render( String input )
+	{	StringWriter output = new StringWriter();
+		engine.render( input, output, new StringWriter() );
+		return output.toString();
+	}
+
+	@Test public void changedFilesAreReloaded() throws IOException
+	{
+		assertFalse( engine.reloadIfChanged() );
+		assertFalse( render("xyzzy\n").contains("plugh") );
+
+		addMacro( "/xyzzy/plugh/" );
+		write( "hml.head", "<!--head 2-->\n" );
+		assertTrue( engine.reloadIfChanged() );
+		assertEquals( 1, engine.reloads() );
+
+		String output = render( "xyzzy\n" );
+		assertTrue( output.contains("plugh") );
+		assertTrue( output.contains("head 2") );
+
+		assertFalse( engine.reloadIfChanged() );		// nothing's changed since.
+	}
+
+	@Test public void filesWithErrorsAreNotLoaded() throws IOException
+	{
+		addMacro( "/xyzzy/plugh/" );
+		assertTrue( engine.reloadIfChanged() );
+
+		addMacro( "/xyz(zy/plover/" );			// unbalanced parenthesis
+		assertFalse( engine.reloadIfChanged() );
+		assertEquals( 1, engine.failedReloads() );
+		assertEquals( 0, engine.setupErrorCount() );
+		assertTrue( render("xyzzy\n").contains("plugh") );	// still using the old macros
+
+		assertFalse( engine.reloadIfChanged() );	// the same errors aren't reported again.
+		assertEquals( 1, engine.failedReloads() );
+
+		addMacro( "/xyzzy/plover/" );				// fixed
+		assertTrue( engine.reloadIfChanged() );
+		assertTrue( render("xyzzy\n").contains("plover") );
+	}
+
+	@Test public void eachRenderSeesOneVersionOfTheFiles() throws Exception
+	{
+		final AtomicBoolean done = new AtomicBoolean( false );
+		ExecutorService		pool = Executors.newFixedThreadPool( 4 );
+		try
+		{
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for( int i = 0; i < 4; ++i )
+				results.add( pool.submit( new Callable<String>()
+					{	@Override public String call()
+						{	while( !done.get() )
+							{	String output  = render( "xyzzy\n" );
+								boolean isOdd  = output.contains( "head odd"  );
+								boolean isEven = output.contains( "head even" );
+								if( isOdd != output.contains("plugh-odd") || isEven != output.contains("plugh-even") )
+									return output;
+							}
+							return null;
+						}
+					} ) );
+
+			for( int version = 0; version < 10; ++version )
+			{	String parity = (version % 2 == 0) ? "even" : "odd";
+				addMacro( "/xyzzy/plugh-" + parity + "/" );
+				write( "hml.head", "<!--head " + parity + "-->\n" );
+				assertTrue( engine.reloadIfChanged() );
+			}
+			done.set( true );
+
+			for( Future<String> result : results )
+				assertNull( "Render mixed two versions of the files", result.get() );
+		}
+		finally
+		{	done.set( true );
+			pool.shutdown();
+		}
+	}
+
+	@Test(timeout=10000) public void filesAreCheckedInTheBackground() throws Exception
+	{
+		engine.reloadEvery( 20, TimeUnit.MILLISECONDS );
+		addMacro( "/xyzzy/plugh/" );
+		while( !render("xyzzy\n").contains("plugh") )
+			Thread.sleep( 20 );
+		assertEquals( 1, engine.reloads() );
+	}
+}
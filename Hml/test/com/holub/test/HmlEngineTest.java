@@ -0,0 +1,153 @@
+package com.holub.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.holub.hml.Hml;
+import com.holub.hml.HmlEngine;
+import com.holub.hml.Stats;
+import com.holub.text.Text;
+
+public class HmlEngineTest
+{
+	private static HmlEngine engine;
+
+	@BeforeClass public static void setUpBeforeClass() throws Exception
+	{	engine = new HmlEngine();
+		assertEquals( engine.setupErrors(), 0, engine.setupErrorCount() );
+	}
+
+	private static String render( String input )
+	{	StringWriter output = new StringWriter();
+		StringWriter errors = new StringWriter();
+		assertEquals( errors.toString(), 0, engine.render(input, output, errors) );
+		return output.toString();
+	}
+
+	/** Return what the ordinary (non-engine) processor does with the input. */
+	private static String expected( String input )
+	{	StringWriter output = new StringWriter();
+		Hml.processInWebContext( input, output, new StringWriter() );
+		return output.toString();
+	}
+
+	@Test public void engineGivesSameResultAsProcessor()
+	{
+		String input = "Some *bold* and _italic_ text with a `snippet`.\n<pre>\ncode\n</pre>\n";
+		assertEquals( expected(input), render(input) );
+	}
+
+	@Test public void userMacrosDontLeakBetweenRenders()
+	{
+		String withMacro = "<macro>\ntext: /xyzzy/plugh\n</macro>\nxyzzy\n";
+		assertTrue ( render(withMacro ).contains("plugh") );
+		assertFalse( render("xyzzy\n").contains("plugh") );
+	}
+
+	@Test public void concurrentRendersDontInterfere() throws Exception
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try
+		{
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for( int i = 0; i < 64; ++i )
+			{	final String input = "<macro>\ntext: /NAME/document " + i + "/\n</macro>\n"
+								   + "<h2>Heading NAME</h2>\nBody of NAME\n";
+				results.add( pool.submit( new Callable<String>()
+							{	@Override public String call()
+								{	return render(input);
+								}
+							}) );
+			}
+
+			for( int i = 0; i < results.size(); ++i )
+			{	String output = results.get(i).get();
+				assertTrue ( output, output.contains("Body of document " + i + "\n") );
+				assertFalse( output, output.contains("NAME") );
+			}
+		}
+		finally
+		{	pool.shutdown();
+		}
+	}
+
+	@Test public void statisticsAreCollected() throws Exception
+	{
+		Stats	  stats	  = new Stats();
+		HmlEngine counted = new HmlEngine( stats );
+		
+		for( int i = 0; i < 3; ++i )
+			counted.render( "Some *bold* text\n<pre>\ncode\n</pre>\n", new StringWriter(), new StringWriter() );
+		
+		assertEquals( 3, stats.getDocuments() );
+		assertTrue( stats.getFilterMillis().toString(), stats.getFilterMillis().containsKey("Macro$TextFilter") );
+		assertTrue( stats.getPassMillis().toString(),	stats.getPassMillis().containsKey("TextFilter") );
+		
+		String report = stats.getReport();
+		assertTrue( report, report.startsWith("3 documents") );
+		assertTrue( report, report.contains("Include") );		// skipped, but still listed
+		
+		stats.reset();
+		assertEquals( 0, stats.getDocuments() );
+		assertTrue( stats.getFilterMillis().isEmpty() );
+	}
+
+	/** Return the names of the spill files in the temporary directory. */
+	private static List<String> spillFiles()
+	{	String[] names = new File( System.getProperty("java.io.tmpdir") ).list( new FilenameFilter()
+							{	@Override public boolean accept( File directory, String name )
+								{	return name.startsWith("hml") && name.endsWith(".spill");
+								}
+							});
+		return names == null ? new ArrayList<String>() : Arrays.asList( names );
+	}
+
+	/** Output that's too large to hold in memory goes through a temporary file,
+	 *  which must give the same result and be deleted afterwards.
+	 */
+	@Test public void largeOutputIsSpilledToDisk()
+	{
+		StringBuilder document = new StringBuilder();
+		for( int i = 0; i < 12000; ++i )
+			document.append( "Paragraph " ).append( i ).append( " has *bold* and _italic_ text.\n\n" );
+		String input = document.toString();
+
+		// A short document stays in memory. The parts of its output that aren't
+		// its own expanded text are the head and the tail.
+
+		String small		 = "x\n";
+		String smallOutput	 = render( small );
+		String smallExpanded = expand( small );
+		int	   body			 = smallOutput.indexOf( smallExpanded );
+		assertTrue( smallOutput, body >= 0 );
+
+		String expanded = expand( input );
+		assertTrue( "too small to be spilled", expanded.length() > 256 * 1024 );
+
+		List<String> before = spillFiles();
+		String		 output = render( input );
+
+		assertEquals( smallOutput.substring(0, body) + expanded + smallOutput.substring(body + smallExpanded.length()), output );
+		assertEquals( before, spillFiles() );
+	}
+
+	/** Return the input, expanded without the head and tail. */
+	private static String expand( String input )
+	{	Text text = new Text( input );
+		assertEquals( 0, new Hml(new StringWriter(), new StringWriter()).expand(text) );
+		return text.toString();
+	}
+}
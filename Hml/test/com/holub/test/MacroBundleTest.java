@@ -0,0 +1,142 @@
+package com.holub.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.holub.hml.Configuration;
+import com.holub.hml.Filter.BlockType;
+import com.holub.hml.Macro;
+import com.holub.hml.MacroBundle;
+import com.holub.text.ReportingStream;
+import com.holub.text.Text;
+
+public class MacroBundleTest
+{
+	private File directory;
+	private File macros;
+	private File bundle;
+
+	@Before public void setUp() throws IOException
+	{
+		directory = File.createTempFile("hml-bundle-", "");
+		directory.delete();
+		directory.mkdirs();
+		macros = new File( directory, "hml.macros" );
+		bundle = new File( directory, "hml.macros" + MacroBundle.SUFFIX );
+	}
+
+	@After public void tearDown()
+	{	File[] contents = directory.listFiles();
+		if( contents != null )
+			for( File f : contents )
+				f.delete();
+		directory.delete();
+	}
+
+	private static void write( File file, String contents ) throws IOException
+	{	Writer out = new FileWriter( file );
+		try
+		{	out.write( contents );
+		}
+		finally
+		{	out.close();
+		}
+	}
+
+	private static Macro.DefinitionSet read( File bundle ) throws IOException
+	{	InputStream in = new FileInputStream( bundle );
+		try
+		{	return MacroBundle.read( in );
+		}
+		finally
+		{	in.close();
+		}
+	}
+
+	private static String expand( Macro.DefinitionSet macros, BlockType type, String input )
+	{	Text body = new Text( input );
+		macros.expand( type, body, Configuration.RegexEngine.LINEAR );
+		return body.toString();
+	}
+
+	@Test public void bundleHoldsTheSameMacrosAsTheFile() throws Exception
+	{
+		File shipped = new File( "src/hml.macros" );
+		assertEquals( 0, MacroBundle.build(shipped, bundle, new ReportingStream(new StringWriter())) );
+
+		Macro.DefinitionSet.Builder builder = new Macro.DefinitionSet.Builder();
+		new Macro( new Configuration(new ReportingStream(new StringWriter())), false )
+					._loadMacroDefinitions( builder, new Text(new FileReader(shipped)), "hml.macros" );
+		Macro.DefinitionSet fromFile   = builder.build();
+		Macro.DefinitionSet fromBundle = read( bundle );
+
+		assertEquals( fromFile.fingerprint(),		fromBundle.fingerprint() );
+		assertEquals( fromFile.textMacros(),		fromBundle.textMacros()	 );
+		assertEquals( fromFile.codeMacros().size(), fromBundle.codeMacros().size() );
+
+		String text = "A (c) B --- *bold* and _italic_ {b bold}, 1/2 <-> [link http://holub.com]\n"
+					+ "| a | b |\n"
+					+ "~~~struck~~~ ``code`` x^2^ ... !!!\n";
+		assertEquals( expand(fromFile, BlockType.TEXT, text), expand(fromBundle, BlockType.TEXT, text) );
+
+		String code = "int x = 0; // comment\n/* block\n comment */ String s = \"a<b\";\n";
+		assertEquals( expand(fromFile, BlockType.CODE, code), expand(fromBundle, BlockType.CODE, code) );
+	}
+
+	@Test public void bundledMacrosRememberWhereTheyWereDefined() throws Exception
+	{
+		write( macros, "# comment\n\n/abc/xyz/\n" );
+		assertEquals( 0, MacroBundle.build(macros, bundle, new ReportingStream(new StringWriter())) );
+
+		Macro.Definition d = read(bundle).textMacros().get(0);
+		assertEquals( "abc", d.pattern() );
+		assertEquals( "xyz", d.replaceWith() );
+		assertEquals( "{abc->xyz}", d.toString() );
+		assertTrue( d.isLinear() );
+	}
+
+	@Test public void errorsPreventTheBundleFromBeingWritten() throws Exception
+	{
+		write( macros, "/abc/xyz/NOT_A_FLAG/\n" );
+		assertTrue( MacroBundle.build(macros, bundle, new ReportingStream(new StringWriter())) > 0 );
+		assertFalse( bundle.exists() );
+
+		write( macros, "/a(bc/xyz/\n" );		// unbalanced parenthesis
+		assertTrue( MacroBundle.build(macros, bundle, new ReportingStream(new StringWriter())) > 0 );
+		assertFalse( bundle.exists() );
+	}
+
+	@Test public void bundleIsIgnoredIfTheFileIsNewer() throws Exception
+	{
+		write( macros, "/abc/xyz/\n" );
+		assertEquals( 0, MacroBundle.build(macros, bundle, new ReportingStream(new StringWriter())) );
+
+		assertTrue( macros.setLastModified(bundle.lastModified() - 10000) );
+		assertNotNull( MacroBundle.load(macros.toURI().toURL(), bundle.toURI().toURL()) );
+
+		assertTrue( macros.setLastModified(bundle.lastModified() + 10000) );
+		assertNull( MacroBundle.load(macros.toURI().toURL(), bundle.toURI().toURL()) );
+
+		assertNull( MacroBundle.load(macros.toURI().toURL(), null) );
+	}
+
+	@Test public void badBundlesAreIgnored() throws Exception
+	{
+		write( macros, "/abc/xyz/\n" );
+		write( bundle, "not a bundle" );
+		assertTrue( macros.setLastModified(bundle.lastModified() - 10000) );
+		assertNull( MacroBundle.load(macros.toURI().toURL(), bundle.toURI().toURL()) );
+	}
+}
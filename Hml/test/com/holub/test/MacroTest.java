@@ -3,6 +3,10 @@ import static org.junit.Assert.*;
 
 import java.io.*;
 
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -11,9 +15,11 @@ import com.holub.hml.Filter;
 import com.holub.hml.Filter.BlockType;
 import com.holub.hml.Macro;
 import com.holub.hml.Pass;
+import com.holub.hml.Stats;
 import com.holub.text.ReportingStream;
 import com.holub.text.Text;
 import com.holub.util.ExtendedLogger;
+import com.holub.util.Places;
 
 /**
  * @author Allen Holub
@@ -321,9 +327,9 @@ public class MacroTest
 	
 	@Test public void lineContinuationInDefinitionFile() throws Exception
 	{
-		Macro.DefinitionSet macroTable = new Macro.DefinitionSet();
+		Macro.DefinitionSet.Builder loaded = new Macro.DefinitionSet.Builder();
 		new Macro(config)._loadMacroDefinitions(
-				macroTable,
+				loaded,
 				new Text("\n",
 						 "/x \\" ,
 						 "  /y \\",
@@ -331,6 +337,7 @@ public class MacroTest
 						 "MULTILINE ## comment can go here!"
 						)
 		);
+		Macro.DefinitionSet macroTable = loaded.build();
 		
 		System.err.println( macroTable.toString() );
 		
@@ -340,9 +347,9 @@ public class MacroTest
 	
 	@Test public void commentsInDefinitionFile() throws Exception
 	{
-		Macro.DefinitionSet macroTable = new Macro.DefinitionSet();
+		Macro.DefinitionSet.Builder loaded = new Macro.DefinitionSet.Builder();
 		new Macro(config)._loadMacroDefinitions(
-				macroTable,
+				loaded,
 				new Text("\n",
 						 "## abc", 
 						 "#m1#x#", 
@@ -351,6 +358,7 @@ public class MacroTest
 						 "/\\#\\#/z/"
 						)
 				);
+		Macro.DefinitionSet macroTable = loaded.build();
 		
 		System.err.println( macroTable.toString() );
 		
@@ -363,15 +371,16 @@ public class MacroTest
 	
 	@Test public void macroTypesRecognized() throws Exception
 	{
-		Macro.DefinitionSet macroTable = new Macro.DefinitionSet( );
+		Macro.DefinitionSet.Builder loaded = new Macro.DefinitionSet.Builder();
 		new Macro(config)._loadMacroDefinitions(
-				macroTable,
+				loaded,
 				new Text("\n",
 						 "code: /a/b",
 						 " text: /c/d",
 						 "ref:/e/f"
 						)
 		 );
+		Macro.DefinitionSet macroTable = loaded.build();
 		
 		System.err.println( macroTable.toString() );
 		
@@ -625,4 +634,432 @@ public class MacroTest
 		textFilter.filter(Text.EMPTY, input, Text.EMPTY, Filter.BlockType.TEXT );
 		TestUtil.assertEquals( expected, input );
 	}
+	
+	/** Macros that can't match are skipped, but that mustn't change the output: a macro whose
+	 *  literal ("b") isn't in the input until an earlier macro puts it there must still run,
+	 *  and one whose literal an earlier macro removes mustn't do anything.
+	 */
+	@Test public void skippedMacrosDontChangeOutput() throws Exception
+	{
+		Macro.DefinitionSet.Builder loaded = new Macro.DefinitionSet.Builder();
+		new Macro(config, false)._loadMacroDefinitions(
+				loaded,
+				new Text("\n",
+						 "/a/b/",
+						 "/x/y/",
+						 "/b+c/[$0]/",
+						 "/q/",
+						 "/zq/never/",
+						 "/(?<=\\[)b/B/"
+						)
+		 );
+		Macro.DefinitionSet macroTable = loaded.build();
+		
+		Text input = new Text( "a c -- ac -- zq -- x" );
+		macroTable.expand( BlockType.TEXT, input, config.regexEngine() );
+		TestUtil.assertEquals( "b c -- [Bc] -- z -- y", input.toString() );
+	}
+	
+	/** Expanding all the predefined macros with {@link Macro.DefinitionSet#expand(BlockType, Text, Configuration.RegexEngine)}
+	 *  (which skips the ones that can't match) gives the same result as running every one of them.
+	 */
+	@Test public void expandMatchesRunningEveryMacro() throws Exception
+	{
+		Macro.DefinitionSet.Builder loaded = new Macro.DefinitionSet.Builder();
+		new Macro(config, false)._loadMacroDefinitions( loaded, new Text(Places.CONFIG.reader("hml.macros")) );
+		Macro.DefinitionSet macroTable = loaded.build();
+		
+		File include = CorpusGenerator.createIncludeFile();
+		try
+		{
+			String document = new CorpusGenerator(include).generate(20)
+							+ "a---b (c) [tm] +/- x^2 __sub *bold* _it_ {link http://x.com y}"
+							+ " | cell | cell |\n; term\n: definition\n\n<http://holub.com> &amp; &lt; !< >!\n"
+							+ "[a'] [E^] [o``] [Delta] [dagger] (c) (R) [TM] 1/2 3/4 ^2 ^o [SS] [###] [] <<x>> <= >= <-> -> \\[ \\{ \\_\n"
+							+ "[---] [--] ... [*] [/] [+] [-] [!=] != <box>```quoted'''</box> &#60; &#62; &#38;\n";
+			
+			for( BlockType type : new BlockType[]{ BlockType.TEXT, BlockType.CODE, BlockType.REF } )
+			{
+				Text expanded = new Text( document );
+				macroTable.expand( type, expanded, config.regexEngine() );
+				
+				Text expected = new Text( document );
+				for( Macro.Definition macro : macroTable.macros(type) )
+					macro.replaceAll( expected, config.regexEngine() );
+				
+				TestUtil.assertEquals( expected.toString(), expanded.toString() );
+			}
+		}
+		finally
+		{	include.delete();
+		}
+	}
+	
+	/** The prefilter mustn't skip macros whose character classes contain nested
+	 *  classes or intersections, which it can't analyze.
+	 */
+	@Test public void nestedCharacterClassesArentPrefiltered()
+	{
+		Macro macroManager = new Macro( config, false );
+		macroManager.startDocument();
+
+		Text input = new Text( "<macro>\n/[[a-c]&&[b]]z/Q/\n/[a[x]]y/R/\n</macro>\nbz xy\n" );
+		new Pass( config, macroManager.getTextFilter() ).process( input );
+		assertEquals( "\nQ R\n", input.toString() );
+	}
+
+	/** A range that starts with an escaped character ([\.-z]) isn't mistaken for three members. */
+	@Test public void escapedRangesArentPrefiltered()
+	{
+		Macro macroManager = new Macro( config, false );
+		macroManager.startDocument();
+
+		Text input = new Text( "<macro>\n/[\\!-#]/A/\n/[\\.-z]x/B/\n/[+\\--]q/C/\n</macro>\n\" ax -q\n" );
+		new Pass( config, macroManager.getTextFilter() ).process( input );
+		assertEquals( "\nA B C\n", input.toString() );
+	}
+
+	/** The linear-time engine and Pattern find the same matches in the predefined macros. */
+	@Test public void regexEnginesAgree() throws Exception
+	{
+		Macro.DefinitionSet.Builder loaded = new Macro.DefinitionSet.Builder();
+		new Macro(config, false)._loadMacroDefinitions( loaded, new Text(Places.CONFIG.reader("hml.macros")) );
+		Macro.DefinitionSet macroTable = loaded.build();
+		
+		int linear = 0;
+		for( Macro.Definition macro : macroTable.textMacros() )
+			linear += macro.isLinear() ? 1 : 0;
+		assertTrue( "only " + linear + " linear", linear > macroTable.textMacros().size() / 2 );
+		
+		File include = CorpusGenerator.createIncludeFile();
+		try
+		{
+			String document = new CorpusGenerator(include).generate(20)
+							+ "a---b (c) [tm] +/- x^2 __sub *bold* _it_ {link http://x.com y} & &amp; \u00e9\u0301 \ud83d\ude00\n";
+			
+			for( BlockType type : new BlockType[]{ BlockType.TEXT, BlockType.CODE, BlockType.REF } )
+			{
+				Text linearResult = new Text( document );
+				macroTable.expand( type, linearResult, null, Configuration.RegexEngine.LINEAR );
+				
+				Text backtrackingResult = new Text( document );
+				macroTable.expand( type, backtrackingResult, null, Configuration.RegexEngine.BACKTRACKING );
+				
+				TestUtil.assertEquals( backtrackingResult.toString(), linearResult.toString() );
+			}
+		}
+		finally
+		{	include.delete();
+		}
+	}
+	
+	@Test(timeout=10000) public void linearEngineDoesNotBacktrack()
+	{
+		Macro.Definition exponential = new Macro.Definition( error, "(?:a|aa)*c", "x", null );
+		assertTrue( exponential.isLinear() );
+		
+		StringBuilder as = new StringBuilder();
+		for( int i = 0; i < 100; ++i )
+			as.append( 'a' );
+		Text input = new Text( as.toString() );
+		assertFalse( exponential.replaceAll(input, Configuration.RegexEngine.LINEAR) );		// Pattern would take years to fail.
+		
+		input = new Text( "aaac" );
+		assertTrue( exponential.replaceAll(input, Configuration.RegexEngine.LINEAR) );
+		assertEquals( "x", input.toString() );
+		
+		Macro.Definition backReference = new Macro.Definition( error, "(a)\\1", "<$1>", null );
+		assertFalse( backReference.isLinear() );
+		input = new Text( "baab" );
+		assertTrue( backReference.replaceAll(input, Configuration.RegexEngine.LINEAR) );
+		assertEquals( "b<a>b", input.toString() );
+		
+		Configuration backtracking = new Configuration( error );
+		backtracking.supplyDefault( "regexEngine", "backtracking" );
+		assertEquals( Configuration.RegexEngine.BACKTRACKING, backtracking.regexEngine() );
+		assertEquals( Configuration.RegexEngine.LINEAR, config.regexEngine() );
+	}
+	
+	/** When a repetition gives back an iteration, Pattern keeps the group that the
+	 *  iteration captured. The linear engine can't do that, so it leaves those expressions
+	 *  to Pattern.
+	 */
+	@Test public void capturesInsideRepetitionsAreLeftToPattern()
+	{
+		String[][] cases =
+		{	{ "(?:(.)){1,2} ",	"a b",	"< >b"	},
+			{ "(?:(.))* ",		"x y",	"<y>y"	},
+		};
+		for( String[] c : cases )
+		{
+			Macro.Definition d = new Macro.Definition( error, c[0], "<$1>", null );
+			assertFalse( c[0], d.isLinear() );
+			
+			Text input = new Text( c[1] );
+			assertTrue( d.replaceAll(input, Configuration.RegexEngine.LINEAR) );
+			assertEquals( c[2], input.toString() );
+			assertEquals( c[1].replaceAll(c[0], "<$1>"), c[2] );
+		}
+		assertTrue( new Macro.Definition(error, "(?:(a))? ", "<$1>", null).isLinear() );
+	}
+	
+	/** Definitions expand group references and escapes in the replacement text themselves,
+	 *  so make sure that they do it the same way that String.replaceAll() does.
+	 */
+	@Test public void replacementsMatchStringReplaceAll()
+	{
+		String input = "ab-ab a-- b";
+		String[][] definitions =
+		{	{ "(a)(b)?",			"[$1$2]"		},
+			{ "(a)(b)",				"$12$21"		},	// $12 is group 1 followed by "2"
+			{ "(?<x>a)",			"${x}${x}"		},
+			{ "a",					"\\$\\\\"	},	// a literal $ and a literal backslash
+			{ "-",					""				},
+			{ "((((((((((a))))))))))","<$10>"		},	// a two-digit group number
+		};
+		
+		for( String[] definition : definitions )
+		{
+			Text t = new Text( input );
+			new Macro.Definition( error, definition[0], definition[1], null ).replaceAll( t, config.regexEngine() );
+			assertEquals( definition[0], input.replaceAll(definition[0], definition[1]), t.toString() );
+		}
+	}
+	
+	@Test public void replacementVariables()
+	{
+		String year = String.valueOf( java.util.Calendar.getInstance().get(java.util.Calendar.YEAR) );
+		
+		Text t = new Text( "x y" );
+		new Macro.Definition( error, "x", "%(year)-$0", null ).replaceAll( t, config.regexEngine() );
+		new Macro.Definition( error, "y", "\\%(year)", null ).replaceAll( t, config.regexEngine() );	// quoted, so not expanded
+		assertEquals( year + "-x %(year)", t.toString() );
+	}
+	
+	/** Consecutive macros that replace literal text with literal text are applied together, in one
+	 *  scan, but only when that gives the same result as applying them one at a time.
+	 */
+	@Test public void fusedLiteralMacrosKeepOrder() throws Exception
+	{
+		Macro.DefinitionSet.Builder loaded = new Macro.DefinitionSet.Builder();
+		new Macro(config, false)._loadMacroDefinitions(
+				loaded,
+				new Text("\n",
+						 "/cat/dog/",
+						 "/dog/wolf/",		// the replacement for "cat" creates input for this one
+						 "/ab/X/",
+						 "/bc/Y/",			// overlaps "ab"
+						 "/(tm)/T/",		// a group, so it matches just "tm"
+						 "/\\[(r|R)\\]/R/"	// more than one string
+						)
+		 );
+		Macro.DefinitionSet macroTable = loaded.build();
+		
+		String input = "cat dog abc bc (tm) [r] [R] [x]";
+		
+		Text expanded = new Text( input );
+		macroTable.expand( BlockType.TEXT, expanded, config.regexEngine() );
+		
+		Text expected = new Text( input );
+		for( Macro.Definition macro : macroTable.textMacros() )
+			macro.replaceAll( expected, config.regexEngine() );
+		
+		TestUtil.assertEquals( "wolf wolf Xc Y (T) R R [x]", expected.toString() );
+		TestUtil.assertEquals( expected.toString(), expanded.toString() );
+	}
+	
+	/** Macros are profiled individually, and identified by where they were defined. */
+	@Test public void macroProfile() throws Exception
+	{
+		Macro.DefinitionSet.Builder loaded = new Macro.DefinitionSet.Builder();
+		new Macro(config, false)._loadMacroDefinitions(
+				loaded,
+				new Text("\n",
+						 "# comment",
+						 "/a+/A/ \\",			// continued on the next line,
+						 "  MULTILINE",
+						 "/never/N/",			// so this is line 4.
+						 "/\\w(b)/$1/"
+						),
+				"test.macros"
+		 );
+		Macro.DefinitionSet macroTable = loaded.build();
+		
+		Stats stats = new Stats();
+		stats.setProfilingMacros( true );
+		
+		Text input = new Text( "aa b cb" );
+		macroTable.expand( BlockType.TEXT, input, stats, config.regexEngine() );
+		TestUtil.assertEquals( "A b b", input.toString() );
+		
+		java.util.Set<String> macros = stats.getMacroMillis().keySet();
+		assertTrue( macros.toString(), macros.contains("TEXT test.macros:2 /a+/") );
+		assertTrue( macros.toString(), macros.contains("TEXT test.macros:4 /never/") );
+		assertTrue( macros.toString(), macros.contains("TEXT test.macros:5 /\\w(b)/") );
+		
+		// "never" was skipped, \\w(b) matched once, replacing two characters with one.
+		String report = stats.getReport();
+		assertTrue( report, report.matches("(?s).*TEXT test.macros:4 /never/\\s+0\\s+1\\s+0\\s.*") );
+		assertTrue( report, report.matches("(?s).*TEXT test.macros:5 /\\\\w\\(b\\)/\\s+1\\s+0\\s+1\\s+\\S+\\s+2\\s+1\\s.*") );
+	}
+	
+	/** Checking the configuration file's macros takes a while, so it's done only when
+	 *  INFO logging is on, and what it finds isn't reported as a warning.
+	 */
+	@Test public void riskyConfigurationMacrosAreReportedOnlyAtInfo() throws Exception
+	{
+		final java.util.List<String> messages = new java.util.ArrayList<String>();
+		AppenderSkeleton appender = new AppenderSkeleton()
+			{	@Override protected void append( LoggingEvent event )
+				{	messages.add( event.getLevel() + " " + event.getRenderedMessage() );
+				}
+				@Override public void close(){}
+				@Override public boolean requiresLayout(){ return false; }
+			};
+		
+		Logger logger = Logger.getLogger( Macro.class );
+		Level  level  = logger.getLevel();
+		logger.addAppender( appender );
+		try
+		{	logger.setLevel( Level.WARN );
+			new Macro(config, false)._loadMacroDefinitions( new Macro.DefinitionSet.Builder(),
+															new Text("\n", "/safe/x/", "/(a+)+b/y/"), "risky.macros" );
+			assertEquals( messages.toString(), 0, messages.size() );
+			
+			logger.setLevel( Level.INFO );
+			new Macro(config, false)._loadMacroDefinitions( new Macro.DefinitionSet.Builder(),
+															new Text("\n", "/safe/x/", "/(a+)+b/y/"), "risky.macros" );
+		}
+		finally
+		{	logger.removeAppender( appender );
+			logger.setLevel( level );
+		}
+		
+		assertEquals( messages.toString(), 1, messages.size() );
+		assertTrue( messages.get(0), messages.get(0).startsWith("INFO") && messages.get(0).contains("risky.macros:2") );
+	}
+	
+	@Test public void backtrackingRisk()
+	{
+		String unboundedSpan = new Macro.Definition(error, "\\[\\*.*?\\*\\]", "x", "DOTALL").backtrackingRisk();
+		assertNotNull( unboundedSpan );
+		assertTrue( unboundedSpan, unboundedSpan.contains("n^2.0") && unboundedSpan.contains("unbounded DOTALL span .*?") );
+		
+		String nested = new Macro.Definition(error, "\\[(?!!)(\\S+?)((\\s[^\\]]+)*?)\\]", "x", "MULTILINE|DOTALL").backtrackingRisk();
+		assertNotNull( nested );
+		assertTrue( nested, nested.contains("gave up") && nested.contains("nested quantifiers in (\\s[^\\]]+)*?") );
+		
+		assertNotNull( new Macro.Definition(error, "(a+)+b", "x", null).backtrackingRisk() );
+		
+		// Nested, but the newline at the end of each line leaves only one way to match.
+		assertNull( new Macro.Definition(error, "^(;)(.*\\n)(([ \\t\\x0B\\f]+.*\\n)*)", "x", "MULTILINE").backtrackingRisk() );
+		assertNull( new Macro.Definition(error, "\\[(tm|TM)\\]", "x", null).backtrackingRisk() );
+	}
+	
+	@Test public void userMacrosAreScopedToTheDocument()
+	{
+		Macro macroManager = new Macro( config, false );
+		
+		for( int document = 1; document <= 2; ++document )	// The second time, the definition is cached.
+		{	macroManager.startDocument();
+			Text input = new Text( "<macro>\n/wombat/koala/\n</macro>\nwombat\n" );
+			new Pass( config, macroManager.getTextFilter() ).process( input );
+			assertTrue( input.toString(), input.toString().contains("koala") && !input.toString().contains("wombat") );
+		}
+		
+		macroManager.startDocument();
+		Text input = new Text( "wombat\n" );
+		new Pass( config, macroManager.getTextFilter() ).process( input );
+		assertEquals( "wombat\n", input.toString() );
+	}
+
+	@Test public void blockScopedMacrosApplyOnlyToTheirBlock()
+	{
+		Macro macroManager = new Macro( config, false );
+		macroManager.startDocument();
+
+		Text input = new Text( "<macro scope=\"block\">\n/wombat/koala/\n</macro>\nwombat\n<pre>\nx\n</pre>\nwombat\n" );
+		new Pass( config, macroManager.getTextFilter() ).process( input );
+		assertEquals( "\nkoala\n<pre>\nx\n</pre>\nwombat\n", input.toString() );
+	}
+
+	@Test public void globalMacrosOutliveTheDocument()
+	{
+		Macro  macroManager = new Macro( config, false );
+		String export		= "<macro scope='global'>\n/wombat/$0x/\n</macro>\n";
+
+		for( int document = 1; document <= 3; ++document )
+		{	macroManager.startDocument();
+			Text input = new Text( export + "wombat\n<macro>\n/wombatx/koala/\n</macro>\n" );
+			new Pass( config, macroManager.getTextFilter() ).process( input );
+
+			// The document's own macro is applied before the global one, and the global
+			// one is applied once, no matter how many times it's been exported.
+			assertEquals( "\nwombatx\n\n", input.toString() );
+		}
+
+		macroManager.startDocument();
+		Text input = new Text( "wombat\n" );
+		new Pass( config, macroManager.getTextFilter() ).process( input );
+		assertEquals( "wombatx\n", input.toString() );
+	}
+
+	@Test public void unknownMacroScopesAreReported()
+	{
+		StringWriter	errors		 = new StringWriter();
+		Configuration	myConfig	 = new Configuration( new ReportingStream(errors) );
+		Macro			macroManager = new Macro( myConfig, false );
+		macroManager.startDocument();
+
+		Text input = new Text( "<macro scope=\"paragraph\">\n/wombat/koala/\n</macro>\nwombat\n" );
+		new Pass( myConfig, macroManager.getTextFilter() ).process( input );
+		assertTrue( errors.toString(), errors.toString().contains("Unknown <macro> scope (paragraph)") );
+		assertEquals( "\nkoala\n", input.toString() );		// treated as document scope
+	}
+
+	/** A set layered over another applies its own macros first, and neither set is changed
+	 *  by the layering, so one set can be shared by several threads (and documents) at once.
+	 */
+	@Test public void layeredDefinitionSets() throws Exception
+	{
+		Macro macroManager = new Macro( config, false );
+		
+		Macro.DefinitionSet.Builder loaded = new Macro.DefinitionSet.Builder();
+		macroManager._loadMacroDefinitions( loaded, new Text("\n", "/cat/dog/", "/dog/wolf/") );
+		final Macro.DefinitionSet defaults = loaded.build();
+		
+		loaded = new Macro.DefinitionSet.Builder();
+		macroManager._loadMacroDefinitions( loaded, new Text("\n", "/wolf/cat/", "code: /x/y/") );
+		Macro.DefinitionSet user = loaded.build();
+		
+		Macro.DefinitionSet layered = user.over( defaults );
+		assertEquals( 3, layered.textMacros().size() );
+		assertEquals( 1, layered.codeMacros().size() );
+		assertEquals( 2, defaults.textMacros().size() );
+		assertSame( defaults, Macro.DefinitionSet.EMPTY.over(defaults) );
+		
+		Text input = new Text( "wolf cat" );
+		layered.expand( BlockType.TEXT, input, config.regexEngine() );
+		assertEquals( "wolf wolf", input.toString() );		// wolf->cat->dog->wolf, cat->dog->wolf
+		
+		final String[] results = new String[8];
+		Thread[] threads = new Thread[ results.length ];
+		for( int i = 0; i < threads.length; ++i )
+		{	final int slot = i;
+			threads[i] = new Thread()
+			{	@Override public void run()
+				{	for( int j = 0; j < 100; ++j )
+					{	Text text = new Text( "cat " + slot );
+						defaults.expand( BlockType.TEXT, text, config.regexEngine() );
+						results[slot] = text.toString();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for( int i = 0; i < threads.length; ++i )
+		{	threads[i].join();
+			assertEquals( "wolf " + i, results[i] );
+		}
+	}
 }
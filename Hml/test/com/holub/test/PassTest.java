@@ -13,6 +13,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.holub.hml.Configuration;
+import com.holub.hml.Document;
 import com.holub.hml.Filter;
 import com.holub.hml.Pass;
 import com.holub.hml.Filter.BlockType;
@@ -330,4 +331,97 @@ public class PassTest
 				"</pre>",
 				 t.toString());
 	}
+
+	@Test public void lexerEdgeCases() throws Exception
+	{
+		Pass p = new Pass( config, codeBlockPassThroughFilter );
+		Text t;
+		p.process( t = new Text("<prefix>x</prefix>") );			TestUtil.assertEquals("<prefix>x</prefix>",		t.toString());
+		p.process( t = new Text("<pre\nclass=x>c</pre >") );	TestUtil.assertEquals("<pre\nclass=x>c</pre >",	t.toString());
+		p.process( t = new Text("a \\<!= b \\=!> c") );		TestUtil.assertEquals("a \\<!= b \\=!> c",		t.toString());
+		p.process( t = new Text("a <!= b =!> c") );				TestUtil.assertEquals("a  c",					t.toString());
+		p.process( t = new Text("a ``b`` c") );					TestUtil.assertEquals("a ``b`` c",				t.toString());
+		p.process( t = new Text("x,a\n,b\n") );					TestUtil.assertEquals("x,a\n<pre>\nb\n</pre>",	t.toString());
+	}
+
+	@Test public void statelessFilterGivesSameResultAsOrdinaryOne() throws Exception
+	{
+		class Upcase extends Filter.Default
+		{	Upcase(){ super(BlockType.CODE); }
+			@Override public void filter(Text prefix, Text body, Text suffix, BlockType type)
+			{	body.replace( body.toString().toUpperCase() );
+				super.filter(prefix, body, suffix, type);
+			}
+		}
+		class StatelessUpcase extends Upcase implements Filter.Stateless
+		{}
+		
+		Text input = new Text();
+		for( int i = 0; i < 500; ++i )
+			input.appendf( "text %d <pre>code %d</pre> `x`\n,\tmore code %d\n", i, i, i );
+		
+		Text ordinary = new Text(input);
+		new Pass( config, new Upcase() ).process(ordinary);
+		
+		Text parallel = new Text(input);
+		new Pass( config, new StatelessUpcase() ).process(parallel);
+		
+		assertFalse( input.toString().equals(parallel.toString()) );
+		TestUtil.assertEquals( ordinary.toString(), parallel.toString() );
+	}
+	
+	@Test public void passIsSkippedOnlyWhenItHasNothingToDo() throws Exception
+	{
+		class FindsQ extends Filter.Default implements Filter.Selective
+		{	FindsQ(){ super(BlockType.TEXT); }
+			@Override public boolean isNeededFor( CharSequence document ){ return document.toString().contains("Q"); }
+		}
+		Pass p = new Pass( config, new FindsQ() );
+		
+		assertFalse( p.isNeededFor( new Document("text <pre>code</pre> `snippet` text") ));
+		assertTrue ( p.isNeededFor( new Document("text <pre>Q</pre>") ));					// filter is needed
+		assertTrue ( p.isNeededFor( new Document("text <!= comment =!> text") ));			// comment must be removed
+		assertTrue ( p.isNeededFor( new Document("text\n,\tcode\n") ));					// comma block must be expanded
+		assertTrue ( p.isNeededFor( new Document("text <pre>code") ));						// unmatched tag
+		assertTrue ( p.isNeededFor( new Document("text code</pre>") ));
+		assertTrue ( p.isNeededFor( new Document("text `snippet\n` text") ));				// multi-line snippet
+		assertTrue ( p.isNeededFor( new Document("text `snippet") ));
+		
+		assertTrue ( new Pass(config, codeBlockPassThroughFilter).isNeededFor( new Document("text") ));	// not Selective
+	}
+	
+	@Test public void sharedDocumentGivesSameResultAsSeparatePasses() throws Exception
+	{
+		Filter snippetizeX = new Filter.Default( BlockType.TEXT )
+		{	@Override public void filter(Text prefix, Text body, Text suffix, BlockType type)
+			{	body.replace( body.toString().replace("x", "`x`") );
+			}
+		};
+		
+		Text input = new Text("\n", "t0 x", "<pre>c0</pre>", ",\tcode", "t1 `c1`", "<!= comment =!>", "end" );
+		
+		Text separate = new Text(input);
+		new Pass( config, snippetizeX				 ).process(separate);
+		new Pass( config, codeBlockPassThroughFilter ).process(separate);
+		
+		Document shared = new Document(input);
+		new Pass( config, snippetizeX				 ).process(shared);
+		new Pass( config, codeBlockPassThroughFilter ).process(shared);
+		
+		TestUtil.assertEquals( separate.toString(), shared.toString() );
+	}
+	
+	@Test public void unchangedDocumentIsNotRelexed() throws Exception
+	{
+		Text input = new Text("\n", "t0", "<pre>c0</pre>", "t1 `c1` t2", "t3" );
+		Document document = new Document(input);
+		
+		new Pass( config, codeBlockPassThroughFilter ).process(document);
+		long lexed = document.charactersLexed();
+		assertEquals( input.length(), lexed );
+		
+		new Pass( config, codeBlockPassThroughFilter ).process(document);
+		assertEquals( lexed, document.charactersLexed() );
+		assertEquals( input.toString(), document.toString() );
+	}
 }
@@ -0,0 +1,175 @@
+package com.holub.test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.holub.hml.HmlEngine;
+import com.holub.hml.RenderServer;
+
+public class RenderServerTest
+{
+	private static HmlEngine	engine;
+	private static RenderServer	server;
+
+	@BeforeClass public static void setUpBeforeClass() throws Exception
+	{	engine = new HmlEngine();
+		server = new RenderServer( engine, new InetSocketAddress("localhost", 0), 2, 10 );
+		server.start();
+	}
+
+	@AfterClass public static void tearDownAfterClass()
+	{	server.stop(0);
+	}
+
+	private static HttpURLConnection connect( String path ) throws IOException
+	{	return (HttpURLConnection) new URL( "http://localhost:" + server.getAddress().getPort() + path ).openConnection();
+	}
+
+	private static String read( InputStream in ) throws IOException
+	{	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for( int got; (got = in.read(buffer)) > 0; )
+			bytes.write( buffer, 0, got );
+		in.close();
+		return new String( bytes.toByteArray(), "UTF-8" );
+	}
+
+	private static HttpURLConnection post( String document ) throws IOException
+	{	HttpURLConnection connection = connect( "/render" );
+		connection.setRequestMethod( "POST" );
+		connection.setDoOutput( true );
+		OutputStream out = connection.getOutputStream();
+		out.write( document.getBytes("UTF-8") );
+		out.close();
+		return connection;
+	}
+
+	@Test public void documentIsRendered() throws IOException
+	{
+		String document = "Some *bold* text and a `snippet` (caf\u00e9)\n";
+
+		StringWriter expected = new StringWriter();
+		engine.render( document, expected, new StringWriter() );
+
+		HttpURLConnection connection = post( document );
+		assertEquals( 200, connection.getResponseCode() );
+		assertEquals( "0", connection.getHeaderField("X-Hml-Error-Count") );
+		assertEquals( expected.toString(), read(connection.getInputStream()) );
+	}
+
+	@Test public void documentErrorsAreCounted() throws IOException
+	{
+		HttpURLConnection connection = post( "`unterminated snippet\n" );
+		assertEquals( 200, connection.getResponseCode() );
+		assertEquals( "1", connection.getHeaderField("X-Hml-Error-Count") );
+	}
+
+	@Test public void renderRequiresPost() throws IOException
+	{	assertEquals( 405, connect("/render").getResponseCode() );
+	}
+
+	@Test public void healthAndMetrics() throws IOException
+	{
+		HttpURLConnection health = connect( "/health" );
+		assertEquals( 200, health.getResponseCode() );
+		assertEquals( "OK\n", read(health.getInputStream()) );
+
+		post( "x\n" ).getResponseCode();
+
+		HttpURLConnection metrics = connect( "/metrics" );
+		assertEquals( 200, metrics.getResponseCode() );
+		String body = read( metrics.getInputStream() );
+		assertTrue( body, body.contains("rendered=") );
+		assertFalse( body, body.contains("rendered=0\n") );
+	}
+
+	/** Send the headers of a POST to /render that promises contentLength bytes,
+	 *  and the first bodyBytes of those bytes.
+	 */
+	private static Socket startPost( RenderServer server, int contentLength, int bodyBytes ) throws IOException
+	{	Socket socket = new Socket( "localhost", server.getAddress().getPort() );
+		OutputStream out = socket.getOutputStream();
+		out.write( ("POST /render HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + contentLength + "\r\n\r\n").getBytes("UTF-8") );
+		for( int i = 0; i < bodyBytes; ++i )
+			out.write( 'x' );
+		out.flush();
+		return socket;
+	}
+
+	private static int status( Socket socket ) throws IOException
+	{	String statusLine = new BufferedReader( new InputStreamReader(socket.getInputStream(), "UTF-8") ).readLine();
+		return Integer.parseInt( statusLine.split(" ")[1] );
+	}
+
+	@Test(timeout=20000) public void requestsAreRejectedWhenTheQueueIsFull() throws Exception
+	{
+		RenderServer small = new RenderServer( engine, new InetSocketAddress("localhost", 0), 1, 1, 1000 );
+		small.start();
+		Socket[] waiting = new Socket[2];
+		try
+		{
+			// Both requests are admitted (one for the renderer, one for the queue)
+			// and then wait for the rest of their bodies.
+
+			for( int i = 0; i < waiting.length; ++i )
+				waiting[i] = startPost( small, 10, 5 );
+			while( !small.metrics().contains("admittedRequests=2\n") )
+				Thread.sleep( 10 );
+
+			Socket rejected = startPost( small, 10, 0 );		// rejected before its body is read
+			try
+			{	assertEquals( 503, status(rejected) );
+			}
+			finally
+			{	rejected.close();
+			}
+			assertTrue( small.metrics().contains("rejected=1\n") );
+
+			for( Socket socket : waiting )
+			{	socket.getOutputStream().write( "yyyyy".getBytes("UTF-8") );
+				assertEquals( 200, status(socket) );
+			}
+		}
+		finally
+		{	for( Socket socket : waiting )
+				if( socket != null )
+					socket.close();
+			small.stop( 0 );
+		}
+	}
+
+	@Test(timeout=20000) public void largeDocumentsAreRefused() throws Exception
+	{
+		RenderServer small = new RenderServer( engine, new InetSocketAddress("localhost", 0), 1, 1, 1000 );
+		small.start();
+		try
+		{	Socket socket = startPost( small, 1001, 0 );
+			try
+			{	assertEquals( 413, status(socket) );
+			}
+			finally
+			{	socket.close();
+			}
+			assertTrue( small.metrics().contains("tooLarge=1\n") );
+			assertTrue( small.metrics().contains("admittedRequests=0\n") );
+		}
+		finally
+		{	small.stop( 0 );
+		}
+	}
+}
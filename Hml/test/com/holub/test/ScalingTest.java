@@ -0,0 +1,123 @@
+package com.holub.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.holub.hml.HmlEngine;
+
+/** Renders synthetic documents (see {@link CorpusGenerator}) at 1, 2, 4, and 8 times
+ *  a base size, and fails if the memory allocated grows much faster than the size
+ *  of the document. The growth is measured as the exponent k in
+ *  cost = size<sup>k</sup>, fitted between the smallest and largest documents.
+ *  Linear work gives k=1 and quadratic work gives k=2, so anything quadratic fails
+ *  clearly.
+ *  <p>
+ *  Wall-clock time is too noisy to check on every build (it depends on whatever
+ *  else the machine is doing), so the time exponent is checked only in a
+ *  performance run: <code>-Dhml.performanceTests=true</code>.
+ *
+ * @author allen
+ */
+
+public class ScalingTest
+{
+	private static final int	BASE_SECTIONS		= 40;
+	private static final int[]	MULTIPLES			= { 1, 2, 4, 8 };
+
+	private static final double	MAX_TIME_EXPONENT	= 1.4;
+	private static final double	MAX_ALLOC_EXPONENT	= 1.25;
+
+	private static final boolean CHECK_TIME = Boolean.getBoolean( "hml.performanceTests" );
+
+	private static File				include;
+	private static CorpusGenerator	generator;
+	private static HmlEngine		engine;
+
+	@BeforeClass public static void setUpBeforeClass() throws Exception
+	{	include	  = CorpusGenerator.createIncludeFile();
+		generator = new CorpusGenerator( include );
+		engine	  = new HmlEngine();
+	}
+
+	@AfterClass public static void tearDownAfterClass()
+	{	include.delete();
+	}
+
+	/** Allocated bytes for the current thread, or -1 if the JVM can't tell us. */
+	private static long allocatedBytes()
+	{	try
+		{	com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			return threads.getThreadAllocatedBytes( Thread.currentThread().getId() );
+		}
+		catch( Throwable e )	// not a HotSpot JVM
+		{	return -1;
+		}
+	}
+
+	@Test public void generatedDocumentRendersCleanly()
+	{
+		StringWriter output = new StringWriter();
+		StringWriter errors = new StringWriter();
+		assertEquals( errors.toString(), 0, engine.render(generator.generate(3), output, errors) );
+
+		String html = output.toString();
+		assertTrue( html, html.contains("This is note 2.") );
+		assertTrue( html, html.contains("entry 1") );
+		assertFalse( html, html.contains("{section") );
+		assertFalse( html, html.contains("{ref") );
+	}
+
+	@Test public void costGrowsLinearlyWithDocumentSize()
+	{
+		String[] documents = new String[ MULTIPLES.length ];
+		for( int i = 0; i < MULTIPLES.length; ++i )
+			documents[i] = generator.generate( BASE_SECTIONS * MULTIPLES[i] );
+
+		for( int warmup = 0; warmup < 3; ++warmup )		// let the JIT do its work
+			render( documents[documents.length - 1] );
+
+		long[] nanos = new long[ MULTIPLES.length ];
+		long[] bytes = new long[ MULTIPLES.length ];
+		StringBuilder report = new StringBuilder();
+
+		for( int i = 0; i < MULTIPLES.length; ++i )
+		{
+			nanos[i] = Long.MAX_VALUE;
+			for( int trial = 0; trial < 3; ++trial )	// best of three, to reduce noise
+			{	long allocatedBefore = allocatedBytes();
+				long start			 = System.nanoTime();
+				render( documents[i] );
+				nanos[i] = Math.min( nanos[i], System.nanoTime() - start );
+				bytes[i] = allocatedBytes() - allocatedBefore;
+			}
+			report.append( String.format("%dx (%d chars): %.1f ms, %d bytes allocated\n",
+								MULTIPLES[i], documents[i].length(), nanos[i] / 1e6, bytes[i]) );
+		}
+
+		int	   last = MULTIPLES.length - 1;
+		double size = Math.log( (double) documents[last].length() / documents[0].length() );
+
+		double timeExponent = Math.log( (double) nanos[last] / nanos[0] ) / size;
+		report.append( String.format("time exponent %.2f\n", timeExponent) );
+
+		if( bytes[0] > 0 )
+		{	double allocationExponent = Math.log( (double) bytes[last] / bytes[0] ) / size;
+			report.append( String.format("allocation exponent %.2f\n", allocationExponent) );
+			assertTrue( "Allocation grows super-linearly:\n" + report, allocationExponent < MAX_ALLOC_EXPONENT );
+		}
+
+		if( CHECK_TIME )
+			assertTrue( "Time grows super-linearly:\n" + report, timeExponent < MAX_TIME_EXPONENT );
+	}
+
+	private static void render( String document )
+	{	engine.render( document, new StringWriter(), new StringWriter() );
+	}
+}
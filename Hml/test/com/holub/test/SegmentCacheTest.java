@@ -0,0 +1,134 @@
+package com.holub.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.holub.hml.Configuration;
+import com.holub.hml.HmlEngine;
+import com.holub.hml.Macro;
+import com.holub.hml.SegmentCache;
+import com.holub.text.ReportingStream;
+import com.holub.text.Text;
+
+public class SegmentCacheTest
+{
+	private File directory;
+
+	@Before public void setUp() throws IOException
+	{
+		engine = new HmlEngine();
+		directory = File.createTempFile("hml-cache-", "");
+		directory.delete();
+	}
+
+	@After public void tearDown()
+	{	File[] contents = directory.listFiles();
+		if( contents != null )
+			for( File f : contents )
+				f.delete();
+		directory.delete();
+	}
+
+	/** A paragraph that's long enough to be cached, with some macros in it. */
+	private static String paragraph( int number )
+	{	StringBuilder b = new StringBuilder();
+		for( int i = 0; i < 10; ++i )
+			b.append( "Paragraph " ).append( number ).append( " (c) has *bold* text --- and a dash, line " ).append( i ).append( ".\n" );
+		return b.append( "\n" ).toString();
+	}
+
+	private HmlEngine engine;
+
+	private String render( String input ) throws IOException
+	{	StringWriter output = new StringWriter();
+		engine.render( input, output, new StringWriter() );
+		return output.toString();
+	}
+
+	@Test public void expandedSegmentsAreReused() throws IOException
+	{
+		String input	= paragraph(1);
+		String expected	= render( input );
+
+		SegmentCache cache = new SegmentCache( directory, SegmentCache.DEFAULT_MAX_BYTES );
+		engine.useSegmentCache( cache );
+		assertEquals( expected, render(input) );
+		assertEquals( 0, cache.hits() );
+		assertTrue( cache.size() > 0 );
+
+		cache = new SegmentCache( directory, SegmentCache.DEFAULT_MAX_BYTES );	// as in a later run
+		engine.useSegmentCache( cache );
+		assertEquals( expected, render(input) );
+		assertTrue( cache.toString(), cache.hits() > 0 );
+		assertEquals( cache.toString(), 0, cache.misses() );
+	}
+
+	@Test public void timeDependentSegmentsAreNotCached() throws IOException
+	{
+		SegmentCache cache = new SegmentCache( directory, SegmentCache.DEFAULT_MAX_BYTES );
+		engine.useSegmentCache( cache );
+
+		render( paragraph(1) + "[timestamp]\n" );
+		assertEquals( 0, cache.size() );
+
+		render( paragraph(1) + "[timestamp]\n" );
+		assertEquals( 0, cache.hits() );
+	}
+
+	@Test public void leastRecentlyUsedEntriesAreEvicted() throws IOException
+	{
+		SegmentCache cache = new SegmentCache( directory, 2000 );
+		engine.useSegmentCache( cache );
+
+		for( int i = 0; i < 10; ++i )
+			render( paragraph(i) );
+		assertTrue( cache.toString(), cache.size() <= 2000 );
+		assertTrue( cache.toString(), cache.size() > 0 );
+
+		int hits = cache.hits();
+		render( paragraph(9) );							// the most recent entry is still there
+		assertEquals( hits + 1, cache.hits() );
+
+		hits = cache.hits();
+		render( paragraph(0) );							// the oldest one isn't
+		assertEquals( hits, cache.hits() );
+	}
+
+	@Test public void fingerprintsIdentifyTheMacros() throws Exception
+	{
+		ReportingStream error = new ReportingStream( new OutputStreamWriter(System.err) );
+		Macro macroManager = new Macro( new Configuration(error), false );
+
+		String[] fingerprints = new String[3];
+		String[][] definitions = { {"/cat/dog/"}, {"/cat/dog/"}, {"/cat/wolf/"} };
+		for( int i = 0; i < definitions.length; ++i )
+		{	Macro.DefinitionSet.Builder loaded = new Macro.DefinitionSet.Builder();
+			macroManager._loadMacroDefinitions( loaded, new Text("\n", (Object[])definitions[i]) );
+			fingerprints[i] = loaded.build().fingerprint();
+		}
+		assertEquals	( fingerprints[0], fingerprints[1] );
+		assertFalse		( fingerprints[0].equals(fingerprints[2]) );
+	}
+
+	@Test public void cacheIsPerEngine() throws IOException
+	{
+		SegmentCache cache = new SegmentCache( directory, SegmentCache.DEFAULT_MAX_BYTES );
+		engine.useSegmentCache( cache );
+
+		StringWriter output = new StringWriter();
+		new HmlEngine().render( paragraph(1), output, new StringWriter() );	// doesn't use the cache
+		assertEquals( 0, cache.size() );
+		assertEquals( 0, cache.misses() );
+
+		render( paragraph(1) );
+		assertTrue( cache.size() > 0 );
+	}
+}